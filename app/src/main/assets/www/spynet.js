@@ -6,6 +6,7 @@ var camAccuracy = null;
 var locationTimer = null;
 var lastLocationUpdate = 0;
 var autoCenter = false;
+var h264Socket = null;
 
 function setCookie(cookieName, cookieValue, expdays) {
 	"use strict";
@@ -30,7 +31,9 @@ function getCookie(cookieName) {
 function setImageSize() {
 	"use strict";
 	var mjpeg = document.getElementById("mjpeg");
-	if (mjpeg.width / mjpeg.height > 540 / 360) {
+	var width = mjpeg.videoWidth || mjpeg.width;
+	var height = mjpeg.videoHeight || mjpeg.height;
+	if (width / height > 540 / 360) {
 		mjpeg.style.height = "100%";
 		mjpeg.style.width = "auto";
 	} else {
@@ -228,6 +231,104 @@ function enterFullScreen() {
 	}
 }
 
+function isH264Supported() {
+	"use strict";
+	return "WebSocket" in window && "MediaSource" in window &&
+		MediaSource.isTypeSupported("video/mp4; codecs=\"avc1.42e01e\"");
+}
+
+function stopH264() {
+	"use strict";
+	if (h264Socket !== null) {
+		h264Socket.onclose = null;
+		h264Socket.close();
+		h264Socket = null;
+	}
+}
+
+function startMJPEG() {
+	"use strict";
+	stopH264();
+	var mjpeg = document.getElementById("mjpeg");
+	if (mjpeg !== null) {
+		var img = document.createElement("img");
+		img.id = "mjpeg";
+		img.alt = "MJPEG";
+		img.onload = setImageSize;
+		img.src = "video/mjpeg";
+		mjpeg.parentNode.replaceChild(img, mjpeg);
+	}
+}
+
+function startH264() {
+	"use strict";
+	var video = document.getElementById("mjpeg");
+	var mediaSource = new MediaSource();
+	var sourceBuffer = null;
+	var mime = null;
+	var queue = [];
+	var playing = false;
+	var protocol = window.location.protocol === "https:" ? "wss://" : "ws://";
+	var socket = new WebSocket(protocol + window.location.host + "/video/ws");
+	socket.binaryType = "arraybuffer";
+	h264Socket = socket;
+
+	function feed() {
+		if (sourceBuffer === null || sourceBuffer.updating || queue.length === 0) { return; }
+		sourceBuffer.appendBuffer(queue.shift());
+	}
+
+	function createSourceBuffer() {
+		if (sourceBuffer !== null || mime === null || mediaSource.readyState !== "open") { return; }
+		sourceBuffer = mediaSource.addSourceBuffer(mime);
+		sourceBuffer.addEventListener("updateend", function() {
+			var buffered = video.buffered;
+			if (buffered.length > 0) {
+				var end = buffered.end(buffered.length - 1);
+				// Stay at the live edge: jump forward when the player falls behind
+				if (video.currentTime < buffered.start(0) || end - video.currentTime > 1.0) {
+					video.currentTime = Math.max(buffered.start(buffered.length - 1), end - 0.1);
+				}
+				// Drop the old data to limit the memory usage
+				if (!sourceBuffer.updating && video.currentTime - buffered.start(0) > 30) {
+					sourceBuffer.remove(buffered.start(0), video.currentTime - 10);
+					return;
+				}
+			}
+			feed();
+		});
+		feed();
+	}
+
+	mediaSource.addEventListener("sourceopen", createSourceBuffer);
+	video.src = URL.createObjectURL(mediaSource);
+
+	socket.onmessage = function(event) {
+		if (typeof event.data === "string") {
+			var json = JSON.parse(event.data);
+			if (!MediaSource.isTypeSupported(json.mime)) {
+				startMJPEG();
+				return;
+			}
+			mime = json.mime;
+			createSourceBuffer();
+		} else {
+			queue.push(event.data);
+			feed();
+			if (!playing) {
+				playing = true;
+				video.play();
+			}
+		}
+	};
+	socket.onclose = function() {
+		if (h264Socket === socket) {
+			// Fall back to MJPEG if the H264 stream is not available
+			startMJPEG();
+		}
+	};
+}
+
 function initMap() {
 	"use strict";
 	mapReady = true;
@@ -242,13 +343,17 @@ function navigate(dst) {
 	map = null;
 	camMarker = null;
 	camAccuracy = null;
+	stopH264();
 	switch (dst) {
 		case "live":
 			document.getElementById("live").className = "active_menu_item";
 			document.getElementById("map").className = "other_menu_item";
 			document.getElementById("sensors").className = "other_menu_item";
+			var player = isH264Supported() ?
+				"<video id=\"mjpeg\" muted autoplay playsinline onloadedmetadata=\"setImageSize()\"></video>" :
+				"<img id=\"mjpeg\" alt=\"MJPEG\" src=\"video/mjpeg\" onload=\"setImageSize()\"/>";
 			document.getElementById("image").innerHTML = 
-				"<img id=\"mjpeg\" alt=\"MJPEG\" src=\"video/mjpeg\" onload=\"setImageSize()\"/>" +
+				player +
           		"<div class=\"topright\">" +
 					"<img class=\"opacity\" alt=\"FULLSCREEN\" src=\"images/fullscreen.png\"" +
 					"onclick=\"enterFullScreen()\"/>" +
@@ -263,6 +368,9 @@ function navigate(dst) {
 					"<img class=\"opacity\" alt=\"ZOOM+\" src=\"images/zoom_in.png\"" +
 					"onmousedown=\"startZoomIn()\" onmouseup=\"stopZoom()\" onmouseleave=\"stopZoom()\"/>" +
 				"</div>";
+			if (isH264Supported()) {
+				startH264();
+			}
 			break;
 		case "map":
 			if (mapReady) {
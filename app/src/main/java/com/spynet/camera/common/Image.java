@@ -38,46 +38,113 @@ public final class Image {
     }
 
     /**
-     * Converts a NV12 image to a YUV420SemiPlanar image.<br>
-     * We assume that there's no padding (stride = {@code width}) and that the {@code data}
-     * buffer contains exactly one image, i.e. its size equals {@code width * height * 3 / 2}.
+     * Halves the size of a NV21 image, averaging each 2x2 block of samples.<br>
+     * We assume that there's no padding (stride = {@code width}) and that both {@code width}
+     * and {@code height} are multiple of 4, so that the halved image still has even dimensions.
      *
      * @param data   the image data
      * @param width  the image width
      * @param height the image height
+     * @return the halved image data
      */
-    public static void convertNV12ToYUV420SemiPlanar(byte[] data, int width, int height) {
-        for (int i = width * height; i < data.length; ) {
-            byte tmp = data[i];
-            data[i] = data[++i];
-            data[i++] = tmp;
-        }
+    public static byte[] halveNV21(byte[] data, int width, int height) {
+        return halveNV21(data, width, height, new byte[(width / 2) * (height / 2) * 3 / 2]);
     }
 
     /**
-     * Converts a NV12 image to a YUV420Planar image.<br>
-     * We assume that there's no padding (stride = {@code width}) and that the {@code data}
-     * buffer contains exactly one image, i.e. its size equals {@code width * height * 3 / 2}.
+     * Halves the size of a NV21 image into a caller supplied buffer.
      *
      * @param data   the image data
      * @param width  the image width
      * @param height the image height
+     * @param halved the buffer that receives the halved image, at least
+     *               {@code (width / 2) * (height / 2) * 3 / 2} bytes long
+     * @return {@code halved}
+     * @see #halveNV21(byte[], int, int)
+     */
+    public static byte[] halveNV21(byte[] data, int width, int height, byte[] halved) {
+
+        final int w = width / 2, h = height / 2;
+
+        // Y plane
+        for (int y = 0, dst = 0; y < h; y++) {
+            int src1 = 2 * y * width, src2 = src1 + width;
+            for (int x = 0; x < w; x++, src1 += 2, src2 += 2) {
+                halved[dst++] = (byte) (((data[src1] & 0xFF) + (data[src1 + 1] & 0xFF) +
+                        (data[src2] & 0xFF) + (data[src2 + 1] & 0xFF) + 2) >> 2);
+            }
+        }
+
+        // Interleaved VU plane, averaging V and U separately
+        final int c_src = width * height;
+        for (int y = 0, dst = w * h; y < h / 2; y++) {
+            int src1 = c_src + 2 * y * width, src2 = src1 + width;
+            for (int x = 0; x < w / 2; x++, src1 += 4, src2 += 4) {
+                halved[dst++] = (byte) (((data[src1] & 0xFF) + (data[src1 + 2] & 0xFF) +
+                        (data[src2] & 0xFF) + (data[src2 + 2] & 0xFF) + 2) >> 2);
+                halved[dst++] = (byte) (((data[src1 + 1] & 0xFF) + (data[src1 + 3] & 0xFF) +
+                        (data[src2 + 1] & 0xFF) + (data[src2 + 3] & 0xFF) + 2) >> 2);
+            }
+        }
+
+        return halved;
+    }
+
+    /**
+     * Scales a NV21 image using the nearest neighbour sampling.<br>
+     * We assume that there's no padding (stride = {@code width}); the new dimensions must be even.
+     *
+     * @param data      the image data
+     * @param width     the image width
+     * @param height    the image height
+     * @param newWidth  the scaled image width
+     * @param newHeight the scaled image height
+     * @return the scaled image data
+     */
+    public static byte[] scaleNV21(byte[] data, int width, int height, int newWidth, int newHeight) {
+        return scaleNV21(data, width, height, newWidth, newHeight,
+                new byte[newWidth * newHeight * 3 / 2]);
+    }
+
+    /**
+     * Scales a NV21 image using the nearest neighbour sampling into the given buffer.<br>
+     * We assume that there's no padding (stride = {@code width}); the new dimensions must be even.
+     *
+     * @param data      the image data
+     * @param width     the image width
+     * @param height    the image height
+     * @param newWidth  the scaled image width
+     * @param newHeight the scaled image height
+     * @param scaled    the buffer that receives the scaled image,
+     *                  at least {@code newWidth * newHeight * 3 / 2} bytes
+     * @return {@code scaled}
      */
-    public static void convertNV12ToYUV420Planar(byte[] data, int width, int height) {
-
-        final int c_stride = width / 2;
-        final int c_size = c_stride * height / 2;
-        final int cr_offset = width * height;
-
-        byte[] tmp = new byte[c_size * 2];
-        for (int src = cr_offset, cr_dst = 0, cb_dst = c_size; src < data.length; src++) {
-            if (src % 2 == 0) {
-                tmp[cb_dst++] = data[src];
-            } else {
-                tmp[cr_dst++] = data[src];
+    public static byte[] scaleNV21(byte[] data, int width, int height, int newWidth, int newHeight,
+                                   byte[] scaled) {
+
+        int[] xmap = new int[newWidth];
+        for (int x = 0; x < newWidth; x++)
+            xmap[x] = x * width / newWidth;
+
+        // Y plane
+        for (int y = 0, dst = 0; y < newHeight; y++) {
+            int src = (y * height / newHeight) * width;
+            for (int x = 0; x < newWidth; x++)
+                scaled[dst++] = data[src + xmap[x]];
+        }
+
+        // Interleaved VU plane, sampled in pairs
+        int c_src = width * height;
+        for (int y = 0, dst = newWidth * newHeight; y < newHeight / 2; y++) {
+            int src = c_src + (y * height / newHeight) * width;
+            for (int x = 0; x < newWidth; x += 2) {
+                int sx = xmap[x] & ~1;
+                scaled[dst++] = data[src + sx];
+                scaled[dst++] = data[src + sx + 1];
             }
         }
-        System.arraycopy(tmp, 0, data, cr_offset, c_size * 2);
+
+        return scaled;
     }
 
     /**
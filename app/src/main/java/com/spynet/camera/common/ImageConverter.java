@@ -0,0 +1,332 @@
+/*
+ * This file is part of spyNet Camera, the Android IP camera
+ *
+ * Copyright (C) 2016-2017 Paolo Dematteis
+ *
+ * spyNet Camera is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * spyNet Camera is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Paolo Dematteis - spynet314@gmail.com
+ */
+
+package com.spynet.camera.common;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+
+/**
+ * Implements the pixel format conversions needed to feed the video encoder.<br>
+ * The converter keeps its scratch buffers across calls, so that converting a stream of
+ * frames of the same size does not allocate. Large frames are split in stripes of rows
+ * that are converted in parallel by a small set of worker threads, the calling thread
+ * converting the last stripe itself.<br>
+ * All the methods assume that there's no padding (stride = {@code width}) and even
+ * dimensions. A converter serves one caller at a time.
+ */
+public class ImageConverter implements Closeable {
+
+    // Minimum number of pixels for a frame to be converted in parallel
+    private static final int PARALLEL_MIN_PIXELS = 1280 * 720;
+    // Maximum number of stripes (worker threads + the calling thread)
+    private static final int MAX_STRIPES = 4;
+    // Number of longs swapped per bulk transfer
+    private static final int SWAP_CHUNK = 1024;
+    // Conversions
+    private static final int OP_YUVA_TO_NV21 = 1;
+    private static final int OP_NV21_TO_NV12_BUFFER = 2;
+    private static final int OP_NV21_TO_I420_BUFFER = 3;
+
+    private final String TAG = getClass().getSimpleName();
+
+    private final Stripe[] mStripes;                // The stripes, the last one runs on the caller
+    private final Object mLock = new Object();      // Lock to dispatch the stripes and wait for them
+    private int mGeneration;                        // Incremented each time the stripes are dispatched
+    private int mPending;                           // Number of stripes still running
+    private boolean mClosed;                        // Whether the converter has been closed
+
+    /**
+     * A stripe of rows converted by a single thread.
+     */
+    private class Stripe implements Runnable {
+
+        private final long[] mSwap = new long[SWAP_CHUNK];  // Scratch buffer for the word swaps
+        private byte[] mViewArray;                  // The array mView wraps
+        private LongBuffer mView;                   // Native order long view of mViewArray
+        private LongBuffer mRowView;                // Native order long view of mRow
+        private int mOp;                            // The conversion to perform
+        private byte[] mSrc, mDst;                  // Source and destination images
+        private ByteBuffer mDstBuffer;              // Destination buffer, the stripe's own view
+        private byte[] mRow;                        // Scratch buffer for a converted chroma row
+        private int mWidth, mHeight;                // Image size
+        private int mFirst, mLast;                  // Range of rows pairs to convert
+
+        @Override
+        public void run() {
+            int generation = 0;
+            while (true) {
+                synchronized (mLock) {
+                    while (!mClosed && mGeneration == generation) {
+                        try {
+                            mLock.wait();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                    if (mClosed)
+                        return;
+                    generation = mGeneration;
+                }
+                try {
+                    convert();
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "conversion failed", e);
+                } finally {
+                    synchronized (mLock) {
+                        if (--mPending == 0)
+                            mLock.notifyAll();
+                    }
+                }
+            }
+        }
+
+        /**
+         * Converts the rows pairs of the stripe.
+         */
+        void convert() {
+            final int frameSize = mWidth * mHeight;
+            switch (mOp) {
+                case OP_YUVA_TO_NV21:
+                    packYUVA(frameSize);
+                    break;
+                case OP_NV21_TO_NV12_BUFFER:
+                    writeRows(frameSize, false);
+                    break;
+                case OP_NV21_TO_I420_BUFFER:
+                    writeRows(frameSize, true);
+                    break;
+            }
+        }
+
+        /**
+         * Writes the rows pairs of the NV21 mSrc into mDstBuffer, as NV12 or I420.<br>
+         * The luma is copied in bulk, the chroma is converted a row at a time in a scratch
+         * buffer that stays in cache. When the rows are made of whole longs, the NV12 chroma
+         * pairs are swapped a long at a time.
+         */
+        private void writeRows(int frameSize, boolean planar) {
+            final byte[] src = mSrc;
+            final ByteBuffer dst = mDstBuffer;
+            final int width = mWidth;
+            final int cWidth = width / 2;
+            final int cSize = cWidth * (mHeight / 2);
+            if (mRow == null || mRow.length < width) {
+                mRow = new byte[width];
+                mRowView = ByteBuffer.wrap(mRow).order(ByteOrder.nativeOrder()).asLongBuffer();
+            }
+            final byte[] row = mRow;
+            final boolean wide = !planar && (width & 7) == 0;
+            if (wide && mViewArray != src) {
+                mView = ByteBuffer.wrap(src).order(ByteOrder.nativeOrder()).asLongBuffer();
+                mViewArray = src;
+            }
+            // Luma, as is
+            dst.position(mFirst * 2 * width);
+            dst.put(src, mFirst * 2 * width, (mLast - mFirst) * 2 * width);
+            // Chroma
+            for (int r = mFirst; r < mLast; r++) {
+                int s = frameSize + r * width;
+                if (planar) {
+                    for (int u = 0, v = cWidth; u < cWidth; u++, v++) {
+                        row[v] = src[s++];
+                        row[u] = src[s++];
+                    }
+                    dst.position(frameSize + r * cWidth);
+                    dst.put(row, 0, cWidth);
+                    dst.position(frameSize + cSize + r * cWidth);
+                    dst.put(row, cWidth, cWidth);
+                } else if (wide) {
+                    swapRow(s / 8, width / 8);
+                    dst.position(frameSize + r * width);
+                    dst.put(row, 0, width);
+                } else {
+                    for (int i = 0; i < width; i += 2, s += 2) {
+                        row[i] = src[s + 1];
+                        row[i + 1] = src[s];
+                    }
+                    dst.position(frameSize + r * width);
+                    dst.put(row, 0, width);
+                }
+            }
+        }
+
+        /**
+         * Swaps the bytes of each pair of the longs [first, first + words) of mView into
+         * mRow, moving the longs in bulk: the byte order does not matter since each 16 bit
+         * lane is swapped in place.
+         */
+        private void swapRow(int first, int words) {
+            mView.position(first);
+            mRowView.position(0);
+            while (words > 0) {
+                int count = Math.min(words, SWAP_CHUNK);
+                mView.get(mSwap, 0, count);
+                for (int k = 0; k < count; k++) {
+                    long v = mSwap[k];
+                    mSwap[k] = ((v >>> 8) & 0x00FF00FF00FF00FFL) | ((v & 0x00FF00FF00FF00FFL) << 8);
+                }
+                mRowView.put(mSwap, 0, count);
+                words -= count;
+            }
+        }
+
+        /**
+         * Packs the 4 bytes per pixel Y, U, V, A rows pairs of mSrc into the NV21 mDst.<br>
+         * The chroma of each 2x2 block is taken from its bottom right pixel.
+         */
+        private void packYUVA(int frameSize) {
+            final byte[] src = mSrc, dst = mDst;
+            final int width = mWidth;
+            for (int pair = mFirst; pair < mLast; pair++) {
+                int y = pair * 2 * width;
+                int s = y * 4;
+                // Even row: luma only
+                for (int end = y + width; y < end; y++, s += 4)
+                    dst[y] = src[s];
+                // Odd row: luma, and chroma from the odd columns
+                int c = frameSize + pair * width;
+                for (int end = y + width; y < end; y += 2, s += 8) {
+                    dst[y] = src[s];
+                    dst[y + 1] = src[s + 4];
+                    dst[c++] = src[s + 6];
+                    dst[c++] = src[s + 5];
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates a new ImageConverter object, using up to one stripe per available core.
+     */
+    public ImageConverter() {
+        int stripes = Math.max(1, Math.min(MAX_STRIPES, Runtime.getRuntime().availableProcessors()));
+        mStripes = new Stripe[stripes];
+        for (int i = 0; i < stripes; i++) {
+            mStripes[i] = new Stripe();
+            if (i < stripes - 1) {
+                Thread worker = new Thread(mStripes[i], TAG + "-" + i);
+                worker.setDaemon(true);
+                worker.start();
+            }
+        }
+    }
+
+    /**
+     * Stops the worker threads.
+     */
+    @Override
+    public void close() {
+        synchronized (mLock) {
+            mClosed = true;
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * Converts a NV21 image to NV12 (YUV420SemiPlanar) into a buffer, such as an
+     * encoder input buffer, so that the image is written only once.
+     *
+     * @param src    the NV21 image
+     * @param dst    the destination buffer, at least {@code width * height * 3 / 2} bytes
+     *               from index 0; its position is undefined on return
+     * @param width  the image width
+     * @param height the image height
+     */
+    public synchronized void convertNV21ToNV12(byte[] src, ByteBuffer dst, int width, int height) {
+        run(OP_NV21_TO_NV12_BUFFER, src, null, dst, width, height, height / 2);
+    }
+
+    /**
+     * Converts a NV21 image to I420 (YUV420Planar) into a buffer, such as an
+     * encoder input buffer, so that the image is written only once.
+     *
+     * @param src    the NV21 image
+     * @param dst    the destination buffer, at least {@code width * height * 3 / 2} bytes
+     *               from index 0; its position is undefined on return
+     * @param width  the image width
+     * @param height the image height
+     */
+    public synchronized void convertNV21ToI420(byte[] src, ByteBuffer dst, int width, int height) {
+        run(OP_NV21_TO_I420_BUFFER, src, null, dst, width, height, height / 2);
+    }
+
+    /**
+     * Converts an image with 4 bytes per pixel (Y, U, V and A, as read back from the
+     * {@link com.spynet.camera.gl.TextureRender}) to NV21.
+     *
+     * @param yuva   the source image
+     * @param nv21   the destination image, {@code width * height * 3 / 2} bytes long
+     * @param width  the image width
+     * @param height the image height
+     */
+    public synchronized void convertYUVAToNV21(byte[] yuva, byte[] nv21, int width, int height) {
+        run(OP_YUVA_TO_NV21, yuva, nv21, null, width, height, height / 2);
+    }
+
+    /**
+     * Runs a conversion, splitting the rows pairs among the stripes when the image is large.<br>
+     * The worker stripes write into a duplicate of the destination buffer, that has its
+     * own position.
+     */
+    private void run(int op, byte[] src, byte[] dst, ByteBuffer dstBuffer,
+                     int width, int height, int pairs) {
+        int stripes = width * height >= PARALLEL_MIN_PIXELS ? mStripes.length : 1;
+        synchronized (mLock) {
+            if (mClosed)
+                stripes = 1;
+            for (int i = 0; i < stripes; i++) {
+                Stripe stripe = mStripes[mStripes.length - stripes + i];
+                stripe.mOp = op;
+                stripe.mSrc = src;
+                stripe.mDst = dst;
+                stripe.mDstBuffer = dstBuffer != null && i < stripes - 1 ? dstBuffer.duplicate() : dstBuffer;
+                stripe.mWidth = width;
+                stripe.mHeight = height;
+                stripe.mFirst = pairs * i / stripes;
+                stripe.mLast = pairs * (i + 1) / stripes;
+            }
+            if (stripes > 1) {
+                mPending = stripes - 1;
+                mGeneration++;
+                mLock.notifyAll();
+            }
+        }
+        // The last stripe runs on the calling thread
+        mStripes[mStripes.length - 1].convert();
+        if (stripes > 1) {
+            synchronized (mLock) {
+                while (mPending > 0) {
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+            }
+        }
+    }
+}
@@ -21,6 +21,7 @@
 
 package com.spynet.camera.gl;
 
+import android.os.Build;
 import android.util.Log;
 
 import javax.microedition.khronos.egl.EGL10;
@@ -38,7 +39,9 @@ import javax.microedition.khronos.egl.EGLSurface;
 public class EGLOffscreenContext {
 
     private static final int EGL_OPENGL_ES2_BIT = 4;
+    private static final int EGL_OPENGL_ES3_BIT_KHR = 0x40;
     private static final int EGL_CONTEXT_CLIENT_VERSION = 0x3098;
+    private static final int EGL_RECORDABLE_ANDROID = 0x3142;
 
     private final String TAG = getClass().getSimpleName();
 
@@ -47,6 +50,7 @@ public class EGLOffscreenContext {
     private final EGLConfig mConfig;            // The EGL configuration
     private final EGLSurface mSurface;          // The EGL surface
     private final EGLContext mContext;          // The EGL context
+    private final int mVersion;                 // The OpenGL ES major version of the context
 
     /**
      * Attribute list to create a context that supports RGB pbuffers
@@ -75,15 +79,45 @@ public class EGLOffscreenContext {
             EGL10.EGL_NONE
     };
 
+    /**
+     * Attribute list to create a context that supports RGBA pbuffers, and window surfaces
+     * that can feed a video encoder, that can be rendered using OpenGL ES 2.0.
+     */
+    public static final int[] CONFIG_RECORDABLE_RGBA_BUFFER = {
+            EGL10.EGL_RED_SIZE, 8,
+            EGL10.EGL_GREEN_SIZE, 8,
+            EGL10.EGL_BLUE_SIZE, 8,
+            EGL10.EGL_ALPHA_SIZE, 8,
+            EGL10.EGL_RENDERABLE_TYPE, EGL_OPENGL_ES2_BIT,
+            EGL10.EGL_SURFACE_TYPE, EGL10.EGL_PBUFFER_BIT | EGL10.EGL_WINDOW_BIT,
+            EGL_RECORDABLE_ANDROID, 1,
+            EGL10.EGL_NONE
+    };
+
     /**
      * Creates a new EGLOffscreenContext object.
      *
      * @param attribList the list of attributes that determines the EGL configuration to choose
-     *                   (one of {@code CONFIG_PIXEL_BUFFER} or {@code CONFIG_PIXEL_RGBA_BUFFER})
+     *                   (one of the {@code CONFIG_} lists)
      * @param width      the width in pixel of the offscreen surface
      * @param height     the height in pixel of the offscreen surface
      */
     public EGLOffscreenContext(int[] attribList, int width, int height) {
+        this(attribList, width, height, 2);
+    }
+
+    /**
+     * Creates a new EGLOffscreenContext object, for the specified OpenGL ES version if available.<br>
+     * If an OpenGL ES 3.x context is requested but not supported, an OpenGL ES 2.x context
+     * is created: use {@link #getVersion()} to know the actual version.
+     *
+     * @param attribList the list of attributes that determines the EGL configuration to choose
+     *                   (one of the {@code CONFIG_} lists)
+     * @param width      the width in pixel of the offscreen surface
+     * @param height     the height in pixel of the offscreen surface
+     * @param version    the requested OpenGL ES major version, 2 or 3
+     */
+    public EGLOffscreenContext(int[] attribList, int width, int height, int version) {
 
         mEgl = (EGL10) javax.microedition.khronos.egl.EGLContext.getEGL();
 
@@ -91,17 +125,36 @@ public class EGLOffscreenContext {
         mDisplay = mEgl.eglGetDisplay(EGL10.EGL_DEFAULT_DISPLAY);
         if (mDisplay == EGL10.EGL_NO_DISPLAY)
             throw new RuntimeException("can't get the default display");
-        int[] version = new int[2];
-        if (!mEgl.eglInitialize(mDisplay, version))
+        int[] eglVersion = new int[2];
+        if (!mEgl.eglInitialize(mDisplay, eglVersion))
             throw new RuntimeException("can't initialize EGL");
-        Log.d(TAG, "EGL version " + version[0] + "." + version[1]);
+        Log.d(TAG, "EGL version " + eglVersion[0] + "." + eglVersion[1]);
 
-        // Choose the configuration that better matches the specified attributes
-        int[] numConfigs = new int[1];
-        EGLConfig[] eglConfig = new EGLConfig[1];
-        if (!mEgl.eglChooseConfig(mDisplay, attribList, eglConfig, 1, numConfigs))
-            throw new RuntimeException("can't get a valid configuration");
-        mConfig = eglConfig[0];
+        // Choose the configuration that better matches the specified attributes,
+        // and create the context (OpenGL ES 3.x requires API 18 for the bindings)
+        EGLConfig config = null;
+        EGLContext context = EGL10.EGL_NO_CONTEXT;
+        if (version >= 3 && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            config = chooseConfig(withRenderableType(attribList, EGL_OPENGL_ES3_BIT_KHR));
+            if (config != null)
+                context = createContext(config, 3);
+            if (context == EGL10.EGL_NO_CONTEXT)
+                Log.w(TAG, "OpenGL ES 3 not available, falling back to OpenGL ES 2");
+        }
+        if (context == EGL10.EGL_NO_CONTEXT) {
+            config = chooseConfig(attribList);
+            if (config == null)
+                throw new RuntimeException("can't get a valid configuration");
+            context = createContext(config, 2);
+            if (context == EGL10.EGL_NO_CONTEXT)
+                throw new RuntimeException("can't create the context");
+            mVersion = 2;
+        } else {
+            mVersion = 3;
+        }
+        mConfig = config;
+        mContext = context;
+        Log.d(TAG, "OpenGL ES " + mVersion + " context created");
 
         // Create the off-screen rendering surface
         int[] surfaceAttribList = new int[]{
@@ -112,15 +165,52 @@ public class EGLOffscreenContext {
         mSurface = mEgl.eglCreatePbufferSurface(mDisplay, mConfig, surfaceAttribList);
         if (mSurface == EGL10.EGL_NO_SURFACE)
             throw new RuntimeException("can't create the surface");
+    }
 
-        // Create the context
+    /**
+     * @return the OpenGL ES major version of the context, 2 or 3
+     */
+    public int getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * Chooses the configuration that better matches the specified attributes.
+     *
+     * @return the configuration, null if none matches
+     */
+    private EGLConfig chooseConfig(int[] attribList) {
+        int[] numConfigs = new int[1];
+        EGLConfig[] eglConfig = new EGLConfig[1];
+        if (!mEgl.eglChooseConfig(mDisplay, attribList, eglConfig, 1, numConfigs) || numConfigs[0] == 0)
+            return null;
+        return eglConfig[0];
+    }
+
+    /**
+     * Creates a context for the specified OpenGL ES version.
+     *
+     * @return the context, EGL_NO_CONTEXT on error
+     */
+    private EGLContext createContext(EGLConfig config, int version) {
         int[] contextAttribList = new int[]{
-                EGL_CONTEXT_CLIENT_VERSION, 2,  // OpenGL ES 2.x context
+                EGL_CONTEXT_CLIENT_VERSION, version,
                 EGL10.EGL_NONE
         };
-        mContext = mEgl.eglCreateContext(mDisplay, mConfig, EGL10.EGL_NO_CONTEXT, contextAttribList);
-        if (mContext == EGL10.EGL_NO_CONTEXT)
-            throw new RuntimeException("can't create the context");
+        EGLContext context = mEgl.eglCreateContext(mDisplay, config, EGL10.EGL_NO_CONTEXT, contextAttribList);
+        return context != null ? context : EGL10.EGL_NO_CONTEXT;
+    }
+
+    /**
+     * Copies an attribute list replacing the renderable type.
+     */
+    private static int[] withRenderableType(int[] attribList, int renderableType) {
+        int[] list = attribList.clone();
+        for (int i = 0; i + 1 < list.length; i += 2) {
+            if (list[i] == EGL10.EGL_RENDERABLE_TYPE)
+                list[i + 1] = renderableType;
+        }
+        return list;
     }
 
     /**
@@ -141,6 +231,68 @@ public class EGLOffscreenContext {
             throw new RuntimeException("can't bind the context");
     }
 
+    /**
+     * Binds the context to the current rendering thread and to the specified surface.
+     *
+     * @param surface the surface, created by {@link #createWindowSurface(Object)}
+     */
+    public void makeCurrent(EGLSurface surface) {
+        if (!mEgl.eglMakeCurrent(mDisplay, surface, surface, mContext))
+            throw new RuntimeException("can't bind the context");
+    }
+
+    /**
+     * Creates a window surface, that shares the context with the offscreen surface.<br>
+     * The context must have been created with {@link #CONFIG_RECORDABLE_RGBA_BUFFER}
+     * to render onto the input surface of a video encoder.
+     *
+     * @param window the native window (e.g. a {@link android.view.Surface})
+     * @return the window surface
+     */
+    public EGLSurface createWindowSurface(Object window) {
+        int[] surfaceAttribList = new int[]{
+                EGL10.EGL_NONE
+        };
+        EGLSurface surface = mEgl.eglCreateWindowSurface(mDisplay, mConfig, window, surfaceAttribList);
+        if (surface == null || surface == EGL10.EGL_NO_SURFACE)
+            throw new RuntimeException("can't create the window surface: " + mEgl.eglGetError());
+        return surface;
+    }
+
+    /**
+     * Returns the size of a surface.
+     *
+     * @param surface the surface, created by {@link #createWindowSurface(Object)}
+     * @return the surface size in pixels, width and height
+     */
+    public int[] getSurfaceSize(EGLSurface surface) {
+        int[] width = new int[1], height = new int[1];
+        if (!mEgl.eglQuerySurface(mDisplay, surface, EGL10.EGL_WIDTH, width) ||
+                !mEgl.eglQuerySurface(mDisplay, surface, EGL10.EGL_HEIGHT, height))
+            throw new RuntimeException("can't query the surface size");
+        return new int[]{width[0], height[0]};
+    }
+
+    /**
+     * Posts the frame rendered on a window surface.<br>
+     * The frame is timestamped by the consumer at the time it is queued.
+     *
+     * @param surface the surface, created by {@link #createWindowSurface(Object)}
+     * @return {@code true} on success, {@code false} otherwise
+     */
+    public boolean swapBuffers(EGLSurface surface) {
+        return mEgl.eglSwapBuffers(mDisplay, surface);
+    }
+
+    /**
+     * Destroys a window surface.
+     *
+     * @param surface the surface, created by {@link #createWindowSurface(Object)}
+     */
+    public void destroySurface(EGLSurface surface) {
+        mEgl.eglDestroySurface(mDisplay, surface);
+    }
+
     /**
      * Releases the current context.
      */
@@ -0,0 +1,139 @@
+/*
+ * This file is part of spyNet Camera, the Android IP camera
+ *
+ * Copyright (C) 2016-2017 Paolo Dematteis
+ *
+ * spyNet Camera is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * spyNet Camera is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Paolo Dematteis - spynet314@gmail.com
+ */
+
+package com.spynet.camera.gl;
+
+import android.annotation.TargetApi;
+import android.opengl.GLES30;
+import android.os.Build;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Implements an asynchronous readback of the framebuffer through a ring of OpenGL ES 3.0
+ * pixel buffer objects.<br>
+ * Each {@link #read(int, int, int, int, ByteBuffer)} starts copying the current frame into
+ * the next pixel buffer, which returns without waiting for the GPU, and maps the oldest one,
+ * whose copy has had a whole frame to complete: the frames are returned with a delay of
+ * {@code BUFFER_COUNT - 1} frames, but the CPU never waits for the rendering.<br>
+ * Requires an OpenGL ES 3.x context and API 24, that introduced the glReadPixels binding
+ * with an offset into the bound pixel buffer.
+ */
+@TargetApi(Build.VERSION_CODES.N)
+public class PixelBufferReader {
+
+    // Number of pixel buffers: 2 for double buffering, 3 for triple buffering
+    private static final int BUFFER_COUNT = 2;
+
+    private final int[] mBuffers;                   // The pixel buffer object IDs
+    private final int mSize;                        // The size of each buffer in bytes
+    private int mIndex;                             // The buffer the next read goes into
+    private int mQueued;                            // Number of reads queued, up to BUFFER_COUNT - 1
+
+    /**
+     * Whether the asynchronous readback is available.
+     *
+     * @param glVersion the OpenGL ES major version of the current context
+     * @return {@code true} if the readback is available, {@code false} otherwise
+     */
+    public static boolean isSupported(int glVersion) {
+        return glVersion >= 3 && Build.VERSION.SDK_INT >= Build.VERSION_CODES.N;
+    }
+
+    /**
+     * Creates a new PixelBufferReader object.<br>
+     * Must be called with the OpenGL ES 3.x context current.
+     *
+     * @param size the size in bytes of the frames to read, 4 bytes per RGBA pixel
+     */
+    public PixelBufferReader(int size) {
+        mSize = size;
+        mBuffers = new int[BUFFER_COUNT];
+        GLES30.glGenBuffers(BUFFER_COUNT, mBuffers, 0);
+        for (int id : mBuffers) {
+            GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, id);
+            GLES30.glBufferData(GLES30.GL_PIXEL_PACK_BUFFER, size, null, GLES30.GL_STREAM_READ);
+        }
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+        checkGLError("glBufferData");
+    }
+
+    /**
+     * Starts reading the RGBA pixels of the current read framebuffer and copies the
+     * oldest frame read into the provided buffer.
+     *
+     * @param x      the x coordinate of the rectangle to read
+     * @param y      the y coordinate of the rectangle to read
+     * @param width  the width of the rectangle to read
+     * @param height the height of the rectangle to read, {@code width * height * 4} must be
+     *               the size specified in the constructor
+     * @param buffer the output buffer
+     * @return {@code true} if a frame has been copied into the buffer, {@code false} if the
+     * pipeline is still filling up
+     */
+    public boolean read(int x, int y, int width, int height, ByteBuffer buffer) {
+
+        // Queue the copy of the current frame, the call returns immediately
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, mBuffers[mIndex]);
+        GLES30.glReadPixels(x, y, width, height, GLES30.GL_RGBA, GLES30.GL_UNSIGNED_BYTE, 0);
+        mIndex = (mIndex + 1) % BUFFER_COUNT;
+        if (mQueued < BUFFER_COUNT - 1) {
+            mQueued++;
+            GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+            return false;
+        }
+
+        // Map the oldest buffer, that is the next one to be written
+        boolean copied = false;
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, mBuffers[mIndex]);
+        ByteBuffer mapped = (ByteBuffer) GLES30.glMapBufferRange(
+                GLES30.GL_PIXEL_PACK_BUFFER, 0, mSize, GLES30.GL_MAP_READ_BIT);
+        if (mapped != null) {
+            buffer.clear();
+            buffer.put(mapped);
+            buffer.rewind();
+            GLES30.glUnmapBuffer(GLES30.GL_PIXEL_PACK_BUFFER);
+            copied = true;
+        }
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+        return copied;
+    }
+
+    /**
+     * Releases the pixel buffers.<br>
+     * Must be called with the OpenGL ES context current; the buffers are also released
+     * when the context is destroyed.
+     */
+    public void release() {
+        GLES30.glDeleteBuffers(BUFFER_COUNT, mBuffers, 0);
+    }
+
+    /**
+     * Check if GL error has been recorded since the last call to this function.
+     *
+     * @param op the name of the operation, use to create the Exception message
+     */
+    private static void checkGLError(String op) {
+        int error = GLES30.glGetError();
+        if (error != GLES30.GL_NO_ERROR)
+            throw new RuntimeException(op + " error: " + error);
+    }
+}
@@ -29,7 +29,14 @@ import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 
 /**
- * Implements a renderer for rendering a texture onto a surface using OpenGL ES 2.0.
+ * Implements a renderer for rendering a texture onto a surface using OpenGL ES 2.0.<br>
+ * Besides drawing the frame converted to Y, U, V (4 bytes per pixel), the renderer can pack
+ * the frame as NV21 directly on the GPU: the Y plane and the half-size interleaved VU plane
+ * are rendered into an RGBA framebuffer a quarter of the frame wide, so that each texel holds
+ * 4 bytes of the NV21 image and a single readback of 1.5 bytes per pixel returns the
+ * complete image.<br>
+ * The frame can also be drawn as is onto a window surface, such as the input surface of a
+ * video encoder, so that it never leaves the GPU.
  */
 public class TextureRender {
 
@@ -68,12 +75,80 @@ public class TextureRender {
             "  color = color + vec4(0.0, 0.5, 0.5, 0.0);\n" +
             "  gl_FragColor = color;\n" +
             "}\n";
+    private static final String NV21_VERTEX_SHADER = "" +
+            "attribute vec3 aPosition;\n" +
+            "void main() {\n" +
+            "  gl_Position = vec4(aPosition, 1.0);\n" +
+            "}\n";
+    private static final String NV21_FRAGMENT_SHADER = "" +
+            "#extension GL_OES_EGL_image_external : require\n" +
+            // Pixel coordinates need more than mediump on large frames
+            "#ifdef GL_FRAGMENT_PRECISION_HIGH\n" +
+            "precision highp float;\n" +
+            "#else\n" +
+            "precision mediump float;\n" +
+            "#endif\n" +
+            // BT.709 RGB->YUV conversion coefficients
+            "const vec3 ycoeff = vec3( 0.2126 ,  0.7152 ,  0.0722 );\n" +
+            "const vec3 ucoeff = vec3(-0.09991, -0.33609,  0.436  );\n" +
+            "const vec3 vcoeff = vec3( 0.615  , -0.55861, -0.05639);\n" +
+            "uniform samplerExternalOES sTexture;\n" +
+            "uniform vec2 uSize;\n" +
+            "uniform float uChroma;\n" +
+            "vec3 rgb(float x, float y) {\n" +
+            "  return texture2D(sTexture, vec2(x, y) / uSize).rgb;\n" +
+            "}\n" +
+            "void main() {\n" +
+            "  float x = floor(gl_FragCoord.x) * 4.0;\n" +
+            "  if (uChroma < 0.5) {\n" +
+            // Y plane: 4 horizontal pixels per texel
+            "    float y = gl_FragCoord.y;\n" +
+            "    gl_FragColor = vec4(dot(rgb(x + 0.5, y), ycoeff), dot(rgb(x + 1.5, y), ycoeff),\n" +
+            "                        dot(rgb(x + 2.5, y), ycoeff), dot(rgb(x + 3.5, y), ycoeff));\n" +
+            "  } else {\n" +
+            // VU plane: 2 blocks of 2x2 pixels per texel, sampled at the block centers
+            "    float y = (floor(gl_FragCoord.y) - uSize.y) * 2.0 + 1.0;\n" +
+            "    vec3 c0 = rgb(x + 1.0, y);\n" +
+            "    vec3 c1 = rgb(x + 3.0, y);\n" +
+            "    gl_FragColor = vec4(dot(c0, vcoeff), dot(c0, ucoeff),\n" +
+            "                        dot(c1, vcoeff), dot(c1, ucoeff)) + vec4(0.5);\n" +
+            "  }\n" +
+            "}\n";
+
+    private static final String COPY_VERTEX_SHADER = "" +
+            "uniform mat4 uSTMatrix;\n" +
+            "attribute vec3 aPosition;\n" +
+            "attribute vec4 aTextureCoord;\n" +
+            "varying vec2 vTextureCoord;\n" +
+            "void main() {\n" +
+            "  vTextureCoord = (uSTMatrix * aTextureCoord).xy;\n" +
+            "  gl_Position = vec4(aPosition, 1.0);\n" +
+            "}\n";
+    private static final String COPY_FRAGMENT_SHADER = "" +
+            "#extension GL_OES_EGL_image_external : require\n" +
+            "precision mediump float;\n" +
+            "varying vec2 vTextureCoord;\n" +
+            "uniform samplerExternalOES sTexture;\n" +
+            "void main() {\n" +
+            "  gl_FragColor = texture2D(sTexture, vTextureCoord);\n" +
+            "}\n";
 
     private final Shader mShader;                       // The shader program
     private final int mVBO;                             // The vertex buffer object ID
     private final int mTex;                             // The texture ID
     private final int maPositionLocation;               // The location of the 'aPosition' attribute
     private final int maTextureLocation;                // The location of the 'aTextureCoord' attribute
+    private Shader mNV21Shader;                         // The NV21 packing shader program
+    private int maNV21PositionLocation;                 // The location of the NV21 'aPosition' attribute
+    private int muNV21SizeLocation;                     // The location of the NV21 'uSize' uniform
+    private int muNV21ChromaLocation;                   // The location of the NV21 'uChroma' uniform
+    private int mNV21Tex;                               // The NV21 framebuffer texture ID
+    private int mNV21FBO;                               // The NV21 framebuffer object ID
+    private int mNV21Width, mNV21Height;                // The frame size the NV21 framebuffer is made for
+    private Shader mCopyShader;                         // The RGB copy shader program
+    private int maCopyPositionLocation;                 // The location of the copy 'aPosition' attribute
+    private int maCopyTextureLocation;                  // The location of the copy 'aTextureCoord' attribute
+    private int muCopySTMatrixLocation;                 // The location of the copy 'uSTMatrix' uniform
 
     // Initializes static data
     static {
@@ -166,14 +241,206 @@ public class TextureRender {
         // Draw the frame
         GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
 
-        // Block until all GL execution is complete
-        GLES20.glFinish();
+        // No glFinish(): a synchronous glReadPixels waits for the rendering anyway,
+        // and a PixelBufferReader must not stall the pipeline
 
         // Unbind
         GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, 0);
         GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
     }
 
+    /**
+     * Draws the current frame as is (RGB) onto the current surface, typically the input
+     * surface of a video encoder.<br>
+     * Unlike {@link #draw()}, the SurfaceTexture transform is applied, so that the frame
+     * is upright on a window surface.
+     *
+     * @param stMatrix the transform matrix of the SurfaceTexture the frame comes from
+     * @param width    the surface width in pixels
+     * @param height   the surface height in pixels
+     */
+    public void drawRGB(float[] stMatrix, int width, int height) {
+
+        // Create the program
+        if (mCopyShader == null) {
+            mCopyShader = new Shader(COPY_VERTEX_SHADER, COPY_FRAGMENT_SHADER);
+            maCopyPositionLocation = GLES20.glGetAttribLocation(mCopyShader.program, "aPosition");
+            checkGLError("glGetAttribLocation(aPosition)");
+            if (maCopyPositionLocation == -1)
+                throw new RuntimeException("can't get location for aPosition");
+            maCopyTextureLocation = GLES20.glGetAttribLocation(mCopyShader.program, "aTextureCoord");
+            checkGLError("glGetAttribLocation(aTextureCoord)");
+            if (maCopyTextureLocation == -1)
+                throw new RuntimeException("can't get location for aTextureCoord");
+            muCopySTMatrixLocation = GLES20.glGetUniformLocation(mCopyShader.program, "uSTMatrix");
+            checkGLError("glGetUniformLocation(uSTMatrix)");
+        }
+
+        // Select the shader program
+        GLES20.glViewport(0, 0, width, height);
+        mCopyShader.use();
+        GLES20.glUniformMatrix4fv(muCopySTMatrixLocation, 1, false, stMatrix, 0);
+
+        // Bind and configure the VBO and the texture
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mVBO);
+        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, mTex);
+        GLES20.glVertexAttribPointer(maCopyPositionLocation, 3, GLES20.GL_FLOAT, false,
+                TRIANGLE_VERTICES_DATA_STRIDE_BYTES,
+                TRIANGLE_VERTICES_DATA_POS_OFFSET_BYTES);
+        GLES20.glEnableVertexAttribArray(maCopyPositionLocation);
+        GLES20.glVertexAttribPointer(maCopyTextureLocation, 2, GLES20.GL_FLOAT, false,
+                TRIANGLE_VERTICES_DATA_STRIDE_BYTES,
+                TRIANGLE_VERTICES_DATA_TEX_OFFSET_BYTES);
+        GLES20.glEnableVertexAttribArray(maCopyTextureLocation);
+
+        // Draw the frame, the whole surface is covered so there's nothing to clear
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+
+        // Unbind
+        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, 0);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+    }
+
+    /**
+     * Whether a frame of the specified size can be packed as NV21 on the GPU.
+     *
+     * @param width  the frame width in pixels
+     * @param height the frame height in pixels
+     * @return {@code true} if the width is a multiple of 4 and the height is even
+     */
+    public static boolean isNV21Supported(int width, int height) {
+        return width % 4 == 0 && height % 2 == 0;
+    }
+
+    /**
+     * Draws the current frame packed as NV21 into the NV21 framebuffer.<br>
+     * The first pass renders the Y plane, the second one the interleaved VU plane.
+     *
+     * @param width  the frame width in pixels, see {@link #isNV21Supported(int, int)}
+     * @param height the frame height in pixels
+     */
+    public void drawNV21(int width, int height) {
+
+        setupNV21(width, height);
+
+        // Select the framebuffer and the shader program
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mNV21FBO);
+        mNV21Shader.use();
+        GLES20.glUniform2f(muNV21SizeLocation, width, height);
+
+        // Bind and configure the VBO and the texture
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mVBO);
+        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, mTex);
+        GLES20.glVertexAttribPointer(maNV21PositionLocation, 3, GLES20.GL_FLOAT, false,
+                TRIANGLE_VERTICES_DATA_STRIDE_BYTES,
+                TRIANGLE_VERTICES_DATA_POS_OFFSET_BYTES);
+        GLES20.glEnableVertexAttribArray(maNV21PositionLocation);
+
+        // Y plane
+        GLES20.glViewport(0, 0, width / 4, height);
+        GLES20.glUniform1f(muNV21ChromaLocation, 0.0f);
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+
+        // Interleaved VU plane, right above the Y plane
+        GLES20.glViewport(0, height, width / 4, height / 2);
+        GLES20.glUniform1f(muNV21ChromaLocation, 1.0f);
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+
+        // No glFinish(): a synchronous glReadPixels waits for the rendering anyway,
+        // and a PixelBufferReader must not stall the pipeline
+
+        // Unbind and restore the default viewport
+        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, 0);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        GLES20.glViewport(0, 0, width, height);
+    }
+
+    /**
+     * Reads the NV21 frame drawn by {@link #drawNV21(int, int)} into the provided buffer.
+     *
+     * @param width  the frame width in pixels
+     * @param height the frame height in pixels
+     * @param buffer the output buffer, its size should be width * height * 3 / 2
+     */
+    public void getNV21Pixels(int width, int height, ByteBuffer buffer) {
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mNV21FBO);
+        GLES20.glReadPixels(0, 0, width / 4, height * 3 / 2,
+                GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, buffer);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        buffer.rewind();
+    }
+
+    /**
+     * Starts reading the NV21 frame drawn by {@link #drawNV21(int, int)} through a
+     * {@link PixelBufferReader}, and copies the oldest frame read into the provided buffer.
+     *
+     * @param width  the frame width in pixels
+     * @param height the frame height in pixels
+     * @param reader the reader, created for width * height * 3 / 2 bytes
+     * @param buffer the output buffer, its size should be width * height * 3 / 2
+     * @return {@code true} if a frame has been copied into the buffer, {@code false} otherwise
+     */
+    public boolean getNV21Pixels(int width, int height, PixelBufferReader reader, ByteBuffer buffer) {
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mNV21FBO);
+        boolean copied = reader.read(0, 0, width / 4, height * 3 / 2, buffer);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        return copied;
+    }
+
+    /**
+     * Creates the NV21 shader program and the framebuffer for the specified frame size,
+     * if not done yet.
+     */
+    private void setupNV21(int width, int height) {
+
+        int[] id = new int[1];
+
+        // Create the program
+        if (mNV21Shader == null) {
+            mNV21Shader = new Shader(NV21_VERTEX_SHADER, NV21_FRAGMENT_SHADER);
+            maNV21PositionLocation = GLES20.glGetAttribLocation(mNV21Shader.program, "aPosition");
+            checkGLError("glGetAttribLocation(aPosition)");
+            if (maNV21PositionLocation == -1)
+                throw new RuntimeException("can't get location for aPosition");
+            muNV21SizeLocation = GLES20.glGetUniformLocation(mNV21Shader.program, "uSize");
+            muNV21ChromaLocation = GLES20.glGetUniformLocation(mNV21Shader.program, "uChroma");
+            checkGLError("glGetUniformLocation");
+        }
+
+        // Create the framebuffer, a quarter of the frame wide and one and a half high
+        if (mNV21Width != width || mNV21Height != height) {
+            if (mNV21FBO != 0) {
+                id[0] = mNV21FBO;
+                GLES20.glDeleteFramebuffers(1, id, 0);
+                id[0] = mNV21Tex;
+                GLES20.glDeleteTextures(1, id, 0);
+            }
+            GLES20.glGenTextures(1, id, 0);
+            mNV21Tex = id[0];
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mNV21Tex);
+            GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, width / 4, height * 3 / 2,
+                    0, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D,
+                    GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_NEAREST);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D,
+                    GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_NEAREST);
+            checkGLError("glTexImage2D");
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+            GLES20.glGenFramebuffers(1, id, 0);
+            mNV21FBO = id[0];
+            GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mNV21FBO);
+            GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
+                    GLES20.GL_TEXTURE_2D, mNV21Tex, 0);
+            int status = GLES20.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER);
+            GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+            if (status != GLES20.GL_FRAMEBUFFER_COMPLETE)
+                throw new RuntimeException("NV21 framebuffer incomplete: " + status);
+            mNV21Width = width;
+            mNV21Height = height;
+        }
+    }
+
     /**
      * Reads the frame pixels into the provided buffer.
      *
@@ -90,15 +90,18 @@ public abstract class AudioCodec {
 
     /**
      * Pushes new data to the codec queue.<br>
-     * If the queue is full, the data is silently dropped.
+     * If the queue is full, the data is silently dropped.<br>
+     * The queue holds its own reference to the data, the caller keeps its one.
      *
      * @param data the audio data to be processed
      * @return true if the data has been added successfully, false if it was dropped
      * @throws InterruptedException if interrupted while waiting
      */
     public boolean push(AudioData data) throws InterruptedException {
+        data.retain();
         if (mQueue.offer(data, QUEUE_WRITE_TIMEOUT, TimeUnit.MILLISECONDS))
             return true;
+        data.release();
         Log.v(TAG, "cannot add the data, the queue is full");
         return false;
     }
@@ -106,7 +109,8 @@ public abstract class AudioCodec {
     /**
      * Pops some data from the coded queue.
      *
-     * @return the retrieved data, null if the operation timed out
+     * @return the retrieved data, null if the operation timed out; the caller must
+     * release it when done
      * @throws InterruptedException if interrupted while waiting
      */
     protected AudioData pop() throws InterruptedException {
@@ -115,4 +119,13 @@ public abstract class AudioCodec {
             Log.v(TAG, "cannot get the data, the queue is empty");
         return data;
     }
+
+    /**
+     * Removes all the data from the codec queue, releasing them.
+     */
+    protected void clearQueue() {
+        AudioData data;
+        while ((data = mQueue.poll()) != null)
+            data.release();
+    }
 }
@@ -23,8 +23,15 @@ package com.spynet.camera.media;
 
 import android.media.AudioFormat;
 
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
- * Defines a buffer containing audio data.
+ * Defines a buffer containing audio data.<br>
+ * Buffers are reference counted like {@link VideoFrame}: the creator owns the first
+ * reference, anyone that keeps the buffer must {@link #retain()} and {@link #release()} it.<br>
+ * Uncompressed audio may be stored either in an array or in a direct {@link ByteBuffer},
+ * which lets the audio go from the recorder to the encoder input without heap copies.
  */
 public class AudioData {
 
@@ -34,9 +41,12 @@ public class AudioData {
     private static final int TYPE_AUDIO_CONFIG = 3;
 
     private final byte[] data;                      // The audio data
+    private final ByteBuffer buffer;                // The audio data, if stored in a direct buffer
     private final int format;                       // The data format
     private final int type;                         // The data type
     private final long timestamp;                   // The timestamp
+    private final BufferPool pool;                  // The pool that owns data, null if not pooled
+    private final AtomicInteger references;         // The reference count
 
     /**
      * Creates a new AudioData object that contains uncompressed audio.
@@ -46,10 +56,50 @@ public class AudioData {
      * @param timestamp the timestamp
      */
     public AudioData(byte[] data, int format, long timestamp) {
-        this.data = (data != null ? data.clone() : null);
+        this(null, data != null ? data.clone() : null, format, timestamp);
+    }
+
+    /**
+     * Creates a new AudioData object that contains uncompressed audio stored in a
+     * pooled buffer.<br>
+     * The object takes ownership of the buffer, which is not copied and is given back to
+     * the pool when the last reference is released.
+     *
+     * @param pool      the pool the buffer was acquired from
+     * @param data      the raw data
+     * @param format    the data format ({@link AudioFormat})
+     * @param timestamp the timestamp
+     */
+    public AudioData(BufferPool pool, byte[] data, int format, long timestamp) {
+        this.data = data;
+        this.buffer = null;
+        this.format = format;
+        this.timestamp = timestamp;
+        this.type = TYPE_UNCOMPRESSED_AUDIO;
+        this.pool = pool;
+        this.references = new AtomicInteger(1);
+    }
+
+    /**
+     * Creates a new AudioData object that contains uncompressed audio stored in a
+     * pooled direct buffer.<br>
+     * The object takes ownership of the buffer, whose content goes from the position to the
+     * limit; the buffer is not copied and is given back to the pool when the last reference
+     * is released.
+     *
+     * @param pool      the pool the buffer was acquired from
+     * @param buffer    the raw data
+     * @param format    the data format ({@link AudioFormat})
+     * @param timestamp the timestamp
+     */
+    public AudioData(BufferPool pool, ByteBuffer buffer, int format, long timestamp) {
+        this.data = null;
+        this.buffer = buffer;
         this.format = format;
         this.timestamp = timestamp;
         this.type = TYPE_UNCOMPRESSED_AUDIO;
+        this.pool = pool;
+        this.references = new AtomicInteger(1);
     }
 
     /**
@@ -60,9 +110,12 @@ public class AudioData {
      */
     public AudioData(byte[] data, long timestamp) {
         this.data = (data != null ? data.clone() : null);
+        this.buffer = null;
         this.format = FORMAT_COMPRESSED;
         this.timestamp = timestamp;
         this.type = TYPE_COMPRESSED_AUDIO;
+        this.pool = null;
+        this.references = new AtomicInteger(1);
     }
 
     /**
@@ -72,18 +125,75 @@ public class AudioData {
      */
     public AudioData(byte[] data) {
         this.data = (data != null ? data.clone() : null);
+        this.buffer = null;
         this.format = FORMAT_COMPRESSED;
         this.timestamp = 0;
         this.type = TYPE_AUDIO_CONFIG;
+        this.pool = null;
+        this.references = new AtomicInteger(1);
     }
 
     /**
-     * @return the raw data
+     * Adds a reference to the buffer.
+     *
+     * @return this object
+     * @throws IllegalStateException if the buffer has already been released
+     */
+    public AudioData retain() {
+        if (references.getAndIncrement() <= 0)
+            throw new IllegalStateException("the audio data has already been released");
+        return this;
+    }
+
+    /**
+     * Releases a reference to the buffer.<br>
+     * When the last reference is released, the data goes back to the pool.
+     *
+     * @throws IllegalStateException if the buffer has already been released
+     */
+    public void release() {
+        int count = references.decrementAndGet();
+        if (count < 0)
+            throw new IllegalStateException("the audio data has already been released");
+        if (count == 0 && pool != null) {
+            if (data != null)
+                pool.release(data);
+            else if (buffer != null)
+                pool.release(buffer);
+        }
+    }
+
+    /**
+     * @return the raw data, {@code null} if the data is stored in a direct buffer
      */
     public byte[] getData() {
         return data;
     }
 
+    /**
+     * @return the raw data size in bytes, 0 if there is no data
+     */
+    public int getSize() {
+        if (data != null)
+            return data.length;
+        if (buffer != null)
+            return buffer.remaining();
+        return 0;
+    }
+
+    /**
+     * Copies the raw data to the specified buffer, at its current position.<br>
+     * The data is left untouched, so that it can be copied again.
+     *
+     * @param dst the destination buffer
+     */
+    public void copyTo(ByteBuffer dst) {
+        if (data != null)
+            dst.put(data);
+        else if (buffer != null)
+            dst.put(buffer.duplicate());
+    }
+
     /**
      * @return the data format ({@link AudioFormat})
      */
@@ -21,9 +21,13 @@
 
 package com.spynet.camera.media;
 
+import android.annotation.TargetApi;
 import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.util.Log;
 
 import org.jetbrains.annotations.Nullable;
@@ -31,9 +35,12 @@ import org.jetbrains.annotations.Nullable;
 import java.io.Closeable;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 
 /**
- * Implements an audio encoder that encodes incoming uncompressed audio.
+ * Implements an audio encoder that encodes incoming uncompressed audio.<br>
+ * On API 23 and above the encoder runs in asynchronous mode, driven by the codec callbacks
+ * on a dedicated thread; a polling thread is used otherwise.
  */
 @SuppressWarnings("deprecation")
 public class AudioEncoder extends AudioCodec implements Closeable {
@@ -41,7 +48,11 @@ public class AudioEncoder extends AudioCodec implements Closeable {
     private final MediaCodec mEncoder;              // The underlying encoder
     private ByteBuffer[] mInputBuffers;             // The encoder input buffers
     private ByteBuffer[] mOutputBuffers;            // The encoder output buffers
-    private Thread mEncoderThread;                  // The encoding thread
+    private Thread mEncoderThread;                  // The encoding thread, synchronous mode only
+    private HandlerThread mCallbackThread;          // The thread running the callbacks, asynchronous mode only
+    private volatile Handler mCallbackHandler;      // The Handler of mCallbackThread
+    private final ArrayDeque<Integer> mFreeInputs;  // The input buffers waiting for data, asynchronous mode only
+    private final Runnable mFeeder;                 // Fills the free input buffers, asynchronous mode only
     private int mBitrate;                           // The stream bitrate
     private volatile ByteBuffer mAudioCfg;          // The current audio configuration
 
@@ -53,6 +64,13 @@ public class AudioEncoder extends AudioCodec implements Closeable {
     public AudioEncoder(CodecCallback callback) throws IOException {
         super(callback);
         mEncoder = MediaCodec.createEncoderByType(MIME_TYPE);
+        mFreeInputs = new ArrayDeque<>();
+        mFeeder = new Runnable() {
+            @Override
+            public void run() {
+                feedInputs();
+            }
+        };
     }
 
     /**
@@ -70,13 +88,17 @@ public class AudioEncoder extends AudioCodec implements Closeable {
         mediaFormat.setInteger(MediaFormat.KEY_BIT_RATE, bitrate);
         mediaFormat.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, inputBufferSize);
         mediaFormat.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectMain);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M)
+            startCallbacks();
         mEncoder.configure(mediaFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
 
         // Start the encoder
         mEncoder.start();
-        mInputBuffers = mEncoder.getInputBuffers();
-        mOutputBuffers = mEncoder.getOutputBuffers();
-        startEncoding();
+        if (mCallbackThread == null) {
+            mInputBuffers = mEncoder.getInputBuffers();
+            mOutputBuffers = mEncoder.getOutputBuffers();
+            startEncoding();
+        }
 
         // Store properties
         mBitrate = bitrate;
@@ -89,6 +111,7 @@ public class AudioEncoder extends AudioCodec implements Closeable {
     public void close() {
         stopEncoding();
         mEncoder.stop();
+        stopCallbacks();
         mInputBuffers = null;
         mOutputBuffers = null;
         mBitrate = 0;
@@ -101,6 +124,7 @@ public class AudioEncoder extends AudioCodec implements Closeable {
      */
     public void release() {
         mEncoder.release();
+        stopCallbacks();
     }
 
     /**
@@ -118,6 +142,143 @@ public class AudioEncoder extends AudioCodec implements Closeable {
         return mAudioCfg;
     }
 
+    /**
+     * {@inheritDoc}<br>
+     * In asynchronous mode the data is sent to the encoder as soon as an input buffer
+     * is available.
+     */
+    @Override
+    public boolean push(AudioData data) throws InterruptedException {
+        boolean pushed = super.push(data);
+        Handler handler = mCallbackHandler;
+        if (pushed && handler != null)
+            handler.post(mFeeder);
+        return pushed;
+    }
+
+    /**
+     * Helper to set the asynchronous mode up: the encoder callbacks run on a dedicated
+     * thread, that fills the input buffers as the audio data arrives and forwards the output
+     * buffers as soon as they are available.<br>
+     * Requires API 23, must be called before configuring the encoder.
+     */
+    @TargetApi(Build.VERSION_CODES.M)
+    private void startCallbacks() {
+        mCallbackThread = new HandlerThread(TAG);
+        mCallbackThread.start();
+        mCallbackHandler = new Handler(mCallbackThread.getLooper());
+        mEncoder.setCallback(new MediaCodec.Callback() {
+            @Override
+            public void onInputBufferAvailable(MediaCodec codec, int index) {
+                mFreeInputs.add(index);
+                feedInputs();
+            }
+
+            @Override
+            public void onOutputBufferAvailable(MediaCodec codec, int index, MediaCodec.BufferInfo info) {
+                try {
+                    processOutput(codec.getOutputBuffer(index), index, info);
+                } catch (IllegalStateException e) {
+                    Log.w(TAG, "output buffer no longer available", e);
+                }
+            }
+
+            @Override
+            public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+                Log.e(TAG, "unexpected error while encoding", e);
+            }
+
+            @Override
+            public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+                processFormat(format);
+            }
+        }, mCallbackHandler);
+        Log.d(TAG, "asynchronous mode started");
+    }
+
+    /**
+     * Helper to stop the asynchronous mode, once the encoder has been stopped.
+     */
+    private void stopCallbacks() {
+        if (mCallbackThread != null) {
+            mCallbackHandler = null;
+            mCallbackThread.quit();
+            try {
+                mCallbackThread.join();
+            } catch (InterruptedException e) {
+                Log.e(TAG, "stop callbacks interrupted");
+            }
+            mCallbackThread = null;
+            mFreeInputs.clear();
+            clearQueue();
+        }
+    }
+
+    /**
+     * Fills the free input buffers with the queued audio data.<br>
+     * Runs on the callback thread, in asynchronous mode.
+     */
+    @TargetApi(Build.VERSION_CODES.M)
+    private void feedInputs() {
+        AudioData audioData;
+        while (!mFreeInputs.isEmpty() && (audioData = mQueue.poll()) != null) {
+            try {
+                int size = audioData.getSize();
+                if (size == 0) {
+                    Log.w(TAG, "null data received");
+                    continue;
+                }
+                int index = mFreeInputs.peek();
+                ByteBuffer inBuffer = mEncoder.getInputBuffer(index);
+                if (inBuffer == null || size > inBuffer.capacity()) {
+                    Log.e(TAG, "insufficient buffer size, data length is " + size);
+                    continue;
+                }
+                mFreeInputs.poll();
+                inBuffer.clear();
+                audioData.copyTo(inBuffer);
+                mEncoder.queueInputBuffer(index, 0, size, audioData.getTimestamp(), 0);
+            } catch (IllegalStateException e) {
+                Log.w(TAG, "input buffer no longer available", e);
+                mFreeInputs.clear();
+            } finally {
+                audioData.release();
+            }
+        }
+    }
+
+    /**
+     * Forwards an encoded buffer to the client, and gives it back to the encoder.
+     *
+     * @param outBuffer the output buffer
+     * @param index     the output buffer index
+     * @param info      the output buffer metadata
+     */
+    private void processOutput(ByteBuffer outBuffer, int index, MediaCodec.BufferInfo info) {
+        byte[] data = new byte[info.size];
+        outBuffer.position(info.offset);
+        outBuffer.limit(info.offset + info.size);
+        outBuffer.get(data, 0, info.size);
+        mEncoder.releaseOutputBuffer(index, false);
+        if (mCodecCallback != null) {
+            mCodecCallback.onDataAvailable(this, data, info);
+        }
+    }
+
+    /**
+     * Handles a change of the output format, that brings the audio configuration.
+     *
+     * @param newFormat the new output format
+     */
+    private void processFormat(MediaFormat newFormat) {
+        // Subsequent data will conform to new format
+        mAudioCfg = newFormat.getByteBuffer("csd-0");
+        Log.i(TAG, "output format changed to " + newFormat.toString());
+        if (mCodecCallback != null) {
+            mCodecCallback.onOutputFormatChanged(this, newFormat);
+        }
+    }
+
     /**
      * Helper to start the encoding thread.
      */
@@ -151,11 +312,12 @@ public class AudioEncoder extends AudioCodec implements Closeable {
      */
     private void doEncode() {
 
-        ByteBuffer outBuffer, inBuffer;     // In/out buffers
+        ByteBuffer inBuffer;                // Input buffer
         AudioData audioData;                // Incoming uncompressed audio data
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
 
         // Reset the input queue
-        mQueue.clear();
+        clearQueue();
 
         // Encoder loop
         Log.d(TAG, "encoder loop started");
@@ -169,50 +331,37 @@ public class AudioEncoder extends AudioCodec implements Closeable {
                     inBuffer.clear();
                     audioData = pop();
                     if (audioData != null) {
-                        byte[] data = audioData.getData();
-                        if (data != null) {
-                            if (data.length > inBuffer.capacity()) {
+                        int size = audioData.getSize();
+                        if (size != 0) {
+                            if (size > inBuffer.capacity()) {
                                 Log.e(TAG, "insufficient buffer size (" + inBuffer.capacity() + "), " +
-                                        "data length is " + data.length);
+                                        "data length is " + size);
+                                audioData.release();
                                 break;
                             }
-                            inBuffer.put(data);
-                            mEncoder.queueInputBuffer(inputBufferId, 0, data.length,
+                            audioData.copyTo(inBuffer);
+                            mEncoder.queueInputBuffer(inputBufferId, 0, size,
                                     audioData.getTimestamp(), 0);
                         } else {
                             Log.w(TAG, "null data received");
                             mEncoder.queueInputBuffer(inputBufferId, 0, 0, 0, 0);
                         }
+                        audioData.release();
                     } else {
                         Log.e(TAG, "timeout reading from the queue");
                         mEncoder.queueInputBuffer(inputBufferId, 0, 0, 0, 0);
                     }
                 }
                 // Process output buffer
-                MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
                 int outputBufferId = mEncoder.dequeueOutputBuffer(info, BUFFER_TIMEOUT);
                 if (outputBufferId >= 0) {
                     // Output buffer is ready to be processed
-                    outBuffer = mOutputBuffers[outputBufferId];
-                    byte[] data = new byte[info.size];
-                    outBuffer.position(info.offset);
-                    outBuffer.limit(info.offset + info.size);
-                    outBuffer.get(data, info.offset, info.size);
-                    mEncoder.releaseOutputBuffer(outputBufferId, false);
-                    if (mCodecCallback != null) {
-                        mCodecCallback.onDataAvailable(this, data, info);
-                    }
+                    processOutput(mOutputBuffers[outputBufferId], outputBufferId, info);
                 } else if (outputBufferId == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
                     mOutputBuffers = mEncoder.getOutputBuffers();
                     Log.d(TAG, "output buffers changed");
                 } else if (outputBufferId == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                    // Subsequent data will conform to new format
-                    MediaFormat newFormat = mEncoder.getOutputFormat();
-                    mAudioCfg = newFormat.getByteBuffer("csd-0");
-                    Log.i(TAG, "output format changed to " + newFormat.toString());
-                    if (mCodecCallback != null) {
-                        mCodecCallback.onOutputFormatChanged(this, newFormat);
-                    }
+                    processFormat(mEncoder.getOutputFormat());
                 }
             } catch (InterruptedException e) {
                 Log.v(TAG, "encoder loop interrupted");
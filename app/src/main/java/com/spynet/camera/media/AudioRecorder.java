@@ -27,31 +27,43 @@ import android.util.Log;
 
 import com.spynet.camera.common.TimeStamp;
 
+import org.jetbrains.annotations.NotNull;
+
 import java.io.Closeable;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
 
 import static android.media.AudioFormat.CHANNEL_IN_MONO;
 import static android.media.AudioFormat.ENCODING_PCM_16BIT;
 
 /**
  * Implements a wrapper to the underlying audio resources.<br>
- * The acquired audio data will be delivered to the client Context trough the AudioCallback.
+ * The acquired audio data will be delivered to the client Context trough the AudioCallback.<br>
+ * The audio is read straight into pooled direct buffers, that the client can pass on to
+ * the encoder without copying them to the Java heap.
  */
 
 public class AudioRecorder implements Closeable {
 
     protected final String TAG = getClass().getSimpleName();
 
-    // The interval in which the recorded samples are sent to the client, in milliseconds
-    private static final int TIMER_INTERVAL = 120;
+    // The default interval in which the recorded samples are sent to the client, in milliseconds
+    public static final int TIMER_INTERVAL = 120;
+    // The interval used for low latency capture, in milliseconds
+    public static final int SHORT_TIMER_INTERVAL = 20;
+    // The shortest interval allowed, in milliseconds
+    private static final int MIN_TIMER_INTERVAL = 10;
 
     private final AudioRecord mRecorder;            // The AudioRecord used to manage the audio resources
-    private final byte[] mBuffer;                   // The acquisition buffer
+    private final BufferPool mPool;                 // The pool of the acquisition buffers
+    private final int mBufferSize;                  // The acquisition buffer size
     private AudioRecorder.AudioCallback mCallback;  // The AudioCallback implemented by mContext
     private Thread mRecorderThread;                 // The recorder thread
-    private int mTimeInterval;                      // The effective time interval in milliseconds
+    private final int mTimeInterval;                // The effective time interval in milliseconds
 
-    private volatile int mGain;                     // The audio gain (power of 2)
+    private volatile double mGain;                  // The audio gain in dB
+    private volatile short[] mGainTable;            // The gain lookup table, null for unity gain
     private volatile boolean mMute;                 // Mute the mic
 
     /**
@@ -60,30 +72,36 @@ public class AudioRecorder implements Closeable {
     public interface AudioCallback {
         /**
          * Called when new audio data is available.<br>
-         * This callback is invoked on a separate thread.
+         * This callback is invoked on a separate thread.<br>
+         * The data is released when the callback returns, the client must retain it
+         * to keep it longer.
          *
-         * @param data      frame data
-         * @param timestamp the timestamp in microseconds
+         * @param data the audio data, stored in a direct buffer
          */
-        void onDataAvailable(byte[] data, long timestamp);
+        void onDataAvailable(AudioData data);
     }
 
     /**
      * Creates a new AudioRecorder object.
      *
      * @param callback    the callback to receive audio data
+     * @param pool        the pool to take the acquisition buffers from
      * @param sampleRate  the sample rate expressed in Hertz
      * @param audioSource the recording source. See {@link MediaRecorder.AudioSource} for the
      *                    recording source definitions.
+     * @param interval    the interval in which the samples are delivered, in milliseconds;
+     *                    shorter intervals reduce the latency at the cost of more callbacks
      */
-    public AudioRecorder(AudioCallback callback, int sampleRate, int audioSource) throws IOException {
+    public AudioRecorder(AudioCallback callback, @NotNull BufferPool pool,
+                         int sampleRate, int audioSource, int interval) throws IOException {
 
         int channelConfig, audioFormat;
         int channels, bitsPerSample, periodInFrames;
         int bufferSize, minBufferSize;
 
-        // Store the callback
+        // Store the callback and the pool
         mCallback = callback;
+        mPool = pool;
 
         // Setup the audio format
         channelConfig = CHANNEL_IN_MONO;    // Guaranteed to work on all devices
@@ -92,15 +110,17 @@ public class AudioRecorder implements Closeable {
         bitsPerSample = 16;
 
         // Determine the buffer size
-        mTimeInterval = TIMER_INTERVAL;
+        mTimeInterval = Math.max(interval, MIN_TIMER_INTERVAL);
         periodInFrames = sampleRate * mTimeInterval / 1000; // frame rate = sample rate
-        bufferSize = periodInFrames * channels * bitsPerSample / 8;
+        mBufferSize = periodInFrames * channels * bitsPerSample / 8;
+
+        // The recorder buffer must be large enough for the device,
+        // but the samples can still be read in shorter periods
+        bufferSize = mBufferSize;
         minBufferSize = AudioRecord.getMinBufferSize(sampleRate, channelConfig, audioFormat);
         if (bufferSize < minBufferSize) {
             bufferSize = minBufferSize;
-            periodInFrames = bufferSize * 8 / channels / bitsPerSample;
-            mTimeInterval = periodInFrames * 1000 / sampleRate;
-            Log.w(TAG, "increasing buffer size to " + bufferSize);
+            Log.w(TAG, "increasing recorder buffer size to " + bufferSize);
         }
 
         // Create and initialize the AudioRecord
@@ -108,7 +128,7 @@ public class AudioRecorder implements Closeable {
         if (mRecorder.getState() != AudioRecord.STATE_INITIALIZED) {
             throw new IOException("cannot initialize the recorder");
         }
-        mBuffer = new byte[bufferSize];
+        Log.d(TAG, "recording " + mBufferSize + " bytes every " + mTimeInterval + " ms");
     }
 
     /**
@@ -161,36 +181,27 @@ public class AudioRecorder implements Closeable {
         while (!Thread.interrupted()) {
             try {
                 // Read audio data
-                int size = mRecorder.read(mBuffer, 0, mBuffer.length);
+                ByteBuffer buffer = mPool.acquireDirect(mBufferSize);
+                int size = mRecorder.read(buffer, mBufferSize);
                 timestamp = TimeStamp.getTimeStamp() - mTimeInterval * 1000L;
-                if (size == mBuffer.length) {
-                    // Force mute or apply the gain
-                    if (mMute) {
-                        for (int i = 0; i < size; i++) {
-                            mBuffer[i] = 0;
-                        }
-                    } else if (mGain != 0) {
-                        if (mRecorder.getAudioFormat() == ENCODING_PCM_16BIT) {
-                            for (int i = 0; i < size; i += 2) {
-                                int pcm = (mBuffer[i + 1] << 8) | (mBuffer[i] & 0xFF);
-                                if (mGain > 0)
-                                    pcm <<= mGain;
-                                else
-                                    pcm >>= -mGain;
-                                if (pcm > Short.MAX_VALUE)
-                                    pcm = Short.MAX_VALUE;
-                                else if (pcm < Short.MIN_VALUE)
-                                    pcm = Short.MIN_VALUE;
-                                mBuffer[i] = (byte) (pcm & 0xFF);
-                                mBuffer[i + 1] = (byte) ((pcm & 0xFFFF) >> 8);
-                            }
-                        } else {
-                            // not implemented
-                        }
-                    }
-                    // Call the client callback
+                if (size != mBufferSize) {
+                    mPool.release(buffer);
+                    continue;
+                }
+                buffer.limit(size);
+                // Force mute or apply the gain
+                if (mRecorder.getAudioFormat() == ENCODING_PCM_16BIT) {
+                    applyGain(buffer.asShortBuffer());
+                } else {
+                    // not implemented
+                }
+                // Call the client callback
+                AudioData audio = new AudioData(mPool, buffer, mRecorder.getAudioFormat(), timestamp);
+                try {
                     if (mCallback != null)
-                        mCallback.onDataAvailable(mBuffer, timestamp);
+                        mCallback.onDataAvailable(audio);
+                } finally {
+                    audio.release();
                 }
             } catch (Exception e) {
                 Log.e(TAG, "unexpected exception while recording", e);
@@ -200,6 +211,27 @@ public class AudioRecorder implements Closeable {
         Log.d(TAG, "recorder loop stopped");
     }
 
+    /**
+     * Forces the mute or applies the gain to 16 bit PCM samples.
+     *
+     * @param samples the samples, in native byte order
+     */
+    private void applyGain(ShortBuffer samples) {
+        int count = samples.limit();
+        if (mMute) {
+            for (int i = 0; i < count; i++) {
+                samples.put(i, (short) 0);
+            }
+        } else {
+            short[] table = mGainTable;
+            if (table != null) {
+                for (int i = 0; i < count; i++) {
+                    samples.put(i, table[samples.get(i) & 0xFFFF]);
+                }
+            }
+        }
+    }
+
     /**
      * @return the configured audio sample rate in Hz
      */
@@ -225,18 +257,32 @@ public class AudioRecorder implements Closeable {
      * @return the buffer size
      */
     public int getBufferSize() {
-        return mBuffer.length;
+        return mBufferSize;
     }
 
     /**
-     * Sets the audio gain.
+     * Sets the audio gain.<br>
+     * The gain is applied through a lookup table, that maps every 16 bit sample
+     * to its amplified and clipped value.
      *
      * @param gain desired audio gain in dB
      */
     public void setGain(double gain) {
-        double dB = Math.pow(10, gain / 20);
-        double g = Math.log(dB) / Math.log(2);
-        mGain = (int) Math.round(g);
+        double factor = Math.pow(10, gain / 20);
+        short[] table = null;
+        if (Math.abs(factor - 1) > 1e-3) {
+            table = new short[1 << 16];
+            for (int i = 0; i < table.length; i++) {
+                long pcm = Math.round((short) i * factor);
+                if (pcm > Short.MAX_VALUE)
+                    pcm = Short.MAX_VALUE;
+                else if (pcm < Short.MIN_VALUE)
+                    pcm = Short.MIN_VALUE;
+                table[i] = (short) pcm;
+            }
+        }
+        mGainTable = table;
+        mGain = gain;
     }
 
     /**
@@ -245,7 +291,7 @@ public class AudioRecorder implements Closeable {
      * @return the current audio gain in dB
      */
     public double getGain() {
-        return 20 * Math.log10(Math.pow(2, mGain));
+        return mGain;
     }
 
     /**
@@ -0,0 +1,200 @@
+/*
+ * This file is part of spyNet Camera, the Android IP camera
+ *
+ * Copyright (C) 2016-2017 Paolo Dematteis
+ *
+ * spyNet Camera is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * spyNet Camera is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Paolo Dematteis - spynet314@gmail.com
+ */
+
+package com.spynet.camera.media;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Locale;
+
+/**
+ * Implements a thread safe pool of byte buffers.<br>
+ * Buffers are grouped by size and are always returned with the exact requested length,
+ * so that they can be used wherever a plain array is expected. Released buffers are kept
+ * for reuse, up to a maximum number per size; the exceeding ones are left to the garbage
+ * collector.<br>
+ * Direct byte buffers, as needed by the native APIs that read into memory outside the Java
+ * heap, are pooled the same way but kept apart from the arrays.
+ */
+public class BufferPool {
+
+    private final String mName;                         // The pool name, used in the statistics
+    private final int mMaxFree;                         // Maximum number of free buffers kept per size
+    private final HashMap<Integer, ArrayDeque<byte[]>>  // The free buffers, by size
+            mFree = new HashMap<>();                    //
+    private final HashMap<Integer, ArrayDeque<ByteBuffer>>  // The free direct buffers, by size
+            mFreeDirect = new HashMap<>();                  //
+    private long mAllocated;                            // Number of buffers allocated
+    private long mReused;                               // Number of buffers taken from the pool
+    private long mDiscarded;                            // Number of released buffers not kept
+    private int mOutstanding;                           // Number of buffers currently in use
+
+    /**
+     * Creates a new BufferPool object.
+     *
+     * @param name    the pool name
+     * @param maxFree the maximum number of free buffers kept for each size
+     */
+    public BufferPool(String name, int maxFree) {
+        mName = name;
+        mMaxFree = maxFree;
+    }
+
+    /**
+     * Takes a buffer from the pool, allocating a new one if none is available.<br>
+     * The buffer content is undefined.
+     *
+     * @param size the buffer size
+     * @return the buffer, exactly {@code size} bytes long
+     */
+    public synchronized byte[] acquire(int size) {
+        mOutstanding++;
+        ArrayDeque<byte[]> free = mFree.get(size);
+        if (free != null && !free.isEmpty()) {
+            mReused++;
+            return free.pop();
+        }
+        mAllocated++;
+        return new byte[size];
+    }
+
+    /**
+     * Takes a buffer from the pool and fills it with a copy of the specified data.
+     *
+     * @param data the data to copy
+     * @return the buffer, as long as {@code data}
+     */
+    public byte[] copyOf(byte[] data) {
+        byte[] buffer = acquire(data.length);
+        System.arraycopy(data, 0, buffer, 0, data.length);
+        return buffer;
+    }
+
+    /**
+     * Gives a buffer back to the pool.<br>
+     * The buffer must not be used after this call.
+     *
+     * @param buffer the buffer, previously returned by {@link #acquire(int)}
+     */
+    public synchronized void release(byte[] buffer) {
+        mOutstanding--;
+        ArrayDeque<byte[]> free = mFree.get(buffer.length);
+        if (free == null) {
+            free = new ArrayDeque<>(mMaxFree);
+            mFree.put(buffer.length, free);
+        }
+        if (free.size() < mMaxFree) {
+            free.push(buffer);
+        } else {
+            mDiscarded++;
+        }
+    }
+
+    /**
+     * Takes a direct buffer from the pool, allocating a new one if none is available.<br>
+     * The buffer is cleared and uses the native byte order; its content is undefined.
+     *
+     * @param size the buffer capacity
+     * @return the buffer, exactly {@code size} bytes large
+     */
+    public synchronized ByteBuffer acquireDirect(int size) {
+        mOutstanding++;
+        ArrayDeque<ByteBuffer> free = mFreeDirect.get(size);
+        if (free != null && !free.isEmpty()) {
+            mReused++;
+            ByteBuffer buffer = free.pop();
+            buffer.clear();
+            return buffer;
+        }
+        mAllocated++;
+        return ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Gives a direct buffer back to the pool.<br>
+     * The buffer must not be used after this call.
+     *
+     * @param buffer the buffer, previously returned by {@link #acquireDirect(int)}
+     */
+    public synchronized void release(ByteBuffer buffer) {
+        mOutstanding--;
+        ArrayDeque<ByteBuffer> free = mFreeDirect.get(buffer.capacity());
+        if (free == null) {
+            free = new ArrayDeque<>(mMaxFree);
+            mFreeDirect.put(buffer.capacity(), free);
+        }
+        if (free.size() < mMaxFree) {
+            free.push(buffer);
+        } else {
+            mDiscarded++;
+        }
+    }
+
+    /**
+     * Removes all the free buffers from the pool.
+     */
+    public synchronized void clear() {
+        mFree.clear();
+        mFreeDirect.clear();
+    }
+
+    /**
+     * @return the number of buffers allocated so far
+     */
+    public synchronized long getAllocated() {
+        return mAllocated;
+    }
+
+    /**
+     * @return the number of requests satisfied without allocating
+     */
+    public synchronized long getReused() {
+        return mReused;
+    }
+
+    /**
+     * @return the number of released buffers that exceeded the pool capacity
+     */
+    public synchronized long getDiscarded() {
+        return mDiscarded;
+    }
+
+    /**
+     * @return the number of buffers currently in use
+     */
+    public synchronized int getOutstanding() {
+        return mOutstanding;
+    }
+
+    @Override
+    public synchronized String toString() {
+        int free = 0;
+        for (ArrayDeque<byte[]> f : mFree.values())
+            free += f.size();
+        for (ArrayDeque<ByteBuffer> f : mFreeDirect.values())
+            free += f.size();
+        return String.format(Locale.US,
+                "%s: %d allocated, %d reused, %d discarded, %d in use, %d free",
+                mName, mAllocated, mReused, mDiscarded, mOutstanding, free);
+    }
+}
@@ -39,7 +39,9 @@ public interface Camera extends Closeable {
         /**
          * Called when a new video frame is available.<br>
          * To know about the frame size and its pixel format use {@link #getFrameSize()} and
-         * {@link #getFrameFormat()}.
+         * {@link #getFrameFormat()}.<br>
+         * The data buffer may be reused by the camera once this method returns, so it must be
+         * copied if it has to be kept or processed asynchronously.
          *
          * @param data      frame data
          * @param timestamp the timestamp in microseconds
@@ -84,6 +86,43 @@ public interface Camera extends Closeable {
      */
     Surface getSurface();
 
+    /**
+     * Whether the frames can be rendered by the GPU directly on the input surface
+     * of a video encoder.
+     *
+     * @return {@code true} if {@link #setEncoderSurface(Surface)} is supported,
+     * {@code false} otherwise
+     */
+    boolean isEncoderSurfaceSupported();
+
+    /**
+     * Sets the input surface of the video encoder, on which the frames will be rendered.<br>
+     * Must be called after {@link #open(int, int, int)}; the surface size must be the
+     * frame size.
+     *
+     * @param surface the encoder input surface, {@code null} to stop rendering on it
+     * @throws IOException if restarting the preview fails
+     */
+    void setEncoderSurface(Surface surface) throws IOException;
+
+    /**
+     * Sets whether the frames are needed by the {@link FrameCallback}.<br>
+     * Only applies when an encoder surface is set: without demand the frames are not
+     * copied to the CPU, or only seldom; they are always delivered otherwise.
+     *
+     * @param demand {@code true} to deliver all the frames, {@code false} otherwise
+     */
+    void setFrameDemand(boolean demand);
+
+    /**
+     * Sets the frame rate needed by the consumers.<br>
+     * The camera captures at the lowest supported rate that satisfies it, if possible,
+     * so that it does not produce frames that would only be discarded.
+     *
+     * @param fps the frame rate in frames per second
+     */
+    void setFrameRate(int fps);
+
     /**
      * @return {@code true} if this is front camera, {@code false} otherwise
      */
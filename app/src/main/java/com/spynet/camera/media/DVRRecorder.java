@@ -0,0 +1,676 @@
+/*
+ * This file is part of spyNet Camera, the Android IP camera
+ *
+ * Copyright (C) 2016-2017 Paolo Dematteis
+ *
+ * spyNet Camera is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * spyNet Camera is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Paolo Dematteis - spynet314@gmail.com
+ */
+
+package com.spynet.camera.media;
+
+import android.util.Log;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records the encoded H264 and AAC streams produced by the {@link Recorder} on the device
+ * storage, without a second encoder.<br>
+ * The recording is stored as fixed-size fMP4 segments in a ring file that is preallocated
+ * according to the quota; the segment being written is memory-mapped and a compact index
+ * (also memory-mapped) keeps the time and size of each segment. When the ring is full the
+ * oldest segment is recycled, unless it is being served.<br>
+ * The frames are queued and written by a dedicated thread, so that the encoders never wait
+ * for the storage: when the queue is full, because the storage is too slow, the new frames
+ * are dropped.<br>
+ * Segments are closed on the first IDR frame after {@link #SEGMENT_DURATION}, or after the
+ * slot has been filled up to {@link #SLOT_HIGH_WATER}: at that point a sync frame is
+ * requested through the {@link DVRCallback}, so that high bitrates and long IDR intervals
+ * do not overflow the slot.
+ */
+public class DVRRecorder implements Closeable {
+
+    protected final String TAG = getClass().getSimpleName();
+
+    // Size of each ring slot (the maximum segment size)
+    public static final int SLOT_SIZE = 8 * 1024 * 1024;
+    // Slot usage after which the segment is closed on the next IDR frame
+    private static final int SLOT_HIGH_WATER = SLOT_SIZE / 4 * 3;
+    // Segment duration in microseconds (segments are split on IDR frames)
+    private static final long SEGMENT_DURATION = 60 * 1000000L;
+    // Maximum fragment duration in microseconds (fragments are split on IDR frames)
+    private static final long FRAGMENT_MAX_DURATION = 5 * 1000000L;
+    // Maximum fragment size in bytes, so that a fragment always fits above the high water
+    private static final int FRAGMENT_MAX_SIZE = SLOT_SIZE / 16;
+    // Capacity of the queue of the frames waiting to be written, a few seconds of audio and video
+    private static final int QUEUE_CAPACITY = 256;
+    // Timeout to read from the queue in ms
+    private static final int QUEUE_READ_TIMEOUT = 1000;
+    // Index file layout
+    private static final int INDEX_MAGIC = 0x53445652;  // "SDVR"
+    private static final int INDEX_HEADER_SIZE = 16;    // magic, slot size, slot count, reserved
+    private static final int INDEX_RECORD_SIZE = 24;    // sequence, start, duration, length, reserved
+    private static final String RING_FILE = "dvr.ring";
+    private static final String INDEX_FILE = "dvr.index";
+
+    private final RandomAccessFile mRingFile;       // The ring file
+    private final FileChannel mRingChannel;         // The ring file channel
+    private final RandomAccessFile mIndexFile;      // The index file
+    private final MappedByteBuffer mIndex;          // The memory-mapped index
+    private final int mSlots;                       // Number of slots in the ring
+    private final int[] mLocks;                     // Number of transfers reading each slot
+    private final DVRCallback mCallback;            // The DVRCallback, may be null
+    private final BlockingQueue<Object> mQueue;     // The video frames and audio data waiting to be written
+    private final AtomicLong mDropped;              // Number of frames dropped because the queue was full
+    private final Thread mWriterThread;             // The thread that writes the recording
+    private volatile boolean mRunning;              // Whether the writer thread has to keep running
+    private MappedByteBuffer mCompletedSlot;        // The slot of the last completed segment, to be flushed
+    private int mNextSequence;                      // Sequence number of the next segment
+    private int mSlot = -1;                         // Slot being written, -1 if none
+    private int mLastSlot;                          // Last slot written, -1 if none
+    private MappedByteBuffer mSlotBuffer;           // The memory-mapped slot being written
+    private long mSegmentStartTimestamp;            // Timestamp of the segment first sample
+    private boolean mSyncRequested;                 // Whether a sync frame has been requested
+    private long mLastTimestamp;                    // Timestamp of the last video sample
+    private byte[] mSPS;                            // Sequence Parameter Set (no start code)
+    private byte[] mPPS;                            // Picture Parameter Set (no start code)
+    private byte[] mAudioCfg;                       // Audio specific configuration
+    private int mAudioFrequency;                    // Audio sampling rate
+    private int mAudioChannels;                     // Audio channel configuration
+    private MP4Muxer mMuxer;                        // The fMP4 muxer
+    private List<MP4Muxer.Sample> mVideoSamples;    // Video samples of the fragment being built
+    private List<MP4Muxer.Sample> mAudioSamples;    // Audio samples of the fragment being built
+    private MP4Muxer.Sample mPendingVideo;          // Last video sample, waiting for its duration
+    private long mFragmentVideoDecodeTime;          // Decode time of the fragment first video sample
+    private long mFragmentAudioDecodeTime;          // Decode time of the fragment first audio sample
+    private int mFragmentSize;                      // Size of the samples of the fragment being built
+    private long mVideoDecodeTime;                  // Next video sample decode time
+    private long mAudioDecodeTime;                  // Next audio sample decode time
+    private boolean mAudioAligned;                  // Whether the audio track has been aligned
+
+    /**
+     * A client may implement this interface to be told when the recorder needs a sync frame.
+     */
+    public interface DVRCallback {
+        /**
+         * Called when the segment being written is about to fill its slot, and an IDR frame
+         * is needed to close it.<br>
+         * This callback is invoked on the writer thread: the request should be handled
+         * asynchronously.
+         */
+        void onSyncFrameNeeded();
+    }
+
+    /**
+     * Defines a recorded segment.
+     */
+    public static class Segment {
+        public final int sequence;                  // Sequence number
+        public final long start;                    // Start time (ms since the epoch)
+        public final int duration;                  // Duration in ms
+        public final int length;                    // Length in bytes
+
+        Segment(int sequence, long start, int duration, int length) {
+            this.sequence = sequence;
+            this.start = start;
+            this.duration = duration;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Creates a new DVRRecorder object.<br>
+     * The previous recordings are kept if the ring layout matches the quota.
+     *
+     * @param directory the directory where to store the ring and the index
+     * @param quota     the maximum storage space in bytes
+     * @param callback  the callback to request the sync frames, may be null
+     * @throws IOException if the files cannot be created or mapped
+     */
+    public DVRRecorder(@NotNull File directory, long quota, @Nullable DVRCallback callback)
+            throws IOException {
+
+        mSlots = (int) Math.max(2, quota / SLOT_SIZE);
+        mLocks = new int[mSlots];
+        mCallback = callback;
+        if (!directory.exists() && !directory.mkdirs())
+            throw new IOException("cannot create " + directory);
+
+        // Preallocate the ring
+        mRingFile = new RandomAccessFile(new File(directory, RING_FILE), "rw");
+        mRingFile.setLength((long) mSlots * SLOT_SIZE);
+        mRingChannel = mRingFile.getChannel();
+
+        // Map the index, reset it if the layout has changed
+        mIndexFile = new RandomAccessFile(new File(directory, INDEX_FILE), "rw");
+        mIndex = mIndexFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                INDEX_HEADER_SIZE + mSlots * INDEX_RECORD_SIZE);
+        if (mIndex.getInt(0) != INDEX_MAGIC ||
+                mIndex.getInt(4) != SLOT_SIZE ||
+                mIndex.getInt(8) != mSlots) {
+            mIndex.putInt(0, INDEX_MAGIC);
+            mIndex.putInt(4, SLOT_SIZE);
+            mIndex.putInt(8, mSlots);
+            for (int i = 0; i < mSlots; i++)
+                writeRecord(i, -1, 0, 0, 0);
+            mIndex.force();
+        }
+
+        // Continue after the most recent segment
+        int last = -1;
+        for (int i = 0; i < mSlots; i++) {
+            int sequence = mIndex.getInt(recordOffset(i));
+            if (sequence >= mNextSequence) {
+                mNextSequence = sequence + 1;
+                last = i;
+            }
+        }
+        mLastSlot = last;
+        Log.v(TAG, "DVR ring opened: " + mSlots + " slots, next segment " + mNextSequence);
+
+        // Start the writer thread
+        mQueue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        mDropped = new AtomicLong();
+        mRunning = true;
+        mWriterThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                doWrite();
+            }
+        });
+        mWriterThread.start();
+    }
+
+    /**
+     * Closes the recorder, writing the queued frames and completing the segment being written.
+     */
+    @Override
+    public void close() {
+        // Note: the writer thread is not interrupted, that would close the ring channel
+        mRunning = false;
+        try {
+            mWriterThread.join();
+        } catch (InterruptedException e) {
+            Log.e(TAG, "stop writer thread interrupted");
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            Object item;
+            while ((item = mQueue.poll()) != null)
+                write(item);
+            closeSegment();
+            flushCompletedSlot();
+            try {
+                mRingFile.close();
+                mIndexFile.close();
+            } catch (IOException e) {
+                Log.e(TAG, "unexpected exception while closing the DVR files", e);
+            }
+        }
+        if (mDropped.get() > 0)
+            Log.w(TAG, mDropped.get() + " frames dropped, the storage was too slow");
+    }
+
+    /**
+     * Queues an encoded video frame or the video configuration to be recorded.<br>
+     * It never blocks: the frame is retained until written, or dropped if the queue is full.
+     *
+     * @param frame the video frame
+     */
+    public void push(VideoFrame frame) {
+        frame.retain();
+        if (!mQueue.offer(frame)) {
+            frame.release();
+            mDropped.incrementAndGet();
+            Log.v(TAG, "cannot queue the frame, the queue is full");
+        }
+    }
+
+    /**
+     * Queues an encoded audio frame or the audio configuration to be recorded.<br>
+     * It never blocks: the data is retained until written, or dropped if the queue is full.
+     *
+     * @param data the audio data
+     */
+    public void push(AudioData data) {
+        data.retain();
+        if (!mQueue.offer(data)) {
+            data.release();
+            mDropped.incrementAndGet();
+            Log.v(TAG, "cannot queue the audio data, the queue is full");
+        }
+    }
+
+    /**
+     * Writes the queued frames, until the recorder is closed.<br>
+     * Runs on the writer thread: the completed segments are flushed to the storage outside
+     * the lock, so that the segments can be listed and served meanwhile.
+     */
+    private void doWrite() {
+        try {
+            while (mRunning) {
+                Object item = mQueue.poll(QUEUE_READ_TIMEOUT, TimeUnit.MILLISECONDS);
+                if (item == null)
+                    continue;
+                MappedByteBuffer completed;
+                synchronized (this) {
+                    write(item);
+                    completed = mCompletedSlot;
+                    mCompletedSlot = null;
+                }
+                if (completed != null) {
+                    completed.force();
+                    mIndex.force();
+                }
+            }
+        } catch (InterruptedException e) {
+            Log.e(TAG, "writer thread interrupted");
+        }
+    }
+
+    /**
+     * Helper to write a queued item, then release it.
+     */
+    private void write(Object item) {
+        if (item instanceof VideoFrame) {
+            VideoFrame frame = (VideoFrame) item;
+            try {
+                write(frame);
+            } finally {
+                frame.release();
+            }
+        } else {
+            AudioData data = (AudioData) item;
+            try {
+                write(data);
+            } finally {
+                data.release();
+            }
+        }
+    }
+
+    /**
+     * Helper to record an encoded video frame or the video configuration.
+     *
+     * @param frame the video frame
+     */
+    private void write(VideoFrame frame) {
+        byte[] data = frame.getData();
+        if (data == null)
+            return;
+        if (frame.isConfig()) {
+            byte[] nal = Arrays.copyOfRange(data, 4, data.length);
+            if (frame.getKey().equals("sps") && !Arrays.equals(nal, mSPS)) {
+                mSPS = nal;
+                restart();
+            } else if (frame.getKey().equals("pps") && !Arrays.equals(nal, mPPS)) {
+                mPPS = nal;
+                restart();
+            }
+        } else if (frame.isCompressed()) {
+            pushVideo(data, frame.getNALIndex(), frame.getTimestamp());
+        }
+    }
+
+    /**
+     * Helper to record an encoded audio frame or the audio configuration.
+     *
+     * @param data the audio data
+     */
+    private void write(AudioData data) {
+        byte[] buffer = data.getData();
+        if (buffer == null)
+            return;
+        if (data.isConfig()) {
+            if (!Arrays.equals(buffer, mAudioCfg) && buffer.length >= 2) {
+                // ISO/IEC 14496-3, AudioSpecificConfig()
+                int[] frequencies = new int[]{
+                        96000, 88200, 64000, 48000, 44100, 32000, 24000,
+                        22050, 16000, 12000, 11025, 8000, 7350
+                };
+                int index = ((buffer[0] & 0x07) << 1) | ((buffer[1] & 0x80) >> 7);
+                mAudioCfg = buffer;
+                mAudioFrequency = index < frequencies.length ? frequencies[index] : 0;
+                mAudioChannels = (buffer[1] & 0x78) >> 3;
+                restart();
+            }
+        } else if (data.isCompressed()) {
+            pushAudio(buffer, data.getTimestamp());
+        }
+    }
+
+    /**
+     * @return the recorded segments, oldest first
+     */
+    public synchronized List<Segment> getSegments() {
+        List<Segment> segments = new ArrayList<>();
+        for (int i = 0; i < mSlots; i++) {
+            int offset = recordOffset(i);
+            int sequence = mIndex.getInt(offset);
+            if (sequence >= 0) {
+                segments.add(new Segment(sequence,
+                        mIndex.getLong(offset + 4),
+                        mIndex.getInt(offset + 12),
+                        mIndex.getInt(offset + 16)));
+            }
+        }
+        Collections.sort(segments, new Comparator<Segment>() {
+            @Override
+            public int compare(Segment s1, Segment s2) {
+                return s1.sequence < s2.sequence ? -1 : (s1.sequence == s2.sequence ? 0 : 1);
+            }
+        });
+        return segments;
+    }
+
+    /**
+     * @param sequence the segment sequence number
+     * @return the segment, null if it is not in the ring
+     */
+    @Nullable
+    public synchronized Segment getSegment(int sequence) {
+        int slot = findSlot(sequence);
+        if (slot < 0)
+            return null;
+        int offset = recordOffset(slot);
+        return new Segment(sequence,
+                mIndex.getLong(offset + 4),
+                mIndex.getInt(offset + 12),
+                mIndex.getInt(offset + 16));
+    }
+
+    /**
+     * Locks a segment while it is being served, so that its slot is not recycled.<br>
+     * Every successful call must be balanced by {@link #unlockSegment(int)}.
+     *
+     * @param sequence the segment sequence number
+     * @return the position of the segment in the ring file, -1 if it is not in the ring
+     */
+    public synchronized long lockSegment(int sequence) {
+        int slot = findSlot(sequence);
+        if (slot < 0)
+            return -1;
+        mLocks[slot]++;
+        return (long) slot * SLOT_SIZE;
+    }
+
+    /**
+     * Unlocks a segment previously locked by {@link #lockSegment(int)}.
+     *
+     * @param sequence the segment sequence number
+     */
+    public synchronized void unlockSegment(int sequence) {
+        int slot = findSlot(sequence);
+        if (slot >= 0 && mLocks[slot] > 0)
+            mLocks[slot]--;
+    }
+
+    /**
+     * @return the ring file channel, used to serve the segments
+     */
+    public FileChannel getChannel() {
+        return mRingChannel;
+    }
+
+    /**
+     * Helper to record a video access unit.
+     */
+    private void pushVideo(byte[] data, NALIndex nals, long timestamp) {
+
+        byte[] avcc = MP4Muxer.toAVCC(data, nals);
+        if (avcc == null)
+            return;
+        boolean sync = nals.isSync();
+
+        if (mPendingVideo != null) {
+            // Now the duration of the pending sample is known
+            long duration = (timestamp - mPendingVideo.timestamp) * MP4Muxer.VIDEO_TIMESCALE / 1000000;
+            mPendingVideo.duration = (int) Math.max(1, duration);
+            mVideoSamples.add(mPendingVideo);
+            mVideoDecodeTime += mPendingVideo.duration;
+            mPendingVideo = null;
+            mLastTimestamp = timestamp;
+            // Fragments are split on IDR frames, or when too long or large; segments on the
+            // first IDR after the duration, or once the slot is filled up to the high water
+            if (sync || timestamp - mVideoSamples.get(0).timestamp >= FRAGMENT_MAX_DURATION ||
+                    mFragmentSize >= FRAGMENT_MAX_SIZE)
+                writeFragment();
+            if (mSlot >= 0 && mSlotBuffer.position() >= SLOT_HIGH_WATER) {
+                if (sync) {
+                    closeSegment();
+                } else if (!mSyncRequested) {
+                    mSyncRequested = true;
+                    if (mCallback != null)
+                        mCallback.onSyncFrameNeeded();
+                }
+            } else if (sync && timestamp - mSegmentStartTimestamp >= SEGMENT_DURATION) {
+                closeSegment();
+            }
+        }
+
+        // Segments start on an IDR frame
+        if (mSlot < 0) {
+            if (!sync || !openSegment(timestamp))
+                return;
+        }
+
+        if (mVideoSamples == null || mVideoSamples.isEmpty()) {
+            mVideoSamples = new ArrayList<>();
+            mAudioSamples = new ArrayList<>();
+            mFragmentVideoDecodeTime = mVideoDecodeTime;
+            mFragmentAudioDecodeTime = mAudioDecodeTime;
+            mFragmentSize = 0;
+        }
+        mPendingVideo = new MP4Muxer.Sample(avcc, timestamp, sync);
+        mFragmentSize += avcc.length;
+    }
+
+    /**
+     * Helper to record an audio frame.
+     */
+    private void pushAudio(byte[] data, long timestamp) {
+        if (mSlot < 0 || mMuxer == null || !mMuxer.hasAudio() || mAudioSamples == null)
+            return;
+        if (timestamp < mSegmentStartTimestamp)
+            return;
+        if (!mAudioAligned) {
+            // Align the audio track with the video track
+            mAudioDecodeTime = (timestamp - mSegmentStartTimestamp) * mAudioFrequency / 1000000;
+            mFragmentAudioDecodeTime = mAudioDecodeTime;
+            mAudioAligned = true;
+        }
+        MP4Muxer.Sample sample = new MP4Muxer.Sample(data, timestamp, true);
+        sample.duration = MP4Muxer.AAC_FRAME_SAMPLES;
+        mAudioSamples.add(sample);
+        mAudioDecodeTime += MP4Muxer.AAC_FRAME_SAMPLES;
+        mFragmentSize += data.length;
+    }
+
+    /**
+     * Helper to open a new segment in the next slot, recycling the oldest one that is
+     * not being served.
+     *
+     * @return true on success, false otherwise
+     */
+    private boolean openSegment(long timestamp) {
+        if (mSPS == null || mPPS == null)
+            return false;
+        int slot = -1;
+        for (int i = 1; i < mSlots && slot < 0; i++) {
+            int candidate = (mLastSlot + i) % mSlots;
+            if (mLocks[candidate] == 0)
+                slot = candidate;
+        }
+        if (slot < 0) {
+            Log.w(TAG, "all the DVR slots are being served");
+            return false;
+        }
+        try {
+            if (mMuxer == null)
+                mMuxer = new MP4Muxer(mSPS, mPPS, mAudioCfg, mAudioFrequency, mAudioChannels);
+            // Invalidate the record first, so that a recycled slot is never served half-written
+            writeRecord(slot, -1, 0, 0, 0);
+            mSlotBuffer = mRingChannel.map(FileChannel.MapMode.READ_WRITE,
+                    (long) slot * SLOT_SIZE, SLOT_SIZE);
+            byte[] init = mMuxer.getInitSegment();
+            mSlotBuffer.put(init);
+            mSlot = slot;
+            mLastSlot = slot;
+            mSegmentStartTimestamp = timestamp;
+            mLastTimestamp = timestamp;
+            mVideoDecodeTime = 0;
+            mAudioDecodeTime = 0;
+            mAudioAligned = false;
+            mSyncRequested = false;
+            writeRecord(slot, mNextSequence++, System.currentTimeMillis(), 0, init.length);
+            return true;
+        } catch (IllegalArgumentException | IOException e) {
+            Log.e(TAG, "cannot open the DVR segment", e);
+            mSlotBuffer = null;
+            return false;
+        }
+    }
+
+    /**
+     * Helper to write the fragment being built to the current segment.<br>
+     * If the slot is full the segment is closed, and the fragment starts a new one.
+     */
+    private void writeFragment() {
+        if (mSlot < 0 || mVideoSamples == null || mVideoSamples.isEmpty())
+            return;
+        List<MP4Muxer.Sample> video = mVideoSamples;
+        List<MP4Muxer.Sample> audio = mAudioSamples;
+        byte[] fragment = mMuxer.createFragment(
+                video, mFragmentVideoDecodeTime,
+                audio, mFragmentAudioDecodeTime);
+        mVideoSamples = null;
+        mAudioSamples = null;
+        if (fragment.length > mSlotBuffer.remaining()) {
+            // Note: the new segment does not start on an IDR frame, but no video is lost
+            Log.w(TAG, "DVR slot full, fragment moved to a new segment");
+            long lastTimestamp = mLastTimestamp;
+            MP4Muxer.Sample pending = mPendingVideo;
+            closeSegment();
+            if (!openSegment(video.get(0).timestamp))
+                return;
+            mLastTimestamp = lastTimestamp;
+            mPendingVideo = pending;
+            for (MP4Muxer.Sample sample : video)
+                mVideoDecodeTime += sample.duration;
+            if (!audio.isEmpty()) {
+                long start = (audio.get(0).timestamp - mSegmentStartTimestamp) * mAudioFrequency / 1000000;
+                mAudioDecodeTime = Math.max(0, start) + audio.size() * MP4Muxer.AAC_FRAME_SAMPLES;
+                mAudioAligned = true;
+            }
+            fragment = mMuxer.createFragment(video, 0, audio, mAudioDecodeTime -
+                    audio.size() * MP4Muxer.AAC_FRAME_SAMPLES);
+            if (fragment.length > mSlotBuffer.remaining()) {
+                Log.w(TAG, "DVR fragment larger than a slot, dropped");
+                return;
+            }
+        }
+        mSlotBuffer.put(fragment);
+        int offset = recordOffset(mSlot);
+        mIndex.putInt(offset + 12, (int) ((mLastTimestamp - mSegmentStartTimestamp) / 1000));
+        mIndex.putInt(offset + 16, mSlotBuffer.position());
+    }
+
+    /**
+     * Helper to complete the segment being written.
+     */
+    private void closeSegment() {
+        if (mSlot < 0)
+            return;
+        writeFragment();
+        if (mSlot >= 0) {
+            // Flushed by the writer thread, out of the lock
+            flushCompletedSlot();
+            mCompletedSlot = mSlotBuffer;
+        }
+        mSlot = -1;
+        mSlotBuffer = null;
+        mPendingVideo = null;
+        mVideoSamples = null;
+        mAudioSamples = null;
+    }
+
+    /**
+     * Helper to flush the last completed segment, if not flushed yet.
+     */
+    private void flushCompletedSlot() {
+        if (mCompletedSlot != null) {
+            mCompletedSlot.force();
+            mIndex.force();
+            mCompletedSlot = null;
+        }
+    }
+
+    /**
+     * Helper to restart the recording when the configuration changes.
+     */
+    private void restart() {
+        closeSegment();
+        mMuxer = null;
+    }
+
+    /**
+     * @return the slot that contains the specified segment, -1 if not found
+     */
+    private int findSlot(int sequence) {
+        if (sequence < 0)
+            return -1;
+        for (int i = 0; i < mSlots; i++) {
+            if (mIndex.getInt(recordOffset(i)) == sequence)
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the offset of the index record of the specified slot
+     */
+    private int recordOffset(int slot) {
+        return INDEX_HEADER_SIZE + slot * INDEX_RECORD_SIZE;
+    }
+
+    /**
+     * Helper to write an index record.
+     */
+    private void writeRecord(int slot, int sequence, long start, int duration, int length) {
+        int offset = recordOffset(slot);
+        mIndex.putInt(offset, sequence);
+        mIndex.putLong(offset + 4, start);
+        mIndex.putInt(offset + 12, duration);
+        mIndex.putInt(offset + 16, length);
+        mIndex.putInt(offset + 20, 0);
+    }
+}
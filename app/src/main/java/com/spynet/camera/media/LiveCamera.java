@@ -27,19 +27,39 @@ import android.graphics.Rect;
 import android.graphics.SurfaceTexture;
 import android.hardware.Camera;
 import android.opengl.GLES20;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
 import android.util.Log;
 import android.view.Surface;
 import android.view.SurfaceHolder;
 
 import com.spynet.camera.common.TimeStamp;
+import com.spynet.camera.gl.EGLOffscreenContext;
+import com.spynet.camera.gl.TextureRender;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import javax.microedition.khronos.egl.EGLSurface;
 
 /**
  * Implements a wrapper to the underlying Camera devices.<br>
- * The acquired frames will be delivered to the client Context trough the FrameCallback.
+ * The acquired frames will be delivered to the client Context trough the FrameCallback.<br>
+ * The frames are captured into a small pool of buffers, allocated once for each preview size,
+ * and each buffer is given back to the camera as soon as the FrameCallback returns, so the
+ * client must not keep a reference to the frame data.<br>
+ * The preview callbacks, the demand and the frame rate changes all run on the camera thread,
+ * the looper the camera delivers its callbacks to, so that they never race each other.<br>
+ * When an encoder surface is set, the preview goes to a SurfaceTexture that the GPU renders
+ * on the encoder surface (and on the preview surface, if any) on a dedicated thread, which
+ * owns the EGL context while the preview runs, and the preview frames are
+ * copied to the CPU at full rate only while there is a demand for them, otherwise once every
+ * {@link #IDLE_FRAME_INTERVAL} to keep the snapshots reasonably fresh.
  */
 @SuppressWarnings("deprecation")
 public class LiveCamera implements com.spynet.camera.media.Camera {
@@ -48,12 +68,34 @@ public class LiveCamera implements com.spynet.camera.media.Camera {
 
     // The focus window half-size, in the range 0-1000
     private final static int FOCUS_WINDOW_SIZE = 250;
+    // Number of preview buffers: one filled by the camera, one processed, one spare
+    private final static int PREVIEW_BUFFERS = 3;
+    // Interval between the frames copied to the CPU without demand, in ms
+    private final static int IDLE_FRAME_INTERVAL = 1000;
 
     private final Camera mCamera;                   // The underlying Camera device
     private final int mFacing;                      // The camera facing
-    private final SurfaceTexture mSurfaceTexture;   // The SurfaceTexture used to render the preview offscreen
+    private final Object mRenderLock = new Object();    // Lock to synchronize access to the renderer
+    private final Object mCameraLock = new Object();    // Lock to synchronize the preview callback changes
+    private final Handler mCameraHandler;           // The Handler of the camera thread
+    private final Camera.PreviewCallback mPreviewCallback;  // Delivers the frames and requeues the buffers
+    private final Camera.PreviewCallback mOneShotCallback;  // Delivers a frame without demand
+    private byte[][] mPreviewBuffers;               // The preview buffers, allocated for the current size
+    private boolean mCallbackInstalled;             // Whether mPreviewCallback is installed, with the buffers
+    private boolean mReleased;                      // Whether the camera has been released
+    private final float[] mSTMatrix = new float[16];    // The SurfaceTexture transform matrix
+    private SurfaceTexture mSurfaceTexture;         // The SurfaceTexture used to render the preview offscreen
     private FrameCallback mFrameCallback;           // The FrameCallback implemented by mContext
     private DummySurfaceHolder mSurfaceHolder;      // The SurfaceHolder that embeds the preview Surface
+    private EGLOffscreenContext mEglContext;        // The EGL context, null if the GPU is not used
+    private HandlerThread mRenderThread;            // The thread the GPU renders on, null if the GPU is not used
+    private Handler mRenderHandler;                 // The Handler of mRenderThread
+    private TextureRender mTextureRender;           // The TextureRender that renders the preview
+    private EGLSurface mEncoderSurface;             // The encoder input surface
+    private EGLSurface mDisplaySurface;             // The preview surface, null if rendered offscreen
+    private int[] mEncoderSize, mDisplaySize;       // The size of the encoder and preview surfaces
+    private volatile boolean mFrameDemand = true;   // Whether the preview frames are needed
+    private long mLastReadback;                     // Time of the last frame copied without demand
     private long mStartTime;                        // Time when start counting frames
     private long mFrameCount;                       // Number of counted frames
     private volatile float mAverageFps;             // Average frames speed
@@ -74,6 +116,29 @@ public class LiveCamera implements com.spynet.camera.media.Camera {
         Camera.CameraInfo ci = new Camera.CameraInfo();
         Camera.getCameraInfo(cameraId, ci);
         mFacing = ci.facing;
+        // The camera delivers its callbacks to the looper of the thread that opened it,
+        // or to the main looper if that thread has none
+        Looper looper = Looper.myLooper();
+        mCameraHandler = new Handler(looper != null ? looper : Looper.getMainLooper());
+        mPreviewCallback = new Camera.PreviewCallback() {
+            @Override
+            public void onPreviewFrame(byte[] data, Camera camera) {
+                processPreviewFrame(data);
+                // Give the buffer back to the camera, unless the queue has been cleared
+                synchronized (mCameraLock) {
+                    if (mCallbackInstalled)
+                        camera.addCallbackBuffer(data);
+                }
+            }
+        };
+        mOneShotCallback = new Camera.PreviewCallback() {
+            @Override
+            public void onPreviewFrame(byte[] data, Camera camera) {
+                // Delivered by the buffered callback if the demand is back
+                if (!mFrameDemand)
+                    processPreviewFrame(data);
+            }
+        };
         // Create the SurfaceTexture to render the preview offscreen
         int[] mTextureHandles = new int[1];
         GLES20.glGenTextures(1, mTextureHandles, 0);
@@ -157,25 +222,154 @@ public class LiveCamera implements com.spynet.camera.media.Camera {
      * @throws IOException if starting the preview fails
      */
     private void startPreview(SurfaceHolder holder) throws IOException {
-        if (holder != null) {
-            mCamera.setPreviewDisplay(holder);
-        } else {
-            mCamera.setPreviewTexture(mSurfaceTexture);
+        synchronized (mRenderLock) {
+            if (mEglContext != null) {
+                // Rendered by the GPU on the encoder surface, and on the preview surface if any
+                mCamera.setPreviewTexture(mSurfaceTexture);
+                setDisplaySurface(holder != null ? holder.getSurface() : null);
+            } else if (holder != null) {
+                mCamera.setPreviewDisplay(holder);
+            } else {
+                mCamera.setPreviewTexture(mSurfaceTexture);
+            }
         }
-        mCamera.setPreviewCallback(new Camera.PreviewCallback() {
+        mCamera.startPreview();
+        // Installed on the camera thread, after any frame still queued by the stopped preview
+        mCameraHandler.post(new Runnable() {
             @Override
-            public void onPreviewFrame(byte[] data, Camera camera) {
-                processPreviewFrame(data);
+            public void run() {
+                synchronized (mRenderLock) {
+                    setPreviewCallback(mEglContext == null || mFrameDemand);
+                }
             }
         });
-        mCamera.startPreview();
+    }
+
+    /**
+     * Installs or removes the preview callback.<br>
+     * Removing the callback clears the buffer queue, so all the buffers are queued again each
+     * time the callback is installed; they are only reallocated when the preview size changes.
+     * Installing the callback is only done on the camera thread: no buffer can be in use by
+     * the callback meanwhile, and the frames still queued by a removed callback are dropped
+     * by the camera before the new one is installed.
+     *
+     * @param enabled {@code true} to install the callback, {@code false} to remove it
+     */
+    private void setPreviewCallback(boolean enabled) {
+        synchronized (mCameraLock) {
+            if (mReleased || (enabled && mCallbackInstalled))
+                return;
+            if (!enabled) {
+                mCamera.setPreviewCallbackWithBuffer(null);
+                mCallbackInstalled = false;
+                return;
+            }
+            mCamera.setPreviewCallbackWithBuffer(mPreviewCallback);
+            int size = getBufferSize();
+            if (mPreviewBuffers == null || mPreviewBuffers[0].length != size) {
+                mPreviewBuffers = new byte[PREVIEW_BUFFERS][];
+                for (int i = 0; i < PREVIEW_BUFFERS; i++)
+                    mPreviewBuffers[i] = new byte[size];
+            }
+            for (byte[] buffer : mPreviewBuffers)
+                mCamera.addCallbackBuffer(buffer);
+            mCallbackInstalled = true;
+        }
+    }
+
+    /**
+     * Creates, or destroys, the window surface on which the preview is rendered by the GPU.
+     *
+     * @param surface the preview surface, {@code null} to render offscreen only
+     */
+    private void setDisplaySurface(Surface surface) {
+        if (mDisplaySurface != null) {
+            mEglContext.destroySurface(mDisplaySurface);
+            mDisplaySurface = null;
+        }
+        if (surface != null) {
+            mDisplaySurface = mEglContext.createWindowSurface(surface);
+            mDisplaySize = mEglContext.getSurfaceSize(mDisplaySurface);
+        }
+    }
+
+    /**
+     * Renders the last preview frame on the encoder surface, and on the preview surface if any.
+     */
+    private void renderFrame() {
+        synchronized (mRenderLock) {
+            if (mEglContext == null)
+                return;
+            mEglContext.makeCurrent();
+            mSurfaceTexture.updateTexImage();
+            mSurfaceTexture.getTransformMatrix(mSTMatrix);
+            // The encoder timestamps the frame when queued
+            mEglContext.makeCurrent(mEncoderSurface);
+            mTextureRender.drawRGB(mSTMatrix, mEncoderSize[0], mEncoderSize[1]);
+            if (!mEglContext.swapBuffers(mEncoderSurface))
+                Log.w(TAG, "cannot post the frame to the encoder surface");
+            if (mDisplaySurface != null) {
+                mEglContext.makeCurrent(mDisplaySurface);
+                mTextureRender.drawRGB(mSTMatrix, mDisplaySize[0], mDisplaySize[1]);
+                mEglContext.swapBuffers(mDisplaySurface);
+            }
+            // Without demand, still copy a frame to the CPU every now and then
+            if (!mFrameDemand) {
+                long now = System.currentTimeMillis();
+                if (now - mLastReadback >= IDLE_FRAME_INTERVAL) {
+                    mLastReadback = now;
+                    mCameraHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            synchronized (mCameraLock) {
+                                if (!mReleased && !mCallbackInstalled && !mFrameDemand)
+                                    mCamera.setOneShotPreviewCallback(mOneShotCallback);
+                            }
+                        }
+                    });
+                }
+            }
+        }
+        countFrame();
+    }
+
+    /**
+     * Releases the GPU renderer.
+     */
+    private void releaseRenderer() {
+        if (mEglContext != null) {
+            if (mDisplaySurface != null)
+                mEglContext.destroySurface(mDisplaySurface);
+            mEglContext.destroySurface(mEncoderSurface);
+            mEglContext.release();
+            mEglContext = null;
+            mTextureRender = null;
+            mEncoderSurface = null;
+            mDisplaySurface = null;
+        }
+    }
+
+    /**
+     * @return the size of a preview buffer for the current preview size and format
+     */
+    private int getBufferSize() {
+        Camera.Parameters params = mCamera.getParameters();
+        Camera.Size size = params.getPreviewSize();
+        int format = params.getPreviewFormat();
+        if (format == ImageFormat.YV12) {
+            // YV12 planes are 16-byte aligned (see Camera.Parameters.setPreviewFormat)
+            int yStride = (int) Math.ceil(size.width / 16.0) * 16;
+            int uvStride = (int) Math.ceil((yStride / 2) / 16.0) * 16;
+            return yStride * size.height + uvStride * size.height;
+        }
+        return size.width * size.height * ImageFormat.getBitsPerPixel(format) / 8;
     }
 
     /**
      * Stops the preview.
      */
     private void stopPreview() {
-        mCamera.setPreviewCallback(null);
+        setPreviewCallback(false);
         mCamera.stopPreview();
     }
 
@@ -187,7 +381,15 @@ public class LiveCamera implements com.spynet.camera.media.Camera {
 
     @Override
     public void release() {
-        mCamera.release();
+        synchronized (mCameraLock) {
+            mReleased = true;
+            mCamera.release();
+        }
+        stopRenderThread();
+        synchronized (mRenderLock) {
+            mSurfaceTexture.release();
+            releaseRenderer();
+        }
     }
 
     @Override
@@ -202,6 +404,227 @@ public class LiveCamera implements com.spynet.camera.media.Camera {
         }
     }
 
+    @Override
+    public boolean isEncoderSurfaceSupported() {
+        // Recordable EGL surfaces require API 18
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2;
+    }
+
+    @Override
+    public void setEncoderSurface(Surface surface) throws IOException {
+        if (surface == null) {
+            stopPreview();
+            stopRenderThread();
+            synchronized (mRenderLock) {
+                releaseRenderer();
+            }
+            startPreview(mSurfaceHolder);
+            return;
+        }
+        if (!isEncoderSurfaceSupported())
+            throw new IllegalStateException("encoder surface not supported");
+        // Set up the renderer before touching the preview, nothing changes if it fails
+        // Note: the context is not current when done, the frames are rendered on the render thread
+        EGLOffscreenContext context = new EGLOffscreenContext(
+                EGLOffscreenContext.CONFIG_RECORDABLE_RGBA_BUFFER, 1, 1);
+        TextureRender render;
+        EGLSurface encoderSurface;
+        try {
+            context.makeCurrent();
+            render = new TextureRender();
+            encoderSurface = context.createWindowSurface(surface);
+            context.releaseCurrent();
+        } catch (RuntimeException e) {
+            context.release();
+            throw e;
+        }
+        // Restart the preview on a SurfaceTexture bound to the renderer texture
+        stopPreview();
+        stopRenderThread();
+        startRenderThread();
+        SurfaceTexture texture;
+        try {
+            texture = createSurfaceTexture(render.getTextureId());
+        } catch (IOException e) {
+            context.release();
+            throw e;
+        }
+        synchronized (mRenderLock) {
+            releaseRenderer();
+            mEglContext = context;
+            mTextureRender = render;
+            mEncoderSurface = encoderSurface;
+            mEncoderSize = context.getSurfaceSize(encoderSurface);
+            mSurfaceTexture.release();
+            mSurfaceTexture = texture;
+        }
+        startPreview(mSurfaceHolder);
+    }
+
+    /**
+     * Helper to start the thread the GPU renders the preview on.
+     */
+    private void startRenderThread() {
+        mRenderThread = new HandlerThread(TAG + " renderer");
+        mRenderThread.start();
+        mRenderHandler = new Handler(mRenderThread.getLooper());
+    }
+
+    /**
+     * Helper to stop the render thread, once the preview has been stopped.<br>
+     * The EGL context is unbound from the thread before it quits, so that it can be released.
+     * Must not be called holding mRenderLock, that the pending renders wait for.
+     */
+    private void stopRenderThread() {
+        if (mRenderThread == null)
+            return;
+        final EGLOffscreenContext context;
+        synchronized (mRenderLock) {
+            context = mEglContext;
+        }
+        mRenderHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (context != null)
+                    context.releaseCurrent();
+                Looper.myLooper().quit();
+            }
+        });
+        try {
+            mRenderThread.join();
+        } catch (InterruptedException e) {
+            Log.e(TAG, "stop render thread interrupted");
+            Thread.currentThread().interrupt();
+        }
+        mRenderThread = null;
+        mRenderHandler = null;
+    }
+
+    /**
+     * Helper to create the SurfaceTexture the preview goes to, whose frames are rendered on
+     * the render thread.<br>
+     * Before API 21 the listener runs on the looper of the thread that creates the texture,
+     * so the texture is created on the render thread itself.
+     *
+     * @param textureId the renderer texture
+     * @return the SurfaceTexture
+     * @throws IOException if interrupted while waiting for the render thread
+     */
+    private SurfaceTexture createSurfaceTexture(final int textureId) throws IOException {
+        final SurfaceTexture.OnFrameAvailableListener listener = new SurfaceTexture.OnFrameAvailableListener() {
+            @Override
+            public void onFrameAvailable(SurfaceTexture surfaceTexture) {
+                renderFrame();
+            }
+        };
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            SurfaceTexture texture = new SurfaceTexture(textureId);
+            texture.setOnFrameAvailableListener(listener, mRenderHandler);
+            return texture;
+        }
+        final SurfaceTexture[] texture = new SurfaceTexture[1];
+        final CountDownLatch created = new CountDownLatch(1);
+        mRenderHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                texture[0] = new SurfaceTexture(textureId);
+                texture[0].setOnFrameAvailableListener(listener);
+                created.countDown();
+            }
+        });
+        try {
+            created.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while creating the SurfaceTexture");
+        }
+        return texture[0];
+    }
+
+    /**
+     * {@inheritDoc}<br>
+     * Applied on the camera thread, the call is posted there if needed.
+     */
+    @Override
+    public void setFrameDemand(final boolean demand) {
+        if (Looper.myLooper() != mCameraHandler.getLooper()) {
+            mCameraHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    setFrameDemand(demand);
+                }
+            });
+            return;
+        }
+        synchronized (mRenderLock) {
+            if (mFrameDemand == demand)
+                return;
+            mFrameDemand = demand;
+            // The frames are always needed without the encoder surface
+            if (mEglContext != null)
+                setPreviewCallback(demand);
+        }
+    }
+
+    /**
+     * {@inheritDoc}<br>
+     * Among the supported preview fps ranges, the one with the lowest maximum rate that
+     * satisfies the request is chosen, the widest one on ties so that the exposure can grow
+     * in low light; the fastest range is used if none satisfies the request.<br>
+     * Applied on the camera thread, the call is posted there if needed.
+     */
+    @Override
+    public void setFrameRate(final int fps) {
+        if (Looper.myLooper() != mCameraHandler.getLooper()) {
+            mCameraHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    setFrameRate(fps);
+                }
+            });
+            return;
+        }
+        final int MIN = Camera.Parameters.PREVIEW_FPS_MIN_INDEX;
+        final int MAX = Camera.Parameters.PREVIEW_FPS_MAX_INDEX;
+        synchronized (mCameraLock) {
+            if (mReleased)
+                return;
+            try {
+                Camera.Parameters params = mCamera.getParameters();
+                List<int[]> ranges = params.getSupportedPreviewFpsRange();
+                if (ranges == null || ranges.isEmpty())
+                    return;
+                int target = fps * 1000;
+                int[] best = null;
+                for (int[] range : ranges) {
+                    if (best == null) {
+                        best = range;
+                        continue;
+                    }
+                    boolean fits = range[MAX] >= target;
+                    boolean bestFits = best[MAX] >= target;
+                    if (fits != bestFits) {
+                        if (fits)
+                            best = range;
+                    } else if (fits ? range[MAX] < best[MAX] : range[MAX] > best[MAX]) {
+                        best = range;
+                    } else if (range[MAX] == best[MAX] && range[MIN] < best[MIN]) {
+                        best = range;
+                    }
+                }
+                int[] current = new int[2];
+                params.getPreviewFpsRange(current);
+                if (Arrays.equals(current, best))
+                    return;
+                params.setPreviewFpsRange(best[MIN], best[MAX]);
+                mCamera.setParameters(params);
+                Log.i(TAG, "preview fps range is " + best[MIN] / 1000.0 + "-" + best[MAX] / 1000.0);
+            } catch (RuntimeException e) {
+                Log.w(TAG, "cannot set the preview fps range", e);
+            }
+        }
+    }
+
     @Override
     public Surface getSurface() {
         return mSurfaceHolder != null ? mSurfaceHolder.getSurface() : null;
@@ -334,7 +757,7 @@ public class LiveCamera implements com.spynet.camera.media.Camera {
 
     /**
      * Handles a preview frame.<br>
-     * It is invoked on the event thread open(int) was called from.
+     * It is invoked on the camera thread, the one the LiveCamera was created on.
      *
      * @param data the content of the preview frame
      */
@@ -342,7 +765,15 @@ public class LiveCamera implements com.spynet.camera.media.Camera {
         // Call the client callback
         if (mFrameCallback != null)
             mFrameCallback.onFrameAvailable(data, TimeStamp.getTimeStamp());
-        // Compute average fps
+        // Compute average fps, counted on the rendered frames if the GPU is used
+        if (mEglContext == null)
+            countFrame();
+    }
+
+    /**
+     * Updates the average fps.
+     */
+    private void countFrame() {
         if (mStartTime == 0) {
             mStartTime = System.currentTimeMillis();
             mFrameCount = 0;
@@ -0,0 +1,611 @@
+/*
+ * This file is part of spyNet Camera, the Android IP camera
+ *
+ * Copyright (C) 2016-2017 Paolo Dematteis
+ *
+ * spyNet Camera is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * spyNet Camera is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Paolo Dematteis - spynet314@gmail.com
+ */
+
+package com.spynet.camera.media;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.List;
+
+/**
+ * Implements a fragmented MP4 (ISO/IEC 14496-12) muxer for the encoded H264 and AAC streams.<br>
+ * The muxer creates the initialization segment (ftyp + moov) once, then each call to
+ * {@link #createFragment(List, long, List, long)} produces a self-contained movie fragment
+ * (moof + mdat) that can be served as it is, as required by HLS and MSE.
+ */
+public class MP4Muxer {
+
+    // Video track timescale (the same used by the RTP payload)
+    public static final int VIDEO_TIMESCALE = 90000;
+    // Number of PCM samples per AAC access unit
+    public static final int AAC_FRAME_SAMPLES = 1024;
+
+    private static final int VIDEO_TRACK_ID = 1;
+    private static final int AUDIO_TRACK_ID = 2;
+
+    private final byte[] mSPS;                      // Sequence Parameter Set (no start code)
+    private final byte[] mPPS;                      // Picture Parameter Set (no start code)
+    private final byte[] mAudioCfg;                 // Audio specific configuration, null if no audio
+    private final int mAudioFrequency;              // Audio sampling rate
+    private final int mAudioChannels;               // Audio channel configuration
+    private final SPSParser mSPSInfo;               // The information decoded from the SPS
+    private byte[] mInitSegment;                    // The initialization segment (cached)
+    private int mSequence;                          // Fragment sequence number
+
+    /**
+     * Defines a sample to be stored in a fragment.
+     */
+    public static class Sample {
+        public final byte[] data;                   // Sample data (AVCC format for video)
+        public final long timestamp;                // Sample timestamp in microseconds
+        public final boolean sync;                  // Whether this is a sync sample
+        public int duration;                        // Sample duration in track timescale units
+
+        /**
+         * Creates a new Sample object.
+         *
+         * @param data      the sample data
+         * @param timestamp the sample timestamp in microseconds
+         * @param sync      whether this is a sync sample
+         */
+        public Sample(byte[] data, long timestamp, boolean sync) {
+            this.data = data;
+            this.timestamp = timestamp;
+            this.sync = sync;
+        }
+    }
+
+    /**
+     * Creates a new MP4Muxer object.
+     *
+     * @param sps       the Sequence Parameter Set, without the start code
+     * @param pps       the Picture Parameter Set, without the start code
+     * @param audioCfg  the audio specific configuration, {@code null} to mux only the video
+     * @param frequency the audio sampling rate in Hz
+     * @param channels  the audio channel configuration
+     * @throws IllegalArgumentException if the SPS is not valid
+     */
+    public MP4Muxer(byte[] sps, byte[] pps, @Nullable byte[] audioCfg, int frequency, int channels)
+            throws IllegalArgumentException {
+        mSPS = sps;
+        mPPS = pps;
+        mSPSInfo = new SPSParser(sps);
+        if (audioCfg != null && frequency > 0 && channels > 0) {
+            mAudioCfg = audioCfg;
+            mAudioFrequency = frequency;
+            mAudioChannels = channels;
+        } else {
+            mAudioCfg = null;
+            mAudioFrequency = 0;
+            mAudioChannels = 0;
+        }
+    }
+
+    /**
+     * @return {@code true} if the muxer includes the audio track, {@code false} otherwise
+     */
+    public boolean hasAudio() {
+        return mAudioCfg != null;
+    }
+
+    /**
+     * @return the audio track timescale (the audio sampling rate)
+     */
+    public int getAudioTimescale() {
+        return mAudioFrequency;
+    }
+
+    /**
+     * @return the MIME type including the RFC 6381 codecs parameter
+     */
+    public String getMimeType() {
+        String codecs = mSPSInfo.getCodecString();
+        if (mAudioCfg != null)
+            codecs += ",mp4a.40." + ((mAudioCfg[0] & 0xF8) >> 3);
+        return "video/mp4; codecs=\"" + codecs + "\"";
+    }
+
+    /**
+     * @return the initialization segment (ftyp + moov)
+     */
+    public synchronized byte[] getInitSegment() {
+        if (mInitSegment == null) {
+            BoxWriter w = new BoxWriter(1024);
+            w.begin("ftyp");
+            w.fourcc("iso6");
+            w.u32(0);
+            w.fourcc("iso6");
+            w.fourcc("mp41");
+            w.end();
+            w.begin("moov");
+            writeMvhd(w);
+            writeVideoTrak(w);
+            if (mAudioCfg != null)
+                writeAudioTrak(w);
+            w.begin("mvex");
+            writeTrex(w, VIDEO_TRACK_ID);
+            if (mAudioCfg != null)
+                writeTrex(w, AUDIO_TRACK_ID);
+            w.end();
+            w.end();
+            mInitSegment = w.toByteArray();
+        }
+        return mInitSegment;
+    }
+
+    /**
+     * Creates a movie fragment (moof + mdat).<br>
+     * The samples durations must be already set.
+     *
+     * @param video           the video samples (AVCC format)
+     * @param videoDecodeTime the decode time of the first video sample, in video timescale units
+     * @param audio           the audio samples, {@code null} or empty if not available
+     * @param audioDecodeTime the decode time of the first audio sample, in audio timescale units
+     * @return the movie fragment
+     */
+    public synchronized byte[] createFragment(List<Sample> video, long videoDecodeTime,
+                                              @Nullable List<Sample> audio, long audioDecodeTime) {
+
+        boolean withAudio = mAudioCfg != null && audio != null && !audio.isEmpty();
+        int videoSize = 0, audioSize = 0;
+        for (Sample s : video)
+            videoSize += s.data.length;
+        if (withAudio) {
+            for (Sample s : audio)
+                audioSize += s.data.length;
+        }
+
+        BoxWriter w = new BoxWriter(videoSize + audioSize + 256 + 16 * (video.size() + (withAudio ? audio.size() : 0)));
+        w.begin("moof");
+        w.begin("mfhd");
+        w.u32(0);
+        w.u32(++mSequence);
+        w.end();
+        int videoOffsetPos = writeTraf(w, VIDEO_TRACK_ID, video, videoDecodeTime, true);
+        int audioOffsetPos = withAudio ? writeTraf(w, AUDIO_TRACK_ID, audio, audioDecodeTime, false) : -1;
+        int moofSize = w.end();
+        // The data offsets are relative to the start of the moof box
+        w.patch32(videoOffsetPos, moofSize + 8);
+        if (withAudio)
+            w.patch32(audioOffsetPos, moofSize + 8 + videoSize);
+        w.begin("mdat");
+        for (Sample s : video)
+            w.bytes(s.data, 0, s.data.length);
+        if (withAudio) {
+            for (Sample s : audio)
+                w.bytes(s.data, 0, s.data.length);
+        }
+        w.end();
+        return w.toByteArray();
+    }
+
+    /**
+     * Converts an Annex B access unit (start code prefixed NAL units) in the AVCC format
+     * (length prefixed NAL units), as required by the ISO base media file format.<br>
+     * Parameter sets and access unit delimiters are removed, since they are stored in the
+     * sample description.
+     *
+     * @param data the Annex B access unit
+     * @param nals the index of the NAL units in the access unit
+     * @return the AVCC access unit, {@code null} if it contains no slices
+     */
+    @Nullable
+    public static byte[] toAVCC(byte[] data, NALIndex nals) {
+        if (nals.getFirstSliceType() == 0)
+            return null;
+        int size = 0;
+        for (int n = 0; n < nals.getCount(); n++) {
+            if (isStored(nals.getType(n)))
+                size += 4 + nals.getLength(n);
+        }
+        byte[] avcc = new byte[size];
+        int pos = 0;
+        for (int n = 0; n < nals.getCount(); n++) {
+            if (!isStored(nals.getType(n)))
+                continue;
+            int length = nals.getLength(n);
+            avcc[pos++] = (byte) (length >> 24);
+            avcc[pos++] = (byte) (length >> 16);
+            avcc[pos++] = (byte) (length >> 8);
+            avcc[pos++] = (byte) length;
+            System.arraycopy(data, nals.getOffset(n), avcc, pos, length);
+            pos += length;
+        }
+        return avcc;
+    }
+
+    /**
+     * Helper to tell whether a NAL unit goes in the samples.
+     * Parameter sets (7, 8) and access unit delimiters (9) are skipped.
+     */
+    private static boolean isStored(int type) {
+        return type != NALIndex.TYPE_SPS && type != NALIndex.TYPE_PPS && type != NALIndex.TYPE_AUD;
+    }
+
+    /**
+     * Writes the movie header box.
+     */
+    private void writeMvhd(BoxWriter w) {
+        w.begin("mvhd");
+        w.u32(0);                                   // version and flags
+        w.u32(0);                                   // creation time
+        w.u32(0);                                   // modification time
+        w.u32(1000);                                // timescale
+        w.u32(0);                                   // duration
+        w.u32(0x00010000);                          // rate 1.0
+        w.u16(0x0100);                              // volume 1.0
+        w.zeros(10);                                // reserved
+        writeMatrix(w);
+        w.zeros(24);                                // pre_defined
+        w.u32(AUDIO_TRACK_ID + 1);                  // next_track_ID
+        w.end();
+    }
+
+    /**
+     * Writes the video track box.
+     */
+    private void writeVideoTrak(BoxWriter w) {
+        w.begin("trak");
+        writeTkhd(w, VIDEO_TRACK_ID, 0, mSPSInfo.getWidth(), mSPSInfo.getHeight());
+        w.begin("mdia");
+        writeMdhd(w, VIDEO_TIMESCALE);
+        writeHdlr(w, "vide", "VideoHandler");
+        w.begin("minf");
+        w.begin("vmhd");
+        w.u32(1);                                   // version and flags
+        w.zeros(8);                                 // graphicsmode and opcolor
+        w.end();
+        writeDinf(w);
+        w.begin("stbl");
+        w.begin("stsd");
+        w.u32(0);
+        w.u32(1);                                   // entry count
+        w.begin("avc1");
+        w.zeros(6);                                 // reserved
+        w.u16(1);                                   // data reference index
+        w.zeros(16);                                // pre_defined and reserved
+        w.u16(mSPSInfo.getWidth());
+        w.u16(mSPSInfo.getHeight());
+        w.u32(0x00480000);                          // 72 dpi
+        w.u32(0x00480000);                          // 72 dpi
+        w.u32(0);                                   // reserved
+        w.u16(1);                                   // frame count
+        w.zeros(32);                                // compressor name
+        w.u16(0x0018);                              // depth
+        w.u16(0xFFFF);                              // pre_defined
+        w.begin("avcC");
+        w.u8(1);                                    // configuration version
+        w.u8(mSPSInfo.getProfile());
+        w.u8(mSPSInfo.getCompatibility());
+        w.u8(mSPSInfo.getLevel());
+        w.u8(0xFF);                                 // 4 bytes NAL length
+        w.u8(0xE1);                                 // 1 SPS
+        w.u16(mSPS.length);
+        w.bytes(mSPS, 0, mSPS.length);
+        w.u8(1);                                    // 1 PPS
+        w.u16(mPPS.length);
+        w.bytes(mPPS, 0, mPPS.length);
+        w.end();
+        w.end();
+        w.end();
+        writeEmptySampleTables(w);
+        w.end();
+        w.end();
+        w.end();
+        w.end();
+    }
+
+    /**
+     * Writes the audio track box.
+     */
+    private void writeAudioTrak(BoxWriter w) {
+        w.begin("trak");
+        writeTkhd(w, AUDIO_TRACK_ID, 0x0100, 0, 0);
+        w.begin("mdia");
+        writeMdhd(w, mAudioFrequency);
+        writeHdlr(w, "soun", "SoundHandler");
+        w.begin("minf");
+        w.begin("smhd");
+        w.u32(0);                                   // version and flags
+        w.u32(0);                                   // balance and reserved
+        w.end();
+        writeDinf(w);
+        w.begin("stbl");
+        w.begin("stsd");
+        w.u32(0);
+        w.u32(1);                                   // entry count
+        w.begin("mp4a");
+        w.zeros(6);                                 // reserved
+        w.u16(1);                                   // data reference index
+        w.zeros(8);                                 // reserved
+        w.u16(mAudioChannels);
+        w.u16(16);                                  // sample size
+        w.u32(0);                                   // pre_defined and reserved
+        w.u32(mAudioFrequency << 16);
+        w.begin("esds");
+        w.u32(0);                                   // version and flags
+        w.u8(0x03);                                 // ES_Descriptor
+        w.u8(23 + mAudioCfg.length);
+        w.u16(AUDIO_TRACK_ID);                      // ES_ID
+        w.u8(0);                                    // flags
+        w.u8(0x04);                                 // DecoderConfigDescriptor
+        w.u8(15 + mAudioCfg.length);
+        w.u8(0x40);                                 // object type: MPEG-4 audio
+        w.u8(0x15);                                 // stream type: audio
+        w.zeros(3);                                 // buffer size
+        w.u32(0);                                   // max bitrate
+        w.u32(0);                                   // average bitrate
+        w.u8(0x05);                                 // DecoderSpecificInfo
+        w.u8(mAudioCfg.length);
+        w.bytes(mAudioCfg, 0, mAudioCfg.length);
+        w.u8(0x06);                                 // SLConfigDescriptor
+        w.u8(1);
+        w.u8(0x02);
+        w.end();
+        w.end();
+        w.end();
+        writeEmptySampleTables(w);
+        w.end();
+        w.end();
+        w.end();
+        w.end();
+    }
+
+    /**
+     * Writes the track header box.
+     */
+    private void writeTkhd(BoxWriter w, int trackId, int volume, int width, int height) {
+        w.begin("tkhd");
+        w.u32(0x00000003);                          // version 0, enabled and in movie
+        w.u32(0);                                   // creation time
+        w.u32(0);                                   // modification time
+        w.u32(trackId);
+        w.u32(0);                                   // reserved
+        w.u32(0);                                   // duration
+        w.zeros(8);                                 // reserved
+        w.u16(0);                                   // layer
+        w.u16(0);                                   // alternate group
+        w.u16(volume);
+        w.u16(0);                                   // reserved
+        writeMatrix(w);
+        w.u32(width << 16);
+        w.u32(height << 16);
+        w.end();
+    }
+
+    /**
+     * Writes the media header box.
+     */
+    private void writeMdhd(BoxWriter w, int timescale) {
+        w.begin("mdhd");
+        w.u32(0);                                   // version and flags
+        w.u32(0);                                   // creation time
+        w.u32(0);                                   // modification time
+        w.u32(timescale);
+        w.u32(0);                                   // duration
+        w.u16(0x55C4);                              // language 'und'
+        w.u16(0);                                   // pre_defined
+        w.end();
+    }
+
+    /**
+     * Writes the handler reference box.
+     */
+    private void writeHdlr(BoxWriter w, String type, String name) {
+        w.begin("hdlr");
+        w.u32(0);                                   // version and flags
+        w.u32(0);                                   // pre_defined
+        w.fourcc(type);
+        w.zeros(12);                                // reserved
+        byte[] n = name.getBytes();
+        w.bytes(n, 0, n.length);
+        w.u8(0);
+        w.end();
+    }
+
+    /**
+     * Writes the data information box (self-contained data reference).
+     */
+    private void writeDinf(BoxWriter w) {
+        w.begin("dinf");
+        w.begin("dref");
+        w.u32(0);                                   // version and flags
+        w.u32(1);                                   // entry count
+        w.begin("url ");
+        w.u32(1);                                   // self-contained
+        w.end();
+        w.end();
+        w.end();
+    }
+
+    /**
+     * Writes the empty sample tables, the samples are described in the fragments.
+     */
+    private void writeEmptySampleTables(BoxWriter w) {
+        w.begin("stts");
+        w.u32(0);
+        w.u32(0);
+        w.end();
+        w.begin("stsc");
+        w.u32(0);
+        w.u32(0);
+        w.end();
+        w.begin("stsz");
+        w.u32(0);
+        w.u32(0);
+        w.u32(0);
+        w.end();
+        w.begin("stco");
+        w.u32(0);
+        w.u32(0);
+        w.end();
+    }
+
+    /**
+     * Writes the track extends box.
+     */
+    private void writeTrex(BoxWriter w, int trackId) {
+        w.begin("trex");
+        w.u32(0);                                   // version and flags
+        w.u32(trackId);
+        w.u32(1);                                   // default sample description index
+        w.u32(0);                                   // default sample duration
+        w.u32(0);                                   // default sample size
+        w.u32(0);                                   // default sample flags
+        w.end();
+    }
+
+    /**
+     * Writes the unity transformation matrix.
+     */
+    private void writeMatrix(BoxWriter w) {
+        w.u32(0x00010000);
+        w.u32(0);
+        w.u32(0);
+        w.u32(0);
+        w.u32(0x00010000);
+        w.u32(0);
+        w.u32(0);
+        w.u32(0);
+        w.u32(0x40000000);
+    }
+
+    /**
+     * Writes a track fragment box.
+     *
+     * @return the position of the data offset field, to be patched later
+     */
+    private int writeTraf(BoxWriter w, int trackId, List<Sample> samples, long decodeTime, boolean video) {
+        w.begin("traf");
+        w.begin("tfhd");
+        w.u32(0x00020000);                          // default-base-is-moof
+        w.u32(trackId);
+        w.end();
+        w.begin("tfdt");
+        w.u32(0x01000000);                          // version 1
+        w.u32((int) (decodeTime >> 32));
+        w.u32((int) decodeTime);
+        w.end();
+        w.begin("trun");
+        w.u32(0x00000701);                          // data offset, duration, size and flags present
+        w.u32(samples.size());
+        int offsetPos = w.position();
+        w.u32(0);                                   // data offset, patched later
+        for (Sample s : samples) {
+            w.u32(s.duration);
+            w.u32(s.data.length);
+            if (!video || s.sync)
+                w.u32(0x02000000);                  // depends on no other sample
+            else
+                w.u32(0x01010000);                  // depends on others, non sync
+        }
+        w.end();
+        w.end();
+        return offsetPos;
+    }
+
+    /**
+     * Minimal big-endian writer that keeps track of the nested boxes.
+     */
+    private static class BoxWriter {
+
+        private byte[] mBuffer;
+        private int mPosition;
+        private final int[] mStack = new int[16];
+        private int mDepth;
+
+        BoxWriter(int capacity) {
+            mBuffer = new byte[capacity];
+        }
+
+        int position() {
+            return mPosition;
+        }
+
+        void begin(String type) {
+            mStack[mDepth++] = mPosition;
+            u32(0);
+            fourcc(type);
+        }
+
+        int end() {
+            int start = mStack[--mDepth];
+            int size = mPosition - start;
+            patch32(start, size);
+            return size;
+        }
+
+        void patch32(int position, int value) {
+            mBuffer[position] = (byte) (value >> 24);
+            mBuffer[position + 1] = (byte) (value >> 16);
+            mBuffer[position + 2] = (byte) (value >> 8);
+            mBuffer[position + 3] = (byte) value;
+        }
+
+        void u8(int value) {
+            ensure(1);
+            mBuffer[mPosition++] = (byte) value;
+        }
+
+        void u16(int value) {
+            ensure(2);
+            mBuffer[mPosition++] = (byte) (value >> 8);
+            mBuffer[mPosition++] = (byte) value;
+        }
+
+        void u32(int value) {
+            ensure(4);
+            patch32(mPosition, value);
+            mPosition += 4;
+        }
+
+        void fourcc(String type) {
+            ensure(4);
+            for (int i = 0; i < 4; i++)
+                mBuffer[mPosition++] = (byte) type.charAt(i);
+        }
+
+        void zeros(int count) {
+            ensure(count);
+            mPosition += count;
+        }
+
+        void bytes(byte[] data, int offset, int count) {
+            ensure(count);
+            System.arraycopy(data, offset, mBuffer, mPosition, count);
+            mPosition += count;
+        }
+
+        byte[] toByteArray() {
+            byte[] result = new byte[mPosition];
+            System.arraycopy(mBuffer, 0, result, 0, mPosition);
+            return result;
+        }
+
+        private void ensure(int count) {
+            if (mPosition + count > mBuffer.length) {
+                byte[] buffer = new byte[Math.max(mBuffer.length * 2, mPosition + count)];
+                System.arraycopy(mBuffer, 0, buffer, 0, mPosition);
+                mBuffer = buffer;
+            }
+        }
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * This file is part of spyNet Camera, the Android IP camera
+ *
+ * Copyright (C) 2016-2017 Paolo Dematteis
+ *
+ * spyNet Camera is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * spyNet Camera is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Paolo Dematteis - spynet314@gmail.com
+ */
+
+package com.spynet.camera.media;
+
+/**
+ * Implements a cheap motion detector working on the luma plane of YUV420 frames.<br>
+ * The Y plane is downscaled to a small grid of cells, each cell being the average of
+ * a sparse set of samples; the cells are grouped in blocks whose sum of absolute differences
+ * against a running background decides whether the block changed.<br>
+ * The frame is split in a 3x3 grid of zones, only the blocks in the enabled zones are
+ * taken into account.
+ */
+public class MotionDetector {
+
+    // Mask with all the 9 zones enabled
+    public static final int ZONES_ALL = 0x1FF;
+
+    // Size of a cell in pixels (the downscale factor)
+    private static final int CELL_SIZE = 8;
+    // Size of a block in cells
+    private static final int BLOCK_SIZE = 4;
+    // Minimum interval between two analysis, in microseconds
+    private static final long ANALYSIS_INTERVAL = 200000;
+    // Time the motion state is held after the last detection, in microseconds
+    private static final long HOLD_TIME = 5000000;
+    // Background learning rate, as a right shift (1/32)
+    private static final int LEARN_SHIFT = 5;
+    // Fraction of changed blocks above which the change is considered a lighting change
+    private static final float GLOBAL_CHANGE = 0.6f;
+    // Mean absolute difference per cell that marks a block as changed, by sensitivity
+    private static final int[] THRESHOLDS = new int[]{40, 30, 20, 14, 10};
+
+    private final int mWidth;                       // Frame width (the Y plane stride)
+    private final int mCellsX, mCellsY;             // Grid size in cells
+    private final int mBlocksX, mBlocksY;           // Grid size in blocks
+    private final int[] mCells;                     // Current cells luma
+    private final int[] mBackground;                // Background cells luma, fixed point 8.8
+    private final boolean[] mActive;                // Whether each block belongs to an enabled zone
+    private final int mActiveBlocks;                // Number of blocks in the enabled zones
+    private final int mThreshold;                   // SAD threshold per block
+    private boolean mInitialized;                   // Whether the background has been initialized
+    private long mLastAnalysis;                     // Timestamp of the last analysis
+    private long mLastMotion;                       // Timestamp of the last detected motion
+    private float mLevel;                           // Fraction of changed blocks in the last analysis
+    private boolean mMotion;                        // The current motion state
+
+    /**
+     * Creates a new MotionDetector object.
+     *
+     * @param width       the frame width
+     * @param height      the frame height
+     * @param sensitivity the sensitivity, 1 (lowest) to 5 (highest)
+     * @param zones       the enabled zones mask: bit {@code row * 3 + column} enables the zone
+     *                    at the specified row and column of the 3x3 grid
+     */
+    public MotionDetector(int width, int height, int sensitivity, int zones) {
+        mWidth = width;
+        mBlocksX = Math.max(width / (CELL_SIZE * BLOCK_SIZE), 1);
+        mBlocksY = Math.max(height / (CELL_SIZE * BLOCK_SIZE), 1);
+        mCellsX = Math.min(mBlocksX * BLOCK_SIZE, width / CELL_SIZE);
+        mCellsY = Math.min(mBlocksY * BLOCK_SIZE, height / CELL_SIZE);
+        mCells = new int[mCellsX * mCellsY];
+        mBackground = new int[mCellsX * mCellsY];
+        mActive = new boolean[mBlocksX * mBlocksY];
+        int active = 0;
+        for (int by = 0; by < mBlocksY; by++) {
+            for (int bx = 0; bx < mBlocksX; bx++) {
+                int zone = (by * 3 / mBlocksY) * 3 + (bx * 3 / mBlocksX);
+                if ((zones & (1 << zone)) != 0) {
+                    mActive[by * mBlocksX + bx] = true;
+                    active++;
+                }
+            }
+        }
+        mActiveBlocks = active;
+        sensitivity = Math.max(1, Math.min(THRESHOLDS.length, sensitivity));
+        mThreshold = THRESHOLDS[sensitivity - 1] * BLOCK_SIZE * BLOCK_SIZE;
+    }
+
+    /**
+     * Processes a frame.<br>
+     * Frames are analyzed at most every {@link #ANALYSIS_INTERVAL}, the others just
+     * refresh the motion state.
+     *
+     * @param data      the frame data, starting with the Y plane (NV21, NV12, YV12...)
+     *                  without padding
+     * @param timestamp the frame timestamp in microseconds
+     * @return {@code true} if there is motion, {@code false} otherwise
+     */
+    public boolean process(byte[] data, long timestamp) {
+
+        if (timestamp - mLastAnalysis >= ANALYSIS_INTERVAL) {
+            mLastAnalysis = timestamp;
+            downscale(data);
+            if (!mInitialized) {
+                for (int i = 0; i < mCells.length; i++)
+                    mBackground[i] = mCells[i] << 8;
+                mInitialized = true;
+            } else {
+                int changed = compare();
+                mLevel = mActiveBlocks > 0 ? (float) changed / mActiveBlocks : 0;
+                if (mLevel >= GLOBAL_CHANGE) {
+                    // Lighting change (or camera moved): re-learn the background
+                    for (int i = 0; i < mCells.length; i++)
+                        mBackground[i] = mCells[i] << 8;
+                    mLevel = 0;
+                } else if (changed > 0) {
+                    mLastMotion = timestamp;
+                }
+            }
+        }
+
+        mMotion = mLastMotion != 0 && timestamp - mLastMotion < HOLD_TIME;
+        return mMotion;
+    }
+
+    /**
+     * @return the current motion state
+     */
+    public boolean isMotion() {
+        return mMotion;
+    }
+
+    /**
+     * @return the fraction of changed blocks in the enabled zones in the last analysis
+     */
+    public float getLevel() {
+        return mLevel;
+    }
+
+    /**
+     * Downscales the Y plane into the cells grid.<br>
+     * Each cell is the average of 4 samples along its diagonals, which is enough to
+     * track the scene at this scale and keeps the memory traffic low.
+     */
+    private void downscale(byte[] data) {
+        int stride = mWidth;
+        int q = CELL_SIZE / 4;
+        for (int cy = 0, i = 0; cy < mCellsY; cy++) {
+            int row1 = (cy * CELL_SIZE + q) * stride;
+            int row2 = (cy * CELL_SIZE + 3 * q) * stride;
+            for (int cx = 0; cx < mCellsX; cx++, i++) {
+                int x = cx * CELL_SIZE;
+                mCells[i] = ((data[row1 + x + q] & 0xFF) +
+                        (data[row1 + x + 3 * q] & 0xFF) +
+                        (data[row2 + x + q] & 0xFF) +
+                        (data[row2 + x + 3 * q] & 0xFF)) >> 2;
+            }
+        }
+    }
+
+    /**
+     * Compares the cells against the background and updates the background.
+     *
+     * @return the number of changed blocks in the enabled zones
+     */
+    private int compare() {
+        int changed = 0;
+        for (int by = 0; by < mBlocksY; by++) {
+            for (int bx = 0; bx < mBlocksX; bx++) {
+                int sad = 0;
+                int yEnd = Math.min((by + 1) * BLOCK_SIZE, mCellsY);
+                int xEnd = Math.min((bx + 1) * BLOCK_SIZE, mCellsX);
+                for (int y = by * BLOCK_SIZE; y < yEnd; y++) {
+                    for (int x = bx * BLOCK_SIZE, i = y * mCellsX + x; x < xEnd; x++, i++) {
+                        int cell = mCells[i] << 8;
+                        int diff = cell - mBackground[i];
+                        sad += Math.abs(diff) >> 8;
+                        // Blend the current luma into the background
+                        mBackground[i] += diff >> LEARN_SHIFT;
+                    }
+                }
+                if (sad > mThreshold && mActive[by * mBlocksX + bx])
+                    changed++;
+            }
+        }
+        return changed;
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * This file is part of spyNet Camera, the Android IP camera
+ *
+ * Copyright (C) 2016-2017 Paolo Dematteis
+ *
+ * spyNet Camera is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * spyNet Camera is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Paolo Dematteis - spynet314@gmail.com
+ */
+
+package com.spynet.camera.media;
+
+import java.util.Arrays;
+
+/**
+ * Indexes the NAL units of an H264 Annex B access unit (start code prefixed NAL units).<br>
+ * The access unit is scanned once, when the index is created: the consumers then address
+ * each NAL unit by offset and length within the original buffer, without scanning or
+ * copying the data again. An access unit may hold any number of NAL units, such as
+ * SPS + PPS + IDR or several slices.
+ */
+public class NALIndex {
+
+    public static final int TYPE_SLICE = 1;
+    public static final int TYPE_IDR = 5;
+    public static final int TYPE_SPS = 7;
+    public static final int TYPE_PPS = 8;
+    public static final int TYPE_AUD = 9;
+
+    private final int[] mOffsets;                   // Offset of each NAL unit header
+    private final int[] mLengths;                   // Length of each NAL unit, without trailing zeros
+    private final byte[] mHeaders;                  // The NAL unit headers
+    private final int mCount;                       // Number of NAL units
+
+    /**
+     * Creates a new NALIndex object, scanning the specified access unit.
+     *
+     * @param data the Annex B access unit
+     */
+    public NALIndex(byte[] data) {
+        this(data, data != null ? data.length : 0);
+    }
+
+    /**
+     * Creates a new NALIndex object, scanning the access unit at the start of a buffer.
+     *
+     * @param data   the buffer that holds the Annex B access unit
+     * @param length the access unit length, the rest of the buffer is ignored
+     */
+    public NALIndex(byte[] data, int length) {
+        int[] offsets = new int[4];
+        int[] lengths = new int[4];
+        int count = 0;
+        int start = -1;
+        for (int i = 0; ; ) {
+            // Find the next start code, the end of the buffer terminates the last NAL unit
+            int next = length;
+            if (i + 2 < length) {
+                int b = data[i + 2] & 0xFF;
+                if (b > 1) {
+                    // No start code can include this byte
+                    i += 3;
+                    continue;
+                }
+                if (b != 1 || data[i + 1] != 0 || data[i] != 0) {
+                    i++;
+                    continue;
+                }
+                next = i;
+            }
+            if (start >= 0) {
+                int end = trim(data, start, next);
+                if (end > start) {
+                    if (count == offsets.length) {
+                        offsets = Arrays.copyOf(offsets, count * 2);
+                        lengths = Arrays.copyOf(lengths, count * 2);
+                    }
+                    offsets[count] = start;
+                    lengths[count++] = end - start;
+                }
+            }
+            if (next == length)
+                break;
+            start = next + 3;
+            i = start;
+        }
+        mOffsets = offsets;
+        mLengths = lengths;
+        mCount = count;
+        mHeaders = new byte[count];
+        for (int n = 0; n < count; n++)
+            mHeaders[n] = data[offsets[n]];
+    }
+
+    /**
+     * @return the number of NAL units
+     */
+    public int getCount() {
+        return mCount;
+    }
+
+    /**
+     * @param n the NAL unit index
+     * @return the offset of the NAL unit header in the access unit
+     */
+    public int getOffset(int n) {
+        return mOffsets[n];
+    }
+
+    /**
+     * @param n the NAL unit index
+     * @return the length of the NAL unit, header included
+     */
+    public int getLength(int n) {
+        return mLengths[n];
+    }
+
+    /**
+     * @param n the NAL unit index
+     * @return the NAL unit header byte
+     */
+    public int getHeader(int n) {
+        return mHeaders[n] & 0xFF;
+    }
+
+    /**
+     * @param n the NAL unit index
+     * @return the nal_unit_type
+     */
+    public int getType(int n) {
+        return mHeaders[n] & 0x1F;
+    }
+
+    /**
+     * @param n the NAL unit index
+     * @return the nal_ref_idc
+     */
+    public int getRefIdc(int n) {
+        return (mHeaders[n] >> 5) & 0x03;
+    }
+
+    /**
+     * @param n the NAL unit index
+     * @return {@code true} if the NAL unit is a coded slice, {@code false} otherwise
+     */
+    public boolean isSlice(int n) {
+        int type = getType(n);
+        return type >= TYPE_SLICE && type <= TYPE_IDR;
+    }
+
+    /**
+     * @return the type of the first slice in the access unit (1 or 5), 0 if there are no slices
+     */
+    public int getFirstSliceType() {
+        for (int n = 0; n < mCount; n++) {
+            int type = getType(n);
+            if (type == TYPE_SLICE || type == TYPE_IDR)
+                return type;
+        }
+        return 0;
+    }
+
+    /**
+     * @return {@code true} if the access unit contains an IDR slice, {@code false} otherwise
+     */
+    public boolean isSync() {
+        for (int n = 0; n < mCount; n++) {
+            if (getType(n) == TYPE_IDR)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the total size of the NAL units, without start codes
+     */
+    public int getPayloadSize() {
+        int size = 0;
+        for (int n = 0; n < mCount; n++)
+            size += mLengths[n];
+        return size;
+    }
+
+    /**
+     * Helper to find the end of a NAL unit, trimming the trailing zeros that belong to the
+     * next 4-byte start code or pad the access unit.
+     */
+    private static int trim(byte[] data, int start, int end) {
+        while (end > start && data[end - 1] == 0)
+            end--;
+        return end;
+    }
+}
@@ -38,12 +38,14 @@ import android.media.projection.MediaProjection;
 import android.media.projection.MediaProjectionManager;
 import android.os.Build;
 import android.os.Handler;
+import android.os.Looper;
 import android.util.DisplayMetrics;
 import android.util.Log;
 import android.view.Surface;
 
 import com.spynet.camera.R;
 import com.spynet.camera.common.Image;
+import com.spynet.camera.common.ImageConverter;
 import com.spynet.camera.ui.ScreenCaptureRequestActivity;
 import com.spynet.camera.ui.SettingsActivity;
 
@@ -79,26 +81,56 @@ public class Recorder
     private final static int AUTOFOCUS_DELAY = 2000;
     // Time interval at which the fps is updated onn the overlay, in milliseconds
     private final static int FPS_UPDATE_TIME = 5000;
+    // Maximum width of the sub stream, the frames are halved until they fit
+    private final static int SUB_STREAM_MAX_WIDTH = 640;
+    // Maximum number of free buffers kept by the buffer pools, for each buffer size
+    private final static int POOL_MAX_FREE = 8;
+    // Interval between the frames sent to the client without MJPEG subscribers, in milliseconds
+    private final static int IDLE_FRAME_INTERVAL = 1000;
+    // Frame rate needed by the motion detector, that analyzes up to 5 frames per second
+    private final static int MOTION_FRAME_RATE = 5;
 
     private final String TAG = getClass().getSimpleName();
 
     private final Context mContext;                     // The context that uses the Recorder
     private final ArrayList<CameraInfo> mCameraInfo;    // The information of all the available cameras
+    private final BufferPool mFramePool;                // Pool of the uncompressed video frame buffers
+    private final BufferPool mAudioPool;                // Pool of the uncompressed audio buffers
+    private final BufferPool mSlicePool;                // Pool of the encoded video frame buffers
+    private final ImageConverter mConverter;            // Converts the frames to the encoder color format
+    private final Object mDemandLock;                   // Lock to suspend and resume the unused outputs
+    private final Handler mCameraHandler;               // The Handler of the camera thread
+    private final Runnable mCameraUpdater;              // Applies the demand and the frame rate to the camera
     private RecorderCallback mCallback;                 // The RecorderCallback implemented by mContext
     private BroadcastReceiver mScreenCaptureReceiver;   // The BroadcastReceiver to receive screen capture authorization
     private Camera mCamera;                             // LiveCamera that will generate the video stream
     private AudioRecorder mAudioRecorder;               // AudioRecorder that will generate the audio stream
     private VideoEncoder mVideoEncoder;                 // Encoder to encode the video
+    private VideoEncoder mSubEncoder;                   // Encoder to encode the sub stream, null if disabled
     private AudioEncoder mAudioEncoder;                 // Encoder to encode the audio
+    private MotionDetector mMotionDetector;             // Motion detector, null if disabled
     private MediaProjection mMediaProjection;           // MediaProjection to capture the screen
     private VirtualDisplay mVirtualDisplay;             // VirtualDisplay to capture the screen
     private Point mFrameSize;                           // Video frame size
     private int mFrameFormat;                           // Video frame pixel format
+    private Point mSubSize;                             // Sub stream frame size
+    private int mSubLevels;                             // Number of times the frames are halved for the sub stream
     private long mFrameInterval;                        // Interval between the frames sent to the video encoder in microseconds
-    private long mLastTimestamp;                        // Timestamp of the last frame sent to the video encoder
+    private int mEncoderFrameRate;                      // Frame rate of the video encoders
+    private int mMJPEGFrameRate;                        // Maximum frame rate of the MJPEG streams
+    private volatile boolean mPreviewVisible;           // Whether the preview is shown on a surface
+    private long mLastTimestamp;                        // Scheduled timestamp of the last frame sent to the video encoder
     private long mLastFpsUpdate;                        // Last timestamp when fps was updated
     private volatile boolean mVideoCfgSent;             // Whether the video configuration has been sent (SPS and PPS)
     private volatile boolean mAudioCfgSent;             // Whether the audio configuration has been sent
+    private volatile boolean mSubCfgSent;               // Whether the sub stream configuration has been sent
+    private volatile boolean mMotion;                   // Whether there is motion in the scene
+    private volatile boolean mFrameDemand;              // Whether the client needs the uncompressed frames
+    private volatile boolean mVideoDemand;              // Whether the client needs the H264 streams
+    private volatile boolean mAudioDemand;              // Whether the client needs the AAC stream
+    private volatile boolean mVideoSuspended;           // Whether the video encoders are suspended
+    private volatile boolean mAudioPaused;              // Whether the audio capture is stopped
+    private long mLastClientFrame;                      // Timestamp of the last frame sent to the client
 
 
     /**
@@ -108,7 +140,9 @@ public class Recorder
     public interface RecorderCallback {
         /**
          * Called when new video frame is available.
-         * May be called from different threads.
+         * May be called from different threads.<br>
+         * The frame is released when the callback returns, so it must be retained to be
+         * used afterwards; compressed slices are shared by all the consumers, without copies.
          *
          * @param frame the video frame
          */
@@ -122,6 +156,17 @@ public class Recorder
          */
         void onDataAvailable(AudioData data);
 
+        /**
+         * Called when new sub stream video data (compressed slice or configuration)
+         * is available.
+         * May be called from different threads.<br>
+         * The frame is released when the callback returns, so it must be retained to be
+         * used afterwards.
+         *
+         * @param frame the video frame
+         */
+        void onSubDataAvailable(VideoFrame frame);
+
         /**
          * Notifies that the frame size changed.
          *
@@ -165,6 +210,14 @@ public class Recorder
          */
         void onFrameRate(float fps);
 
+        /**
+         * Called when the motion state changes.
+         * May be called from different threads.
+         *
+         * @param motion {@code true} if there is motion in the scene, {@code false} otherwise
+         */
+        void onMotion(boolean motion);
+
         /**
          * Called when the screen capture has been denied or authorized by the user.
          *
@@ -197,12 +250,39 @@ public class Recorder
         // Read the information of all the available cameras
         mCameraInfo = new ArrayList<>(readCameraInfo(mContext));
 
+        // Create the buffer pools
+        mFramePool = new BufferPool("frames", POOL_MAX_FREE);
+        mAudioPool = new BufferPool("audio", POOL_MAX_FREE);
+        mSlicePool = new BufferPool("slices", POOL_MAX_FREE);
+
+        // Create the frame converter
+        mConverter = new ImageConverter();
+
+        // The camera is driven from the looper it delivers its callbacks to: the one of the
+        // thread that opens it, or the main one
+        Looper looper = Looper.myLooper();
+        mCameraHandler = new Handler(looper != null ? looper : Looper.getMainLooper());
+        mCameraUpdater = new Runnable() {
+            @Override
+            public void run() {
+                applyCameraDemand();
+            }
+        };
+
+        // All the outputs are needed until the client tells otherwise
+        mDemandLock = new Object();
+        mVideoDemand = true;
+        mAudioDemand = true;
+
         // Read preferences
         int cameraId = SettingsActivity.getCameraIndex(mContext);
         int[] resolution = SettingsActivity.getVideoResolution(mContext);
         int bitrate = SettingsActivity.getH264Bitrate(mContext);
         int fps = SettingsActivity.getH264FrameSpeed(mContext);
+        mEncoderFrameRate = fps;
+        mMJPEGFrameRate = SettingsActivity.getMJPEGFrameSpeed(mContext);
         int distance = SettingsActivity.getH264IDistance(mContext);
+        boolean lowLatency = SettingsActivity.getH264LowLatency(mContext);
         float zoom = SettingsActivity.getCameraZoom(mContext);
 
         // Create the Camera object
@@ -231,7 +311,7 @@ public class Recorder
         // Create the VideoEncoder object
         if (mCamera != null) {
             try {
-                mVideoEncoder = new VideoEncoder(this);
+                mVideoEncoder = new VideoEncoder(this, mSlicePool);
             } catch (Exception e) {
                 Log.e(TAG, "unable to create the video encoder for MIME " + VideoEncoder.getMIME(), e);
             }
@@ -239,6 +319,8 @@ public class Recorder
 
         // Try to open the camera and the encoder
         // We may need to try different settings to match the encoder requirements
+        // The frames are rendered directly on the encoder input surface, if possible
+        boolean surfaceInput = Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2;
         for (int n = 0; mCamera != null && mVideoEncoder != null; n++) {
 
             // Open the camera
@@ -258,15 +340,17 @@ public class Recorder
 
             // Open the video encoder
             int format;
-            if (mVideoEncoder.supportsColorFormat(MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar)) {
-                format = MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar;
-            } else if (mVideoEncoder.supportsColorFormat(MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar)) {
-                format = MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar;
-            } else {
+            if (surfaceInput && mCamera.isEncoderSurfaceSupported() &&
+                    mVideoEncoder.supportsColorFormat(MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface)) {
+                format = MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface;
+            } else if ((format = getBufferColorFormat(mVideoEncoder)) == 0) {
                 mVideoEncoder = null;
                 break;
             }
             try {
+                // The frames are converted directly into the encoder input buffers
+                mVideoEncoder.setDirectInput(format != MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+                mVideoEncoder.setLowLatency(lowLatency);
                 mVideoEncoder.open(
                         mFrameSize.x, mFrameSize.y, format,
                         fps, bitrate, distance);
@@ -280,7 +364,7 @@ public class Recorder
                     // Reset the encoder because it doesn't like to be restarted
                     try {
                         mVideoEncoder.release();
-                        mVideoEncoder = new VideoEncoder(this);
+                        mVideoEncoder = new VideoEncoder(this, mSlicePool);
                         continue;
                     } catch (Exception e1) {
                         Log.e(TAG, "cannot reset the video encoder", e1);
@@ -290,10 +374,73 @@ public class Recorder
                 break;
             }
 
+            // Render the frames on the encoder input surface
+            if (format == MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface) {
+                try {
+                    mCamera.setEncoderSurface(mVideoEncoder.getSurface());
+                    Log.d(TAG, "frames rendered on the encoder input surface");
+                } catch (Exception e) {
+                    Log.w(TAG, "cannot render on the encoder input surface: falling back to frame buffers", e);
+                    surfaceInput = false;
+                    mVideoEncoder.close();
+                    try {
+                        mVideoEncoder.release();
+                        mVideoEncoder = new VideoEncoder(this, mSlicePool);
+                        continue;
+                    } catch (Exception e1) {
+                        Log.e(TAG, "cannot reset the video encoder", e1);
+                    }
+                    mVideoEncoder = null;
+                    break;
+                }
+            }
+
             // No more attempts
             break;
         }
 
+        // Create the sub stream encoder, fed by halved copies of the frames
+        if (mVideoEncoder != null && mFrameFormat == ImageFormat.NV21 &&
+                SettingsActivity.getH264SubEnabled(mContext)) {
+            int width = mFrameSize.x, height = mFrameSize.y, levels = 0;
+            while ((levels == 0 || width > SUB_STREAM_MAX_WIDTH) && width % 4 == 0 && height % 4 == 0) {
+                width /= 2;
+                height /= 2;
+                levels++;
+            }
+            if (levels > 0) {
+                try {
+                    mSubEncoder = new VideoEncoder(this, mSlicePool);
+                    mSubEncoder.setDirectInput(true);
+                    mSubEncoder.setLowLatency(lowLatency);
+                    mSubEncoder.open(width, height, getBufferColorFormat(mSubEncoder),
+                            fps, SettingsActivity.getH264SubBitrate(mContext), distance);
+                    mSubSize = new Point(width, height);
+                    mSubLevels = levels;
+                } catch (Exception e) {
+                    Log.e(TAG, "sub stream encoder failed to start", e);
+                    if (mSubEncoder != null) {
+                        mSubEncoder.release();
+                        mSubEncoder = null;
+                    }
+                }
+            } else {
+                Log.w(TAG, "the frame size " + width + "x" + height + " cannot be halved for the sub stream");
+            }
+        }
+
+        // Create the motion detector
+        // Note: it works on the Y plane, that must come first and without padding
+        if (mCamera != null && SettingsActivity.getMotionEnabled(mContext)) {
+            if (mFrameFormat == ImageFormat.NV21 || mFrameFormat == ImageFormat.YV12) {
+                mMotionDetector = new MotionDetector(mFrameSize.x, mFrameSize.y,
+                        SettingsActivity.getMotionSensitivity(mContext),
+                        SettingsActivity.getMotionZones(mContext));
+            } else {
+                Log.w(TAG, "motion detection not supported for the frame format " + mFrameFormat);
+            }
+        }
+
         // Ask the user to authorize the screen capture
         if (mCamera != null && mCamera instanceof ScreenCaptureCamera) {
             // Register the BroadcastReceiver to control the service
@@ -343,9 +490,11 @@ public class Recorder
         // Create the AudioRecorder object
         if (SettingsActivity.getAACEnabled(mContext)) {
             try {
-                mAudioRecorder = new AudioRecorder(this,
+                mAudioRecorder = new AudioRecorder(this, mAudioPool,
                         preferredAudioSampleRate,
-                        MediaRecorder.AudioSource.MIC);
+                        MediaRecorder.AudioSource.MIC,
+                        SettingsActivity.getAACLowLatency(mContext) ?
+                                AudioRecorder.SHORT_TIMER_INTERVAL : AudioRecorder.TIMER_INTERVAL);
             } catch (Exception e) {
                 Log.e(TAG, "unable to access the microphone", e);
             }
@@ -397,6 +546,9 @@ public class Recorder
                 mCallback.onMute(mAudioRecorder.getMute());
             }
         }
+
+        // Capture only the frames the consumers need
+        updateCameraDemand();
     }
 
     /**
@@ -405,6 +557,9 @@ public class Recorder
     @Override
     public synchronized void close() {
 
+        // Drop the pending camera updates
+        mCameraHandler.removeCallbacks(mCameraUpdater);
+
         // Unregister the BroadcastReceiver to receive screen capture authorization
         if (mScreenCaptureReceiver != null) {
             mContext.unregisterReceiver(mScreenCaptureReceiver);
@@ -430,6 +585,12 @@ public class Recorder
             mCamera = null;
         }
 
+        // Log the frames dropped because the encoders were behind
+        if (mVideoEncoder != null)
+            Log.d(TAG, "video encoder dropped " + mVideoEncoder.getDroppedFrames() + " frames");
+        if (mSubEncoder != null)
+            Log.d(TAG, "sub stream encoder dropped " + mSubEncoder.getDroppedFrames() + " frames");
+
         // Shutdown the video encoder
         if (mVideoEncoder != null) {
             mVideoEncoder.close();
@@ -437,11 +598,20 @@ public class Recorder
             mVideoEncoder = null;
         }
 
+        // Shutdown the sub stream encoder
+        if (mSubEncoder != null) {
+            mSubEncoder.close();
+            mSubEncoder.release();
+            mSubEncoder = null;
+        }
+
         // Shutdown the audio recorder
-        if (mAudioRecorder != null) {
-            mAudioRecorder.close();
-            mAudioRecorder.release();
-            mAudioRecorder = null;
+        synchronized (mDemandLock) {
+            if (mAudioRecorder != null) {
+                mAudioRecorder.close();
+                mAudioRecorder.release();
+                mAudioRecorder = null;
+            }
         }
 
         // Shutdown the audio encoder
@@ -450,6 +620,30 @@ public class Recorder
             mAudioEncoder.release();
             mAudioEncoder = null;
         }
+
+        // Log the pool statistics
+        Log.d(TAG, mFramePool.toString());
+        Log.d(TAG, mAudioPool.toString());
+        Log.d(TAG, mSlicePool.toString());
+        mFramePool.clear();
+        mAudioPool.clear();
+        mSlicePool.clear();
+
+        // Stop the frame converter
+        mConverter.close();
+    }
+
+    /**
+     * Chooses the color format to feed an encoder with frame buffers.
+     *
+     * @return the color format, 0 if none of the supported formats is available
+     */
+    private static int getBufferColorFormat(VideoEncoder encoder) {
+        if (encoder.supportsColorFormat(MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar))
+            return MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar;
+        if (encoder.supportsColorFormat(MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar))
+            return MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar;
+        return 0;
     }
 
     /**
@@ -515,6 +709,8 @@ public class Recorder
      */
     public synchronized void setSurface(Surface surface) throws IOException {
         if (mCamera != null) mCamera.setSurface(surface);
+        mPreviewVisible = surface != null;
+        updateCameraDemand();
     }
 
     /**
@@ -668,6 +864,20 @@ public class Recorder
         if (mVideoEncoder != null) mVideoEncoder.requestSyncFrame();
     }
 
+    /**
+     * @return {@code true} if the H264 sub stream is available, {@code false} otherwise
+     */
+    public synchronized boolean isH264SubAvailable() {
+        return mSubEncoder != null;
+    }
+
+    /**
+     * Requests a reference frame to be generate as soon as possible on the sub stream.
+     */
+    public synchronized void requestSubSyncFrame() {
+        if (mSubEncoder != null) mSubEncoder.requestSyncFrame();
+    }
+
     /**
      * @return {@code true} if the audio is available, {@code false} otherwise
      */
@@ -682,39 +892,195 @@ public class Recorder
         return mAudioEncoder != null ? mAudioEncoder.getBitrate() : 0;
     }
 
+    /**
+     * Whether there is motion in the scene.<br>
+     * If the motion detection is not active, the scene is always considered active.
+     *
+     * @return {@code true} if there is motion or the detection is disabled,
+     * {@code false} otherwise
+     */
+    public synchronized boolean isMotion() {
+        return mMotionDetector == null || mMotion;
+    }
+
+    /**
+     * Sets whether the client needs the uncompressed frames, i.e. whether there are
+     * MJPEG consumers.<br>
+     * Without consumers the frames are sent to the client only once per second, enough to
+     * keep the snapshots fresh. When the frames are rendered directly on the encoder surface,
+     * they are copied to the CPU at full rate only if needed by the client, the motion
+     * detector or the sub stream, and once per second otherwise.
+     *
+     * @param demand {@code true} if the client needs the frames, {@code false} otherwise
+     */
+    public synchronized void setFrameDemand(boolean demand) {
+        mFrameDemand = demand;
+        updateCameraDemand();
+    }
+
+    /**
+     * Sets whether the client needs the H264 streams, i.e. whether there are RTSP, HLS,
+     * MPEG-TS, WebSocket or recording consumers.<br>
+     * Without consumers the video encoders are suspended, once the configuration has been
+     * sent; they resume with a sync frame, so that the new consumers can start immediately.
+     *
+     * @param demand {@code true} if the client needs the H264 streams, {@code false} otherwise
+     */
+    public synchronized void setVideoDemand(boolean demand) {
+        mVideoDemand = demand;
+        updateVideoSuspension();
+    }
+
+    /**
+     * Sets whether the client needs the AAC stream, i.e. whether there are RTSP, HLS,
+     * MPEG-TS or recording consumers.<br>
+     * Without consumers the audio capture is stopped, once the configuration has been sent.
+     *
+     * @param demand {@code true} if the client needs the AAC stream, {@code false} otherwise
+     */
+    public synchronized void setAudioDemand(boolean demand) {
+        mAudioDemand = demand;
+        updateAudioCapture();
+    }
+
+    /**
+     * Helper to tell the camera whether the uncompressed frames are needed, and the frame
+     * rate the consumers need.<br>
+     * It may be called on any thread, even holding mDemandLock: the update is posted to the
+     * camera thread, where the pending updates are applied at once.
+     */
+    private void updateCameraDemand() {
+        mCameraHandler.removeCallbacks(mCameraUpdater);
+        mCameraHandler.post(mCameraUpdater);
+    }
+
+    /**
+     * Applies the current demand to the camera, on the camera thread: the frames are needed
+     * by the client, the motion detector or the sub stream; the frame rate is the highest
+     * among the active consumers.
+     */
+    private void applyCameraDemand() {
+        Camera camera = mCamera;
+        if (camera == null)
+            return;
+        camera.setFrameDemand(mFrameDemand || mMotionDetector != null ||
+                (mSubEncoder != null && !mVideoSuspended));
+        int fps = 1000 / IDLE_FRAME_INTERVAL;
+        if (mMotionDetector != null)
+            fps = Math.max(fps, MOTION_FRAME_RATE);
+        if (mFrameDemand)
+            fps = Math.max(fps, mMJPEGFrameRate);
+        if (!mVideoSuspended || mPreviewVisible)
+            fps = Math.max(fps, mEncoderFrameRate);
+        camera.setFrameRate(fps);
+    }
+
+    /**
+     * Helper to suspend or resume the video encoders according to the demand.<br>
+     * The encoders are suspended only after the configuration has been sent, since the
+     * consumers need it to describe the streams before they start.
+     */
+    private void updateVideoSuspension() {
+        synchronized (mDemandLock) {
+            boolean suspend = !mVideoDemand && mVideoCfgSent && (mSubEncoder == null || mSubCfgSent);
+            if (suspend == mVideoSuspended)
+                return;
+            mVideoSuspended = suspend;
+            try {
+                VideoEncoder encoder = mVideoEncoder;
+                if (encoder != null) {
+                    // Frames fed through the input buffers are dropped anyway
+                    if (!encoder.setSuspended(suspend) && encoder.getSurface() != null)
+                        Log.w(TAG, "cannot suspend the video encoder, not supported");
+                    if (!suspend)
+                        encoder.requestSyncFrame();
+                }
+                encoder = mSubEncoder;
+                if (encoder != null) {
+                    encoder.setSuspended(suspend);
+                    if (!suspend)
+                        encoder.requestSyncFrame();
+                }
+            } catch (IllegalStateException e) {
+                Log.w(TAG, "cannot change the video encoders state, not running", e);
+            }
+            updateCameraDemand();
+            Log.d(TAG, suspend ? "video encoders suspended" : "video encoders resumed");
+        }
+    }
+
+    /**
+     * Helper to stop or restart the audio capture according to the demand.<br>
+     * The capture is stopped only after the configuration has been sent.
+     */
+    private void updateAudioCapture() {
+        synchronized (mDemandLock) {
+            boolean pause = !mAudioDemand && mAudioCfgSent;
+            if (pause == mAudioPaused || mAudioRecorder == null)
+                return;
+            mAudioPaused = pause;
+            if (pause)
+                mAudioRecorder.close();
+            else
+                mAudioRecorder.open();
+            Log.d(TAG, pause ? "audio capture stopped" : "audio capture restarted");
+        }
+    }
+
     /**
      * Requests the configuration information (SPS, PPS and audio configuration) to be sent.
      */
     public synchronized void requestConfiguration() {
-        mVideoCfgSent = mAudioCfgSent = false;
+        mVideoCfgSent = mAudioCfgSent = mSubCfgSent = false;
     }
 
     @Override
     public void onFrameAvailable(byte[] data, long timestamp) {
-        // Forward to the client
-        if (mCallback != null) {
-            mCallback.onDataAvailable(new VideoFrame(
-                    data, mFrameSize.x, mFrameSize.y, mFrameFormat, timestamp));
+        // Detect motion, before the frame is converted for the encoder
+        if (mMotionDetector != null) {
+            boolean motion = mMotionDetector.process(data, timestamp);
+            if (motion != mMotion) {
+                mMotion = motion;
+                if (mCallback != null)
+                    mCallback.onMotion(motion);
+            }
         }
-        // Convert the frame format and send it to the video encoder
-        if (mVideoEncoder != null) {
-            if (timestamp - mLastTimestamp >= mFrameInterval) {
-                mLastTimestamp = timestamp;
-                switch (mVideoEncoder.getColorFormat()) {
-                    case MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar:
-                        Image.convertNV12ToYUV420SemiPlanar(data, mFrameSize.x, mFrameSize.y);
-                        break;
-                    case MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar:
-                        Image.convertNV12ToYUV420Planar(data, mFrameSize.x, mFrameSize.y);
-                        break;
-                }
-                try {
-                    mVideoEncoder.push(new VideoFrame(
-                            data, mFrameSize.x, mFrameSize.y, mFrameFormat, timestamp));
-                } catch (InterruptedException e) {
-                    Log.e(TAG, "cannot send the frame to the encoder, operation interrupted");
-                    Thread.currentThread().interrupt();
+        // Forward to the client, as a pooled copy: the camera reuses its buffer
+        // Note: without MJPEG consumers a frame per second is enough for the snapshots
+        if (mCallback != null && (mFrameDemand ||
+                timestamp - mLastClientFrame >= IDLE_FRAME_INTERVAL * 1000L)) {
+            mLastClientFrame = timestamp;
+            VideoFrame frame = new VideoFrame(mFramePool, mFramePool.copyOf(data),
+                    mFrameSize.x, mFrameSize.y, mFrameFormat, timestamp);
+            mCallback.onDataAvailable(frame);
+            frame.release();
+        }
+        // Convert the frame format and send it to the video encoder, unless suspended
+        if (mVideoEncoder != null && !mVideoSuspended) {
+            // Note: the frames are paced on a schedule, with some tolerance for the jitter
+            // of the capture timestamps, that would otherwise drop frames at the camera rate
+            if (timestamp - mLastTimestamp >= mFrameInterval * 3 / 4) {
+                if (timestamp - mLastTimestamp > mFrameInterval * 2)
+                    mLastTimestamp = timestamp;
+                else
+                    mLastTimestamp += mFrameInterval;
+                // Halve a copy for the sub stream
+                if (mSubEncoder != null) {
+                    byte[] sub = data;
+                    for (int i = 0, w = mFrameSize.x, h = mFrameSize.y; i < mSubLevels; i++, w /= 2, h /= 2) {
+                        byte[] halved = Image.halveNV21(sub, w, h,
+                                mFramePool.acquire((w / 2) * (h / 2) * 3 / 2));
+                        if (sub != data)
+                            mFramePool.release(sub);
+                        sub = halved;
+                    }
+                    encodeFrame(mSubEncoder, sub, mSubSize.x, mSubSize.y, timestamp);
+                    mFramePool.release(sub);
                 }
+                // Convert the camera buffer straight into an encoder input buffer
+                // Note: not needed if the frames are rendered on the encoder input surface
+                if (mVideoEncoder.getSurface() == null)
+                    encodeFrame(mVideoEncoder, data, mFrameSize.x, mFrameSize.y, timestamp);
             }
         }
         // Update the frame rate
@@ -726,6 +1092,39 @@ public class Recorder
         }
     }
 
+    /**
+     * Converts a NV21 frame to the encoder color format, directly into an encoder input buffer.
+     * If no input buffer is available the frame is dropped: the capture thread never waits
+     * for the encoder.
+     */
+    private void encodeFrame(VideoEncoder encoder, byte[] data, int width, int height, long timestamp) {
+        try {
+            int index = encoder.dequeueInputBuffer();
+            if (index < 0) {
+                Log.v(TAG, "cannot encode the frame, no input buffer available");
+                return;
+            }
+            ByteBuffer buffer = encoder.getInputBuffer(index);
+            int size = width * height * 3 / 2;
+            if (buffer.capacity() < size) {
+                Log.e(TAG, "insufficient buffer size (" + buffer.capacity() + "), frame size is " + size);
+                encoder.queueInputBuffer(index, 0, timestamp);
+                return;
+            }
+            switch (encoder.getColorFormat()) {
+                case MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar:
+                    mConverter.convertNV21ToNV12(data, buffer, width, height);
+                    break;
+                case MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar:
+                    mConverter.convertNV21ToI420(data, buffer, width, height);
+                    break;
+            }
+            encoder.queueInputBuffer(index, size, timestamp);
+        } catch (IllegalStateException e) {
+            Log.w(TAG, "cannot encode the frame, the encoder is not running", e);
+        }
+    }
+
     @Override
     public void onDataAvailable(VideoCodec codec, byte[] data, MediaCodec.BufferInfo info) {
         if (codec == mVideoEncoder) {
@@ -735,14 +1134,56 @@ public class Recorder
                     ByteBuffer sps = mVideoEncoder.getSPS();
                     ByteBuffer pps = mVideoEncoder.getPPS();
                     if (sps != null && pps != null) {
-                        mCallback.onDataAvailable(new VideoFrame(sps.array(), "sps"));
-                        mCallback.onDataAvailable(new VideoFrame(pps.array(), "pps"));
+                        forward(new VideoFrame(sps.array(), "sps"));
+                        forward(new VideoFrame(pps.array(), "pps"));
                         mVideoCfgSent = true;
                     }
                 }
-                mCallback.onDataAvailable(new VideoFrame(data, info.presentationTimeUs));
+                // Wrap the encoder output without copying, shared by all the consumers
+                forward(new VideoFrame(mSlicePool, data, info.size, info.presentationTimeUs));
+            } else {
+                mSlicePool.release(data);
             }
+        } else if (codec == mSubEncoder) {
+            // Forward to the client
+            if (mCallback != null) {
+                if (!mSubCfgSent) {
+                    ByteBuffer sps = mSubEncoder.getSPS();
+                    ByteBuffer pps = mSubEncoder.getPPS();
+                    if (sps != null && pps != null) {
+                        forwardSub(new VideoFrame(sps.array(), "sps"));
+                        forwardSub(new VideoFrame(pps.array(), "pps"));
+                        mSubCfgSent = true;
+                    }
+                }
+                // Wrap the encoder output without copying, shared by all the consumers
+                forwardSub(new VideoFrame(mSlicePool, data, info.size, info.presentationTimeUs));
+            } else {
+                mSlicePool.release(data);
+            }
+        } else {
+            mSlicePool.release(data);
         }
+        // Suspend the encoders once the configuration has been sent, if nobody needs them
+        if (!mVideoDemand && !mVideoSuspended)
+            updateVideoSuspension();
+    }
+
+    /**
+     * Forwards a compressed frame to the client, then drops the creator reference:
+     * the consumers that queue the frame hold their own reference.
+     */
+    private void forward(VideoFrame frame) {
+        mCallback.onDataAvailable(frame);
+        frame.release();
+    }
+
+    /**
+     * Forwards a compressed sub stream frame to the client, then drops the creator reference.
+     */
+    private void forwardSub(VideoFrame frame) {
+        mCallback.onSubDataAvailable(frame);
+        frame.release();
     }
 
     @Override
@@ -753,12 +1194,11 @@ public class Recorder
     }
 
     @Override
-    public void onDataAvailable(byte[] data, long timestamp) {
+    public void onDataAvailable(AudioData data) {
         // Send data to the encoder
         if (mAudioEncoder != null) {
             try {
-                mAudioEncoder.push(new AudioData(
-                        data, mAudioRecorder.getAudioFormat(), timestamp));
+                mAudioEncoder.push(data);
             } catch (InterruptedException e) {
                 Log.e(TAG, "cannot send the data to the encoder, operation interrupted");
                 Thread.currentThread().interrupt();
@@ -780,6 +1220,9 @@ public class Recorder
                 }
                 mCallback.onDataAvailable(new AudioData(data, info.presentationTimeUs));
             }
+            // Stop the capture once the configuration has been sent, if nobody needs it
+            if (!mAudioDemand && !mAudioPaused)
+                updateAudioCapture();
         }
     }
 
@@ -0,0 +1,201 @@
+/*
+ * This file is part of spyNet Camera, the Android IP camera
+ *
+ * Copyright (C) 2016-2017 Paolo Dematteis
+ *
+ * spyNet Camera is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * spyNet Camera is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Paolo Dematteis - spynet314@gmail.com
+ */
+
+package com.spynet.camera.media;
+
+import java.util.Locale;
+
+/**
+ * Parses an H264 Sequence Parameter Set to retrieve the information needed by the muxers.<br>
+ * Only the fields up to the frame cropping are decoded (ITU-T H.264, section 7.3.2.1.1).
+ */
+public class SPSParser {
+
+    private final int mProfile;                     // The profile_idc
+    private final int mCompatibility;               // The constraint flags
+    private final int mLevel;                       // The level_idc
+    private final int mWidth;                       // The frame width in pixels
+    private final int mHeight;                      // The frame height in pixels
+
+    /**
+     * Creates a new SPSParser object.
+     *
+     * @param sps the SPS NAL unit, without the start code
+     * @throws IllegalArgumentException if the SPS is not valid
+     */
+    public SPSParser(byte[] sps) throws IllegalArgumentException {
+
+        if (sps == null || sps.length < 4 || (sps[0] & 0x1F) != 7)
+            throw new IllegalArgumentException("not a valid SPS");
+
+        ByteArrayInputBitStream bs = new ByteArrayInputBitStream(unescape(sps));
+        bs.read(8);                                 // NAL header
+        mProfile = bs.read(8);
+        mCompatibility = bs.read(8);
+        mLevel = bs.read(8);
+        readUE(bs);                                 // seq_parameter_set_id
+
+        int chromaFormat = 1;
+        if (mProfile == 100 || mProfile == 110 || mProfile == 122 || mProfile == 244 ||
+                mProfile == 44 || mProfile == 83 || mProfile == 86 || mProfile == 118 ||
+                mProfile == 128 || mProfile == 138 || mProfile == 139 || mProfile == 134) {
+            chromaFormat = readUE(bs);
+            if (chromaFormat == 3)
+                bs.read(1);                         // separate_colour_plane_flag
+            readUE(bs);                             // bit_depth_luma_minus8
+            readUE(bs);                             // bit_depth_chroma_minus8
+            bs.read(1);                             // qpprime_y_zero_transform_bypass_flag
+            if (bs.read(1) == 1) {                  // seq_scaling_matrix_present_flag
+                for (int i = 0; i < (chromaFormat != 3 ? 8 : 12); i++) {
+                    if (bs.read(1) == 1)            // seq_scaling_list_present_flag
+                        skipScalingList(bs, i < 6 ? 16 : 64);
+                }
+            }
+        }
+
+        readUE(bs);                                 // log2_max_frame_num_minus4
+        int pocType = readUE(bs);
+        if (pocType == 0) {
+            readUE(bs);                             // log2_max_pic_order_cnt_lsb_minus4
+        } else if (pocType == 1) {
+            bs.read(1);                             // delta_pic_order_always_zero_flag
+            readSE(bs);                             // offset_for_non_ref_pic
+            readSE(bs);                             // offset_for_top_to_bottom_field
+            int cycle = readUE(bs);
+            for (int i = 0; i < cycle; i++)
+                readSE(bs);                         // offset_for_ref_frame
+        }
+        readUE(bs);                                 // max_num_ref_frames
+        bs.read(1);                                 // gaps_in_frame_num_value_allowed_flag
+
+        int widthInMbs = readUE(bs) + 1;
+        int heightInMapUnits = readUE(bs) + 1;
+        int frameMbsOnly = bs.read(1);
+        if (frameMbsOnly == 0)
+            bs.read(1);                             // mb_adaptive_frame_field_flag
+        bs.read(1);                                 // direct_8x8_inference_flag
+
+        int cropLeft = 0, cropRight = 0, cropTop = 0, cropBottom = 0;
+        if (bs.read(1) == 1) {                      // frame_cropping_flag
+            cropLeft = readUE(bs);
+            cropRight = readUE(bs);
+            cropTop = readUE(bs);
+            cropBottom = readUE(bs);
+        }
+        int cropUnitX = (chromaFormat == 1 || chromaFormat == 2) ? 2 : 1;
+        int cropUnitY = (chromaFormat == 1 ? 2 : 1) * (2 - frameMbsOnly);
+        mWidth = widthInMbs * 16 - (cropLeft + cropRight) * cropUnitX;
+        mHeight = (2 - frameMbsOnly) * heightInMapUnits * 16 - (cropTop + cropBottom) * cropUnitY;
+    }
+
+    /**
+     * @return the profile_idc
+     */
+    public int getProfile() {
+        return mProfile;
+    }
+
+    /**
+     * @return the profile compatibility (constraint flags)
+     */
+    public int getCompatibility() {
+        return mCompatibility;
+    }
+
+    /**
+     * @return the level_idc
+     */
+    public int getLevel() {
+        return mLevel;
+    }
+
+    /**
+     * @return the frame width in pixels
+     */
+    public int getWidth() {
+        return mWidth;
+    }
+
+    /**
+     * @return the frame height in pixels
+     */
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * @return the RFC 6381 codec string, i.e. avc1.PPCCLL
+     */
+    public String getCodecString() {
+        return String.format(Locale.US, "avc1.%02x%02x%02x", mProfile, mCompatibility, mLevel);
+    }
+
+    /**
+     * Removes the emulation prevention bytes (0x00 0x00 0x03 -> 0x00 0x00).
+     */
+    private static byte[] unescape(byte[] nal) {
+        byte[] rbsp = new byte[nal.length];
+        int length = 0, zeros = 0;
+        for (byte b : nal) {
+            if (zeros >= 2 && b == 0x03) {
+                zeros = 0;
+                continue;
+            }
+            rbsp[length++] = b;
+            zeros = (b == 0) ? zeros + 1 : 0;
+        }
+        byte[] result = new byte[length];
+        System.arraycopy(rbsp, 0, result, 0, length);
+        return result;
+    }
+
+    /**
+     * Reads an unsigned Exp-Golomb-coded value.
+     */
+    private static int readUE(ByteArrayInputBitStream bs) {
+        int zeros = 0;
+        while (bs.read(1) == 0) {
+            if (++zeros > 31)
+                throw new IllegalArgumentException("not a valid SPS");
+        }
+        return zeros == 0 ? 0 : (1 << zeros) - 1 + bs.read(zeros);
+    }
+
+    /**
+     * Reads a signed Exp-Golomb-coded value.
+     */
+    private static int readSE(ByteArrayInputBitStream bs) {
+        int value = readUE(bs);
+        return (value & 1) == 1 ? (value + 1) / 2 : -(value / 2);
+    }
+
+    /**
+     * Skips a scaling list (ITU-T H.264, section 7.3.2.1.1.1).
+     */
+    private static void skipScalingList(ByteArrayInputBitStream bs, int size) {
+        int last = 8, next = 8;
+        for (int j = 0; j < size; j++) {
+            if (next != 0)
+                next = (last + readSE(bs) + 256) % 256;
+            last = (next == 0) ? last : next;
+        }
+    }
+}
@@ -28,8 +28,10 @@ import android.graphics.SurfaceTexture;
 import android.util.Log;
 import android.view.Surface;
 
+import com.spynet.camera.common.ImageConverter;
 import com.spynet.camera.common.TimeStamp;
 import com.spynet.camera.gl.EGLOffscreenContext;
+import com.spynet.camera.gl.PixelBufferReader;
 import com.spynet.camera.gl.TextureRender;
 
 import java.io.IOException;
@@ -37,16 +39,24 @@ import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
+import javax.microedition.khronos.egl.EGLSurface;
+
 /**
- * Implements the dummy Camera used when the screen capture is selected.
+ * Implements the dummy Camera used when the screen capture is selected.<br>
+ * When an encoder surface is set, each frame is rendered onto it directly by the GPU, and
+ * the frames are read back for the {@link FrameCallback} at full rate only while there is
+ * a demand for them (see {@link #setFrameDemand(boolean)}), otherwise at
+ * {@link #IDLE_FRAME_INTERVAL} to keep the snapshots reasonably fresh.
  */
 public class ScreenCaptureCamera implements com.spynet.camera.media.Camera {
 
     protected final String TAG = getClass().getSimpleName();
 
     private final static int FRAME_TIMEOUT = 100;   // Encoder doesn't like less than 10 fps
+    private final static int IDLE_FRAME_INTERVAL = 1000;    // Readback interval without demand, in ms
 
     private final Object mFrameSyncObject = new Object();
+    private final float[] mSTMatrix = new float[16];    // The SurfaceTexture transform matrix
 
     private FrameCallback mFrameCallback;           // The FrameCallback implemented by mContext
     private Point mFrameSize;                       // The frame size in pixel
@@ -55,7 +65,17 @@ public class ScreenCaptureCamera implements com.spynet.camera.media.Camera {
     private Surface mSurface;                       // The Surface attached to the SurfaceTexture
     private TextureRender mTextureRender;           // The TextureRender that will render the frames
     private EGLOffscreenContext mEglContext;        // The offscreen EGL context used by OpenGL
+    private PixelBufferReader mPixelReader;         // Asynchronous readback, null if not supported
     private ByteBuffer mFrameBuffer;                // The input frame buffer (from OpenGL)
+    private boolean mPackNV21;                      // Whether the frame is packed as NV21 on the GPU
+    private ImageConverter mConverter;              // Packs the frame buffer into NV21, if not done on the GPU
+    private boolean mRecordable;                    // Whether the context can render on an encoder surface
+    private EGLSurface mEncoderSurface;             // The encoder input surface, null if not used
+    private volatile boolean mFrameDemand = true;   // Whether the frames are needed at full rate
+    private long mLastReadback;                     // Time of the last readback without demand, in ms
+    private volatile int mFrameInterval;            // Minimum interval between the grabbed frames, in ms
+    private long mLastGrab;                         // Time of the last grabbed frame, in ms
+    private boolean mFrameReady;                    // Whether a new frame has been read back
     private Thread mDeliverThread;                  // The thread that deliver the frames to the client
     private long mStartTime;                        // Time when start counting frames
     private long mFrameCount;                       // Number of counted frames
@@ -111,23 +131,43 @@ public class ScreenCaptureCamera implements com.spynet.camera.media.Camera {
         assert mFrameSize != null; // getSupportedSizes() always returns a list with at least one element
         Log.i(TAG, "capture size is " + mFrameSize.x + "x" + mFrameSize.y);
 
-        // Allocate frame buffers
-        mFrameBuffer = ByteBuffer.allocateDirect(mFrameSize.x * mFrameSize.y * 4);
+        // Allocate frame buffers: NV21 when packed on the GPU, Y, U, V, A otherwise
+        mPackNV21 = TextureRender.isNV21Supported(mFrameSize.x, mFrameSize.y);
+        if (mPackNV21) {
+            mFrameBuffer = ByteBuffer.allocateDirect(mFrameSize.x * mFrameSize.y * 3 / 2);
+        } else {
+            mFrameBuffer = ByteBuffer.allocateDirect(mFrameSize.x * mFrameSize.y * 4);
+            mConverter = new ImageConverter();
+        }
 
-        // Initialize OpenGL stuff
-        mEglContext = new EGLOffscreenContext(
-                EGLOffscreenContext.CONFIG_PIXEL_RGBA_BUFFER,
-                mFrameSize.x, mFrameSize.y);
+        // Initialize OpenGL stuff, with a configuration that can render on an encoder surface
+        // if available
+        try {
+            mEglContext = new EGLOffscreenContext(
+                    EGLOffscreenContext.CONFIG_RECORDABLE_RGBA_BUFFER,
+                    mFrameSize.x, mFrameSize.y, 3);
+            mRecordable = true;
+        } catch (RuntimeException e) {
+            Log.w(TAG, "recordable EGL configuration not available", e);
+            mEglContext = new EGLOffscreenContext(
+                    EGLOffscreenContext.CONFIG_PIXEL_RGBA_BUFFER,
+                    mFrameSize.x, mFrameSize.y, 3);
+            mRecordable = false;
+        }
         mEglContext.makeCurrent();
         mTextureRender = new TextureRender();
+        if (PixelBufferReader.isSupported(mEglContext.getVersion())) {
+            mPixelReader = new PixelBufferReader(mFrameBuffer.capacity());
+            Log.d(TAG, "using asynchronous pixel buffer readback");
+        }
         mSurfaceTexture = new SurfaceTexture(mTextureRender.getTextureId());
         mSurfaceTexture.setDefaultBufferSize(mFrameSize.x, mFrameSize.y);
         mSurfaceTexture.setOnFrameAvailableListener(new SurfaceTexture.OnFrameAvailableListener() {
             @Override
             public void onFrameAvailable(SurfaceTexture surfaceTexture) {
                 synchronized (mFrameSyncObject) {
-                    grabNextFrame();
-                    mFrameSyncObject.notifyAll();
+                    if (grabNextFrame())
+                        mFrameSyncObject.notifyAll();
                 }
             }
         });
@@ -144,7 +184,18 @@ public class ScreenCaptureCamera implements com.spynet.camera.media.Camera {
                     while (!Thread.currentThread().isInterrupted()) {
                         try {
                             mFrameSyncObject.wait(FRAME_TIMEOUT);
-                            convertToNV12(mFrameBuffer.array(), data, mFrameSize.x, mFrameSize.y);
+                            // The encoder surface doesn't need the last frame to be repeated
+                            boolean ready = mFrameReady;
+                            mFrameReady = false;
+                            if (!ready && mEncoderSurface != null)
+                                continue;
+                            if (mPackNV21) {
+                                mFrameBuffer.rewind();
+                                mFrameBuffer.get(data);
+                            } else {
+                                // The frame buffer holds Y, U, V, A bytes (see TextureRender)
+                                mConverter.convertYUVAToNV21(mFrameBuffer.array(), data, mFrameSize.x, mFrameSize.y);
+                            }
                             processPreviewFrame(data);
                         } catch (InterruptedException e) {
                             break;
@@ -167,6 +218,10 @@ public class ScreenCaptureCamera implements com.spynet.camera.media.Camera {
             }
             mDeliverThread = null;
         }
+        if (mConverter != null) {
+            mConverter.close();
+            mConverter = null;
+        }
         synchronized (mFrameSyncObject) {
             if (mSurfaceTexture != null)
                 mSurfaceTexture.setOnFrameAvailableListener(null);
@@ -176,6 +231,10 @@ public class ScreenCaptureCamera implements com.spynet.camera.media.Camera {
     @Override
     public void release() {
         synchronized (mFrameSyncObject) {
+            if (mEncoderSurface != null) {
+                mEglContext.destroySurface(mEncoderSurface);
+                mEncoderSurface = null;
+            }
             if (mSurface != null)
                 mSurface.release();
             if (mSurfaceTexture != null)
@@ -189,6 +248,46 @@ public class ScreenCaptureCamera implements com.spynet.camera.media.Camera {
     public void setSurface(Surface surface) throws IOException {
     }
 
+    @Override
+    public boolean isEncoderSurfaceSupported() {
+        return mRecordable;
+    }
+
+    @Override
+    public void setEncoderSurface(Surface surface) {
+        synchronized (mFrameSyncObject) {
+            if (mEncoderSurface != null) {
+                mEglContext.destroySurface(mEncoderSurface);
+                mEncoderSurface = null;
+            }
+            if (surface != null) {
+                if (!mRecordable)
+                    throw new IllegalStateException("the EGL configuration is not recordable");
+                mEncoderSurface = mEglContext.createWindowSurface(surface);
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}<br>
+     * Without demand a frame is still read back every {@link #IDLE_FRAME_INTERVAL}
+     * milliseconds, to keep the snapshots reasonably fresh.
+     */
+    @Override
+    public void setFrameDemand(boolean demand) {
+        mFrameDemand = demand;
+    }
+
+    /**
+     * {@inheritDoc}<br>
+     * The display produces frames at its own refresh rate, the ones that come too early are
+     * skipped before being rendered or read back.
+     */
+    @Override
+    public void setFrameRate(int fps) {
+        mFrameInterval = fps > 0 ? 1000 / fps : 0;
+    }
+
     @Override
     public Surface getSurface() {
         return mSurface;
@@ -237,46 +336,61 @@ public class ScreenCaptureCamera implements com.spynet.camera.media.Camera {
     }
 
     /**
-     * Acquire the next video frame.
+     * Acquire the next video frame.<br>
+     * The frame is first rendered on the encoder surface, if any, then read back when needed.
+     * With the asynchronous readback the frame buffer receives the frame rendered
+     * one call earlier, while the current one is still being rendered.
+     *
+     * @return {@code true} if the frame buffer has been updated, {@code false} otherwise
      */
-    private void grabNextFrame() {
+    private boolean grabNextFrame() {
         // Check if still alive
         if (mSurface == null || !mSurface.isValid())
-            return;
-        // Draw the frame and copy its pixels in the frame buffer
+            return false;
         mEglContext.makeCurrent();
         mSurfaceTexture.updateTexImage();
-        mTextureRender.draw();
-        mTextureRender.getPixels(mFrameSize.x, mFrameSize.y, mFrameBuffer);
+        // Skip the frames faster than needed, with some tolerance for the display jitter
+        long now = System.currentTimeMillis();
+        if (now - mLastGrab < mFrameInterval * 3 / 4)
+            return false;
+        mLastGrab = now;
+        // Render the frame on the encoder surface, the encoder timestamps it when queued
+        if (mEncoderSurface != null) {
+            mSurfaceTexture.getTransformMatrix(mSTMatrix);
+            mEglContext.makeCurrent(mEncoderSurface);
+            mTextureRender.drawRGB(mSTMatrix, mFrameSize.x, mFrameSize.y);
+            if (!mEglContext.swapBuffers(mEncoderSurface))
+                Log.w(TAG, "cannot post the frame to the encoder surface");
+            mEglContext.makeCurrent();
+            // Skip the readback if nobody needs the frames
+            if (!mFrameDemand) {
+                if (now - mLastReadback < IDLE_FRAME_INTERVAL)
+                    return false;
+                mLastReadback = now;
+            }
+        }
+        mFrameReady = readFrame();
+        return mFrameReady;
     }
 
     /**
-     * Adjust the frame format.
-     * The frame buffer acquired from the OpenGL surface contains pixels whose size is 4 bytes.
-     * Bytes represent Y, U, V, A (alpha color not used here).
-     * We have to rearrange bytes in the NV12 format, that is 4:2:0 YCrCb with planar Y,
-     * followed by interleaved Cr/Cb plane.
+     * Draws the current frame for the readback and copies its pixels in the frame buffer.
+     *
+     * @return {@code true} if the frame buffer has been updated, {@code false} otherwise
      */
-    public void convertToNV12(byte[] argb, byte[] nv12, int width, int height) {
-
-        int index = 0;
-        int yIndex = 0;
-        int uvIndex = width * height;
-        byte Y, U, V;
-
-        for (int j = 0; j < height; j++) {
-            for (int i = 0; i < width; i++) {
-                Y = argb[index++];
-                U = argb[index++];
-                V = argb[index++];
-                index++;
-                nv12[yIndex++] = Y;
-                if (j % 2 == 1 && i % 2 == 1) {
-                    nv12[uvIndex++] = V;
-                    nv12[uvIndex++] = U;
-                }
-            }
+    private boolean readFrame() {
+        if (mPackNV21) {
+            mTextureRender.drawNV21(mFrameSize.x, mFrameSize.y);
+            if (mPixelReader != null)
+                return mTextureRender.getNV21Pixels(mFrameSize.x, mFrameSize.y, mPixelReader, mFrameBuffer);
+            mTextureRender.getNV21Pixels(mFrameSize.x, mFrameSize.y, mFrameBuffer);
+        } else {
+            mTextureRender.draw();
+            if (mPixelReader != null)
+                return mPixelReader.read(0, 0, mFrameSize.x, mFrameSize.y, mFrameBuffer);
+            mTextureRender.getPixels(mFrameSize.x, mFrameSize.y, mFrameBuffer);
         }
+        return true;
     }
 
     /**
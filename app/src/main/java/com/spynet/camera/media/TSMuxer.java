@@ -0,0 +1,358 @@
+/*
+ * This file is part of spyNet Camera, the Android IP camera
+ *
+ * Copyright (C) 2016-2017 Paolo Dematteis
+ *
+ * spyNet Camera is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * spyNet Camera is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Paolo Dematteis - spynet314@gmail.com
+ */
+
+package com.spynet.camera.media;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Implements an MPEG-2 Transport Stream (ISO/IEC 13818-1) muxer for the encoded H264 and
+ * AAC streams.<br>
+ * Each call produces the 188-byte TS packets of one access unit, so that the same bytes can be
+ * shared by all the subscribers. PAT and PMT are repeated before each IDR frame.
+ */
+public class TSMuxer {
+
+    public static final int PACKET_SIZE = 188;
+
+    private static final int PID_PAT = 0x0000;
+    private static final int PID_PMT = 0x1000;
+    private static final int PID_VIDEO = 0x0100;
+    private static final int PID_AUDIO = 0x0101;
+    private static final int STREAM_TYPE_H264 = 0x1B;
+    private static final int STREAM_TYPE_AAC = 0x0F;
+    // Offset (90 kHz units) added to the timestamps so that the PCR never goes negative
+    private static final long PTS_OFFSET = 90000;
+    // Delay (90 kHz units) between the PCR and the video PTS
+    private static final long PCR_DELAY = 9000;
+    // Access Unit Delimiter NAL unit (primary_pic_type = 7, any slice type)
+    private static final byte[] AUD = new byte[]{0, 0, 0, 1, 0x09, (byte) 0xF0};
+    private static final byte[] START_CODE = new byte[]{0, 0, 0, 1};
+
+    private final byte[] mSPS;                      // Sequence Parameter Set (no start code)
+    private final byte[] mPPS;                      // Picture Parameter Set (no start code)
+    private final boolean mHasAudio;                // Whether the audio stream is muxed
+    private final int mAudioObjectType;             // AAC object type
+    private final int mAudioFrequencyIndex;         // AAC sampling frequency index
+    private final int mAudioChannels;               // AAC channel configuration
+    private final byte[] mPacket;                   // The packet being built
+    private final int[] mContinuity;                // Continuity counters (PAT, PMT, video, audio)
+    private long mBaseTimestamp = -1;               // First timestamp (us)
+
+    /**
+     * Creates a new TSMuxer object.
+     *
+     * @param sps      the Sequence Parameter Set, without the start code
+     * @param pps      the Picture Parameter Set, without the start code
+     * @param audioCfg the audio specific configuration, {@code null} to mux only the video
+     */
+    public TSMuxer(byte[] sps, byte[] pps, @Nullable byte[] audioCfg) {
+        mSPS = sps;
+        mPPS = pps;
+        mPacket = new byte[PACKET_SIZE];
+        mContinuity = new int[4];
+        if (audioCfg != null && audioCfg.length >= 2) {
+            // ISO/IEC 14496-3, AudioSpecificConfig(): 5 bits object type,
+            // 4 bits frequency index, 4 bits channel configuration
+            mHasAudio = true;
+            mAudioObjectType = (audioCfg[0] & 0xF8) >> 3;
+            mAudioFrequencyIndex = ((audioCfg[0] & 0x07) << 1) | ((audioCfg[1] & 0x80) >> 7);
+            mAudioChannels = (audioCfg[1] & 0x78) >> 3;
+        } else {
+            mHasAudio = false;
+            mAudioObjectType = 0;
+            mAudioFrequencyIndex = 0;
+            mAudioChannels = 0;
+        }
+    }
+
+    /**
+     * Muxes an H264 access unit.<br>
+     * IDR frames are preceded by PAT, PMT, SPS and PPS so that a player can join at any IDR.
+     *
+     * @param data      the buffer that holds the access unit (Annex B format) at its start
+     * @param size      the access unit length
+     * @param nals      the index of the NAL units in the access unit
+     * @param timestamp the access unit timestamp in microseconds
+     * @return the TS packets, {@code null} if the access unit contains no slices
+     */
+    @Nullable
+    public synchronized byte[] muxVideo(byte[] data, int size, NALIndex nals, long timestamp) {
+
+        int type = nals.getFirstSliceType();
+        if (type == 0)
+            return null;
+        boolean idr = type == NALIndex.TYPE_IDR;
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(size + size / 8 + 1024);
+        if (idr) {
+            writePAT(out);
+            writePMT(out);
+        }
+
+        // Access unit: AUD [+ SPS + PPS] + slices
+        int length = AUD.length + size;
+        if (idr)
+            length += 2 * START_CODE.length + mSPS.length + mPPS.length;
+        byte[] es = new byte[length];
+        int pos = 0;
+        System.arraycopy(AUD, 0, es, pos, AUD.length);
+        pos += AUD.length;
+        if (idr) {
+            pos = append(es, pos, START_CODE);
+            pos = append(es, pos, mSPS);
+            pos = append(es, pos, START_CODE);
+            pos = append(es, pos, mPPS);
+        }
+        System.arraycopy(data, 0, es, pos, size);
+
+        long pts = toPTS(timestamp);
+        // Video PES packets are unbounded (PES_packet_length = 0)
+        writePES(out, PID_VIDEO, 2, 0xE0, es, pts, pts - PCR_DELAY, idr, false);
+        return out.toByteArray();
+    }
+
+    /**
+     * Muxes an AAC frame, wrapping it in an ADTS header.
+     *
+     * @param data      the raw AAC frame
+     * @param timestamp the frame timestamp in microseconds
+     * @return the TS packets, {@code null} if the audio is not muxed
+     */
+    @Nullable
+    public synchronized byte[] muxAudio(byte[] data, long timestamp) {
+
+        if (!mHasAudio || mBaseTimestamp < 0)
+            return null;
+
+        // ISO/IEC 14496-3, ADTS header without CRC
+        int length = data.length + 7;
+        byte[] es = new byte[length];
+        es[0] = (byte) 0xFF;
+        es[1] = (byte) 0xF1;
+        es[2] = (byte) ((((mAudioObjectType - 1) & 0x03) << 6) |
+                ((mAudioFrequencyIndex & 0x0F) << 2) | ((mAudioChannels & 0x04) >> 2));
+        es[3] = (byte) (((mAudioChannels & 0x03) << 6) | ((length >> 11) & 0x03));
+        es[4] = (byte) ((length >> 3) & 0xFF);
+        es[5] = (byte) (((length & 0x07) << 5) | 0x1F);
+        es[6] = (byte) 0xFC;
+        System.arraycopy(data, 0, es, 7, data.length);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(length + 2 * PACKET_SIZE);
+        writePES(out, PID_AUDIO, 3, 0xC0, es, toPTS(timestamp), -1, false, true);
+        return out.toByteArray();
+    }
+
+    /**
+     * Converts a timestamp in microseconds to the 33-bit 90 kHz clock.
+     */
+    private long toPTS(long timestamp) {
+        if (mBaseTimestamp < 0)
+            mBaseTimestamp = timestamp;
+        return ((timestamp - mBaseTimestamp) * 9 / 100 + PTS_OFFSET) & 0x1FFFFFFFFL;
+    }
+
+    /**
+     * Helper to append an array.
+     */
+    private static int append(byte[] dst, int pos, byte[] src) {
+        System.arraycopy(src, 0, dst, pos, src.length);
+        return pos + src.length;
+    }
+
+    /**
+     * Writes the Program Association Table.
+     */
+    private void writePAT(ByteArrayOutputStream out) {
+        byte[] section = new byte[]{
+                0x00,                               // table_id
+                (byte) 0xB0, 0x0D,                  // section_syntax_indicator, length = 13
+                0x00, 0x01,                         // transport_stream_id
+                (byte) 0xC1,                        // version 0, current_next_indicator
+                0x00, 0x00,                         // section_number, last_section_number
+                0x00, 0x01,                         // program_number
+                (byte) (0xE0 | (PID_PMT >> 8)), (byte) PID_PMT,
+                0, 0, 0, 0                          // CRC32
+        };
+        writeSection(out, PID_PAT, 0, section);
+    }
+
+    /**
+     * Writes the Program Map Table.
+     */
+    private void writePMT(ByteArrayOutputStream out) {
+        int length = 13 + 5 + (mHasAudio ? 5 : 0);
+        byte[] section = new byte[length + 3];
+        int pos = 0;
+        section[pos++] = 0x02;                      // table_id
+        section[pos++] = (byte) (0xB0 | (length >> 8));
+        section[pos++] = (byte) length;
+        section[pos++] = 0x00;                      // program_number
+        section[pos++] = 0x01;
+        section[pos++] = (byte) 0xC1;               // version 0, current_next_indicator
+        section[pos++] = 0x00;                      // section_number
+        section[pos++] = 0x00;                      // last_section_number
+        section[pos++] = (byte) (0xE0 | (PID_VIDEO >> 8));  // PCR_PID
+        section[pos++] = (byte) PID_VIDEO;
+        section[pos++] = (byte) 0xF0;               // program_info_length = 0
+        section[pos++] = 0x00;
+        section[pos++] = STREAM_TYPE_H264;
+        section[pos++] = (byte) (0xE0 | (PID_VIDEO >> 8));
+        section[pos++] = (byte) PID_VIDEO;
+        section[pos++] = (byte) 0xF0;               // ES_info_length = 0
+        section[pos++] = 0x00;
+        if (mHasAudio) {
+            section[pos++] = STREAM_TYPE_AAC;
+            section[pos++] = (byte) (0xE0 | (PID_AUDIO >> 8));
+            section[pos++] = (byte) PID_AUDIO;
+            section[pos++] = (byte) 0xF0;
+            section[pos] = 0x00;
+        }
+        writeSection(out, PID_PMT, 1, section);
+    }
+
+    /**
+     * Writes a PSI section (CRC32 computed here) in a single TS packet.
+     */
+    private void writeSection(ByteArrayOutputStream out, int pid, int counter, byte[] section) {
+        int crc = crc32(section, section.length - 4);
+        section[section.length - 4] = (byte) (crc >> 24);
+        section[section.length - 3] = (byte) (crc >> 16);
+        section[section.length - 2] = (byte) (crc >> 8);
+        section[section.length - 1] = (byte) crc;
+        mPacket[0] = 0x47;
+        mPacket[1] = (byte) (0x40 | (pid >> 8));    // payload_unit_start_indicator
+        mPacket[2] = (byte) pid;
+        mPacket[3] = (byte) (0x10 | nextContinuity(counter));
+        mPacket[4] = 0x00;                          // pointer_field
+        System.arraycopy(section, 0, mPacket, 5, section.length);
+        for (int i = 5 + section.length; i < PACKET_SIZE; i++)
+            mPacket[i] = (byte) 0xFF;
+        out.write(mPacket, 0, PACKET_SIZE);
+    }
+
+    /**
+     * Writes a PES packet split in TS packets.
+     *
+     * @param pid       the elementary stream PID
+     * @param counter   the continuity counter index
+     * @param streamId  the PES stream_id
+     * @param es        the elementary stream data
+     * @param pts       the presentation timestamp (90 kHz)
+     * @param pcr       the program clock reference (90 kHz), -1 if not present
+     * @param random    whether this is a random access point
+     * @param bounded   whether the PES_packet_length has to be set
+     */
+    private void writePES(ByteArrayOutputStream out, int pid, int counter, int streamId,
+                          byte[] es, long pts, long pcr, boolean random, boolean bounded) {
+
+        byte[] header = new byte[14];
+        int pesLength = bounded ? es.length + 8 : 0;
+        header[0] = 0x00;                           // packet_start_code_prefix
+        header[1] = 0x00;
+        header[2] = 0x01;
+        header[3] = (byte) streamId;
+        header[4] = (byte) (pesLength >> 8);
+        header[5] = (byte) pesLength;
+        header[6] = (byte) 0x80;                    // marker bits
+        header[7] = (byte) 0x80;                    // PTS only
+        header[8] = 0x05;                           // PES_header_data_length
+        header[9] = (byte) (0x21 | ((pts >> 29) & 0x0E));
+        header[10] = (byte) (pts >> 22);
+        header[11] = (byte) (0x01 | ((pts >> 14) & 0xFE));
+        header[12] = (byte) (pts >> 7);
+        header[13] = (byte) (0x01 | ((pts << 1) & 0xFE));
+
+        int total = header.length + es.length;
+        int written = 0;
+        boolean first = true;
+        while (written < total) {
+            int pos = 4;
+            mPacket[0] = 0x47;
+            mPacket[1] = (byte) ((first ? 0x40 : 0x00) | (pid >> 8));
+            mPacket[2] = (byte) pid;
+            // Adaptation field: PCR and random access indicator on the first packet,
+            // stuffing on the last one
+            int adaptation = 0;
+            if (first && (pcr >= 0 || random))
+                adaptation = 2 + (pcr >= 0 ? 6 : 0);
+            int payload = Math.min(PACKET_SIZE - 4 - adaptation, total - written);
+            if (adaptation == 0 && payload < PACKET_SIZE - 4)
+                adaptation = PACKET_SIZE - 4 - payload;
+            else if (adaptation > 0)
+                adaptation = PACKET_SIZE - 4 - payload;
+            mPacket[3] = (byte) ((adaptation > 0 ? 0x30 : 0x10) | nextContinuity(counter));
+            if (adaptation > 0) {
+                mPacket[pos++] = (byte) (adaptation - 1);   // adaptation_field_length
+                if (adaptation > 1) {
+                    int flags = 0;
+                    if (first && random)
+                        flags |= 0x40;
+                    if (first && pcr >= 0)
+                        flags |= 0x10;
+                    mPacket[pos++] = (byte) flags;
+                    if (first && pcr >= 0) {
+                        long base = pcr & 0x1FFFFFFFFL;
+                        mPacket[pos++] = (byte) (base >> 25);
+                        mPacket[pos++] = (byte) (base >> 17);
+                        mPacket[pos++] = (byte) (base >> 9);
+                        mPacket[pos++] = (byte) (base >> 1);
+                        mPacket[pos++] = (byte) (((base & 0x01) << 7) | 0x7E);
+                        mPacket[pos++] = 0x00;
+                    }
+                    while (pos < 4 + adaptation)
+                        mPacket[pos++] = (byte) 0xFF;
+                }
+            }
+            // Payload
+            for (int i = 0; i < payload; i++, written++) {
+                mPacket[pos++] = written < header.length ?
+                        header[written] : es[written - header.length];
+            }
+            out.write(mPacket, 0, PACKET_SIZE);
+            first = false;
+        }
+    }
+
+    /**
+     * @return the next value of the specified continuity counter
+     */
+    private int nextContinuity(int counter) {
+        int value = mContinuity[counter];
+        mContinuity[counter] = (value + 1) & 0x0F;
+        return value;
+    }
+
+    /**
+     * Computes the MPEG-2 CRC32 (polynomial 0x04C11DB7, no reflection).
+     */
+    private static int crc32(byte[] data, int length) {
+        int crc = 0xFFFFFFFF;
+        for (int i = 0; i < length; i++) {
+            crc ^= (data[i] & 0xFF) << 24;
+            for (int b = 0; b < 8; b++)
+                crc = (crc & 0x80000000) != 0 ? (crc << 1) ^ 0x04C11DB7 : crc << 1;
+        }
+        return crc;
+    }
+}
@@ -28,6 +28,7 @@ import android.util.Log;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Defines either a video encoder or decoder.
@@ -40,12 +41,12 @@ public abstract class VideoCodec {
     protected final String TAG = getClass().getSimpleName();
 
     protected final int QUEUE_CAPACITY = 10;            // Frame queue capacity
-    protected final int QUEUE_WRITE_TIMEOUT = 5;        // Timeout to write to the queue in ms
     protected final int QUEUE_READ_TIMEOUT = 1000;      // Timeout to read from the queue in ms
     protected final int BUFFER_TIMEOUT = 1000;          // Timeout to access buffers in us
 
     protected final BlockingQueue<VideoFrame> mQueue;   // The queue used to pass video data to the VideoCodec
     protected final CodecCallback mCodecCallback;       // The CodecCallback implemented by mContext
+    protected final AtomicLong mDropped;                // Number of frames dropped because the codec was behind
 
     /**
      * A client may implement this interface to receive data buffers as they are available.
@@ -56,7 +57,9 @@ public abstract class VideoCodec {
          * This callback is invoked on the codec thread.
          *
          * @param codec the VideoCodec that called this callback
-         * @param data  encoded or decoded video data
+         * @param data  encoded or decoded video data, {@code info.size} bytes at the start
+         *              of a buffer taken from the codec pool, if any: the receiver owns the
+         *              buffer and gives it back to the pool once done
          * @param info  buffer metadata that describe its content
          */
         void onDataAvailable(VideoCodec codec, byte[] data, MediaCodec.BufferInfo info);
@@ -86,27 +89,47 @@ public abstract class VideoCodec {
     protected VideoCodec(CodecCallback callback) {
         mQueue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
         mCodecCallback = callback;
+        mDropped = new AtomicLong();
     }
 
     /**
-     * Pushes a new frame to the codec queue.<br>
-     * If the queue is full, the frame is silently dropped.
+     * Pushes a new frame to the codec queue, without blocking.<br>
+     * If the queue is full the oldest frames are dropped, so that a codec that is behind
+     * gets the most recent frames at a lower rate instead of growing the latency.<br>
+     * The queue holds its own reference to the frame, the caller keeps its one.
      *
      * @param frame the frame to be processed
-     * @return true if the frame has been added successfully, false if it was dropped
-     * @throws InterruptedException if interrupted while waiting
+     * @return true if the frame has been added without dropping, false if older frames
+     * have been dropped to make room
+     */
+    public boolean push(VideoFrame frame) {
+        frame.retain();
+        boolean dropped = false;
+        while (!mQueue.offer(frame)) {
+            VideoFrame oldest = mQueue.poll();
+            if (oldest != null) {
+                oldest.release();
+                mDropped.incrementAndGet();
+                dropped = true;
+            }
+        }
+        if (dropped)
+            Log.v(TAG, "the queue is full, the oldest frame has been dropped");
+        return !dropped;
+    }
+
+    /**
+     * @return the number of frames dropped so far because the codec was behind
      */
-    public boolean push(VideoFrame frame) throws InterruptedException {
-        if (mQueue.offer(frame, QUEUE_WRITE_TIMEOUT, TimeUnit.MILLISECONDS))
-            return true;
-        Log.v(TAG, "cannot add the frame, the queue is full");
-        return false;
+    public long getDroppedFrames() {
+        return mDropped.get();
     }
 
     /**
      * Pops a frame from the coded queue.
      *
-     * @return the retrieved Frame, null if the operation timed out
+     * @return the retrieved Frame, null if the operation timed out; the caller must
+     * release it when done
      * @throws InterruptedException if interrupted while waiting
      */
     protected VideoFrame pop() throws InterruptedException {
@@ -115,4 +138,13 @@ public abstract class VideoCodec {
             Log.v(TAG, "cannot get the frame, the queue is empty");
         return frame;
     }
+
+    /**
+     * Removes all the frames from the codec queue, releasing them.
+     */
+    protected void clearQueue() {
+        VideoFrame frame;
+        while ((frame = mQueue.poll()) != null)
+            frame.release();
+    }
 }
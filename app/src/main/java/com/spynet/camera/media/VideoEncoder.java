@@ -21,11 +21,14 @@
 
 package com.spynet.camera.media;
 
+import android.annotation.TargetApi;
 import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaCodecList;
 import android.media.MediaFormat;
 import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Bundle;
 import android.util.Log;
 import android.view.Surface;
@@ -35,19 +38,36 @@ import org.jetbrains.annotations.Nullable;
 import java.io.Closeable;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 
 /**
- * Implements a video encoder that encodes incoming uncompressed video frames.
+ * Implements a video encoder that encodes incoming uncompressed video frames.<br>
+ * On API 23 and above the encoder runs in asynchronous mode, driven by the codec callbacks
+ * on a dedicated thread; a polling thread is used otherwise.
  */
 @SuppressWarnings("deprecation")
 public class VideoEncoder extends VideoCodec implements Closeable {
 
+    // The MediaFormat.KEY_LATENCY key, introduced in API 30
+    private static final String KEY_LATENCY = "latency";
+    // With the intra refresh, the IDR frames are sent this many times less often
+    private static final int INTRA_REFRESH_IDR_FACTOR = 10;
+    // The output buffers are rounded up to this size, so that the pool can reuse them
+    private static final int OUTPUT_BUFFER_GRANULARITY = 4096;
+
     private final MediaCodec mEncoder;              // The underlying encoder
+    private final BufferPool mOutputPool;           // Pool of the encoded frame buffers, null if not pooled
     private ByteBuffer[] mInputBuffers;             // The encoder input buffers
     private ByteBuffer[] mOutputBuffers;            // The encoder output buffers
-    private Thread mEncoderThread;                  // The encoding thread
+    private Thread mEncoderThread;                  // The encoding thread, synchronous mode only
+    private HandlerThread mCallbackThread;          // The thread running the callbacks, asynchronous mode only
+    private volatile Handler mCallbackHandler;      // The Handler of mCallbackThread
+    private final ArrayDeque<Integer> mFreeInputs;  // The input buffers waiting for data, asynchronous mode only
+    private final Runnable mFeeder;                 // Fills the free input buffers, asynchronous mode only
     private Surface mInputSurface;                  // The input Surface
     private int mColorFormat;                       // The input buffer color format
+    private boolean mDirectInput;                   // Whether the client fills the input buffers itself
+    private boolean mLowLatency;                    // Whether the low latency profile is requested
     private int mBitrate;                           // The stream bitrate
     private volatile ByteBuffer mSPS;               // The Sequence Parameter Set
     private volatile ByteBuffer mPPS;               // The Picture Parameter Set
@@ -56,10 +76,19 @@ public class VideoEncoder extends VideoCodec implements Closeable {
      * Creates a new VideoEncoder object.
      *
      * @param callback the callback to receive the encoded/decoded video data
+     * @param pool     the pool the encoded frame buffers are taken from, null to allocate them
      */
-    public VideoEncoder(CodecCallback callback) throws IOException {
+    public VideoEncoder(CodecCallback callback, @Nullable BufferPool pool) throws IOException {
         super(callback);
         mEncoder = MediaCodec.createEncoderByType(MIME_TYPE);
+        mOutputPool = pool;
+        mFreeInputs = new ArrayDeque<>();
+        mFeeder = new Runnable() {
+            @Override
+            public void run() {
+                feedInputs();
+            }
+        };
     }
 
     /**
@@ -75,14 +104,26 @@ public class VideoEncoder extends VideoCodec implements Closeable {
     public void open(int width, int height, int format, int framerate, int bitrate, int distance) {
 
         // Configure the encoder
-        MediaFormat mediaFormat = MediaFormat.createVideoFormat(MIME_TYPE, width, height);
-        mediaFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, format);
-        mediaFormat.setInteger(MediaFormat.KEY_FRAME_RATE, framerate);
-        mediaFormat.setInteger(MediaFormat.KEY_BIT_RATE, bitrate);
-        mediaFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, distance);
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT)
-            mediaFormat.setLong(MediaFormat.KEY_REPEAT_PREVIOUS_FRAME_AFTER, 2000000 / framerate);
-        mEncoder.configure(mediaFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        MediaFormat mediaFormat = createFormat(width, height, format, framerate, bitrate, distance);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M)
+            startCallbacks();
+        if (mLowLatency && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP &&
+                applyLowLatency(mediaFormat, framerate, distance)) {
+            try {
+                mEncoder.configure(mediaFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            } catch (RuntimeException e) {
+                // Fall back to the default profile
+                Log.w(TAG, "low latency profile rejected by the encoder, using the default one", e);
+                stopCallbacks();
+                mEncoder.reset();
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M)
+                    startCallbacks();
+                mediaFormat = createFormat(width, height, format, framerate, bitrate, distance);
+                mEncoder.configure(mediaFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            }
+        } else {
+            mEncoder.configure(mediaFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        }
         if (format == MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface) {
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2)
                 mInputSurface = mEncoder.createInputSurface();
@@ -93,15 +134,159 @@ public class VideoEncoder extends VideoCodec implements Closeable {
 
         // Start the encoder
         mEncoder.start();
-        mInputBuffers = mEncoder.getInputBuffers();
-        mOutputBuffers = mEncoder.getOutputBuffers();
-        startEncoding();
+        if (mCallbackThread == null) {
+            if (mInputSurface == null)
+                mInputBuffers = mEncoder.getInputBuffers();
+            mOutputBuffers = mEncoder.getOutputBuffers();
+            startEncoding();
+        }
 
         // Store properties
         mColorFormat = format;
         mBitrate = bitrate;
     }
 
+    /**
+     * Sets whether the client fills the encoder input buffers itself, through
+     * {@link #dequeueInputBuffer()} and {@link #queueInputBuffer(int, int, long)},
+     * instead of pushing the frames to the queue.<br>
+     * Must be called before {@link #open(int, int, int, int, int, int)}.
+     *
+     * @param direct {@code true} to fill the input buffers directly, {@code false} to use the queue
+     */
+    public void setDirectInput(boolean direct) {
+        mDirectInput = direct;
+    }
+
+    /**
+     * Sets whether the encoder is configured for low latency, as needed for teleoperation:
+     * realtime priority, constant bitrate and periodic intra refresh instead of periodic
+     * IDR frames, as far as the encoder supports them.<br>
+     * Must be called before {@link #open(int, int, int, int, int, int)}.
+     *
+     * @param lowLatency {@code true} to use the low latency profile, {@code false} otherwise
+     */
+    public void setLowLatency(boolean lowLatency) {
+        mLowLatency = lowLatency;
+    }
+
+    /**
+     * Helper to create the encoder format with the default profile.
+     */
+    private MediaFormat createFormat(int width, int height, int format, int framerate, int bitrate, int distance) {
+        MediaFormat mediaFormat = MediaFormat.createVideoFormat(MIME_TYPE, width, height);
+        mediaFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, format);
+        mediaFormat.setInteger(MediaFormat.KEY_FRAME_RATE, framerate);
+        mediaFormat.setInteger(MediaFormat.KEY_BIT_RATE, bitrate);
+        mediaFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, distance);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT)
+            mediaFormat.setLong(MediaFormat.KEY_REPEAT_PREVIOUS_FRAME_AFTER, 2000000 / framerate);
+        return mediaFormat;
+    }
+
+    /**
+     * Helper to add the low latency settings to the encoder format.<br>
+     * The realtime priority and the latency are hints, ignored by the encoders that do not
+     * know them; the constant bitrate and the intra refresh are only requested if the encoder
+     * advertises them. With the intra refresh the whole picture is refreshed every
+     * {@code distance} seconds, one stripe per frame, and the IDR frames are only sent
+     * seldom or when requested by the new clients (see {@link #requestSyncFrame()}).
+     *
+     * Requires API 21.
+     *
+     * @return {@code true} if the format has been changed, {@code false} otherwise
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private boolean applyLowLatency(MediaFormat mediaFormat, int framerate, int distance) {
+        MediaCodecInfo.CodecCapabilities caps;
+        try {
+            caps = mEncoder.getCodecInfo().getCapabilitiesForType(MIME_TYPE);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "cannot read the encoder capabilities", e);
+            return false;
+        }
+        StringBuilder applied = new StringBuilder();
+        // Constant bitrate, without the bursts of the variable bitrate mode
+        MediaCodecInfo.EncoderCapabilities encoderCaps = caps.getEncoderCapabilities();
+        if (encoderCaps != null && encoderCaps.isBitrateModeSupported(
+                MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CBR)) {
+            mediaFormat.setInteger(MediaFormat.KEY_BITRATE_MODE,
+                    MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CBR);
+            applied.append(" cbr");
+        }
+        // Realtime priority
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            mediaFormat.setInteger(MediaFormat.KEY_PRIORITY, 0);
+            applied.append(" realtime");
+        }
+        // Output each frame as soon as it is encoded
+        if (Build.VERSION.SDK_INT >= 30) {
+            mediaFormat.setInteger(KEY_LATENCY, 1);
+            applied.append(" latency");
+        }
+        // Intra refresh instead of periodic IDR frames
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N &&
+                caps.isFeatureSupported(MediaCodecInfo.CodecCapabilities.FEATURE_IntraRefresh)) {
+            mediaFormat.setInteger(MediaFormat.KEY_INTRA_REFRESH_PERIOD,
+                    Math.max(framerate * distance, 1));
+            mediaFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL,
+                    distance * INTRA_REFRESH_IDR_FACTOR);
+            applied.append(" intra-refresh");
+        }
+        Log.i(TAG, "low latency profile:" + (applied.length() > 0 ? applied : " not supported"));
+        return applied.length() > 0;
+    }
+
+    /**
+     * Takes a free input buffer, without waiting.<br>
+     * The buffer must be filled by the caller and given back with
+     * {@link #queueInputBuffer(int, int, long)}. Only for direct input
+     * (see {@link #setDirectInput(boolean)}).<br>
+     * If none is available the encoder is behind: the caller should drop the frame,
+     * which is counted in {@link #getDroppedFrames()}.
+     *
+     * @return the input buffer index, a negative value if none is available
+     */
+    public int dequeueInputBuffer() {
+        int index;
+        if (mCallbackHandler == null) {
+            index = mEncoder.dequeueInputBuffer(0);
+        } else {
+            synchronized (mFreeInputs) {
+                Integer free = mFreeInputs.poll();
+                index = free != null ? free : -1;
+            }
+        }
+        if (index < 0)
+            mDropped.incrementAndGet();
+        return index;
+    }
+
+    /**
+     * @param index the input buffer index, returned by {@link #dequeueInputBuffer()}
+     * @return the input buffer, cleared
+     */
+    public ByteBuffer getInputBuffer(int index) {
+        ByteBuffer buffer;
+        if (mInputBuffers == null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP)
+            buffer = mEncoder.getInputBuffer(index);
+        else
+            buffer = mInputBuffers[index];
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Submits a filled input buffer to the encoder.
+     *
+     * @param index     the input buffer index, returned by {@link #dequeueInputBuffer()}
+     * @param size      the number of bytes written from the start of the buffer
+     * @param timestamp the frame timestamp in microseconds
+     */
+    public void queueInputBuffer(int index, int size, long timestamp) {
+        mEncoder.queueInputBuffer(index, 0, size, timestamp, 0);
+    }
+
     /**
      * Stops the video encoder.
      */
@@ -109,6 +294,7 @@ public class VideoEncoder extends VideoCodec implements Closeable {
     public void close() {
         stopEncoding();
         mEncoder.stop();
+        stopCallbacks();
         mInputBuffers = null;
         mOutputBuffers = null;
         mColorFormat = 0;
@@ -122,6 +308,7 @@ public class VideoEncoder extends VideoCodec implements Closeable {
      */
     public void release() {
         mEncoder.release();
+        stopCallbacks();
         if (mInputSurface != null)
             mInputSurface.release();
     }
@@ -192,6 +379,24 @@ public class VideoEncoder extends VideoCodec implements Closeable {
         }
     }
 
+    /**
+     * Suspends or resumes the encoding: while suspended the input frames are dropped by the
+     * encoder, which produces no output.<br>
+     * Not supported before API 19, where the call has no effect.
+     *
+     * @param suspend {@code true} to suspend the encoding, {@code false} to resume it
+     * @return {@code true} if the request has been applied, {@code false} if not supported
+     */
+    public boolean setSuspended(boolean suspend) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            Bundle bundle = new Bundle();
+            bundle.putInt(MediaCodec.PARAMETER_KEY_SUSPEND, suspend ? 1 : 0);
+            mEncoder.setParameters(bundle);
+            return true;
+        }
+        return false;
+    }
+
     /**
      * @return the Sequence Parameter Set, {@code null} if not available
      */
@@ -208,6 +413,159 @@ public class VideoEncoder extends VideoCodec implements Closeable {
         return mPPS;
     }
 
+    /**
+     * {@inheritDoc}<br>
+     * In asynchronous mode the frame is sent to the encoder as soon as an input buffer
+     * is available.
+     */
+    @Override
+    public boolean push(VideoFrame frame) {
+        boolean pushed = super.push(frame);
+        Handler handler = mCallbackHandler;
+        if (pushed && handler != null)
+            handler.post(mFeeder);
+        return pushed;
+    }
+
+    /**
+     * Helper to set the asynchronous mode up: the encoder callbacks run on a dedicated
+     * thread, that fills the input buffers as the frames arrive and forwards the output
+     * buffers as soon as they are available.<br>
+     * Requires API 23, must be called before configuring the encoder.
+     */
+    @TargetApi(Build.VERSION_CODES.M)
+    private void startCallbacks() {
+        mCallbackThread = new HandlerThread(TAG);
+        mCallbackThread.start();
+        mCallbackHandler = new Handler(mCallbackThread.getLooper());
+        mEncoder.setCallback(new MediaCodec.Callback() {
+            @Override
+            public void onInputBufferAvailable(MediaCodec codec, int index) {
+                synchronized (mFreeInputs) {
+                    mFreeInputs.add(index);
+                }
+                if (!mDirectInput)
+                    feedInputs();
+            }
+
+            @Override
+            public void onOutputBufferAvailable(MediaCodec codec, int index, MediaCodec.BufferInfo info) {
+                try {
+                    processOutput(codec.getOutputBuffer(index), index, info);
+                } catch (IllegalStateException e) {
+                    Log.w(TAG, "output buffer no longer available", e);
+                }
+            }
+
+            @Override
+            public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+                Log.e(TAG, "unexpected error while encoding", e);
+            }
+
+            @Override
+            public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+                processFormat(format);
+            }
+        }, mCallbackHandler);
+        Log.d(TAG, "asynchronous mode started");
+    }
+
+    /**
+     * Helper to stop the asynchronous mode, once the encoder has been stopped.
+     */
+    private void stopCallbacks() {
+        if (mCallbackThread != null) {
+            mCallbackHandler = null;
+            mCallbackThread.quit();
+            try {
+                mCallbackThread.join();
+            } catch (InterruptedException e) {
+                Log.e(TAG, "stop callbacks interrupted");
+            }
+            mCallbackThread = null;
+            synchronized (mFreeInputs) {
+                mFreeInputs.clear();
+            }
+            clearQueue();
+        }
+    }
+
+    /**
+     * Fills the free input buffers with the queued frames.<br>
+     * Runs on the callback thread, in asynchronous mode.
+     */
+    @TargetApi(Build.VERSION_CODES.M)
+    private void feedInputs() {
+        VideoFrame frame;
+        synchronized (mFreeInputs) {
+            while (!mFreeInputs.isEmpty() && (frame = mQueue.poll()) != null) {
+                try {
+                    byte[] data = frame.getData();
+                    if (data == null) {
+                        Log.w(TAG, "null frame received");
+                        continue;
+                    }
+                    int index = mFreeInputs.peek();
+                    ByteBuffer inBuffer = mEncoder.getInputBuffer(index);
+                    if (inBuffer == null || data.length > inBuffer.capacity()) {
+                        Log.e(TAG, "insufficient buffer size, data length is " + data.length);
+                        continue;
+                    }
+                    mFreeInputs.poll();
+                    inBuffer.clear();
+                    inBuffer.put(data);
+                    mEncoder.queueInputBuffer(index, 0, data.length, frame.getTimestamp(), 0);
+                } catch (IllegalStateException e) {
+                    Log.w(TAG, "input buffer no longer available", e);
+                    mFreeInputs.clear();
+                } finally {
+                    frame.release();
+                }
+            }
+        }
+    }
+
+    /**
+     * Forwards an encoded buffer to the client, and gives it back to the encoder.<br>
+     * This is the only copy of the access unit, into a buffer taken from the output pool and
+     * rounded up to {@link #OUTPUT_BUFFER_GRANULARITY}: the client takes ownership of the
+     * buffer, shares it with all the consumers and gives it back once the last one is done.
+     *
+     * @param outBuffer the output buffer
+     * @param index     the output buffer index
+     * @param info      the output buffer metadata
+     */
+    private void processOutput(ByteBuffer outBuffer, int index, MediaCodec.BufferInfo info) {
+        byte[] data = mOutputPool != null ?
+                mOutputPool.acquire((info.size + OUTPUT_BUFFER_GRANULARITY - 1) &
+                        ~(OUTPUT_BUFFER_GRANULARITY - 1)) :
+                new byte[info.size];
+        outBuffer.position(info.offset);
+        outBuffer.limit(info.offset + info.size);
+        outBuffer.get(data, 0, info.size);
+        mEncoder.releaseOutputBuffer(index, false);
+        if (mCodecCallback != null) {
+            mCodecCallback.onDataAvailable(this, data, info);
+        } else if (mOutputPool != null) {
+            mOutputPool.release(data);
+        }
+    }
+
+    /**
+     * Handles a change of the output format, that brings the SPS and PPS.
+     *
+     * @param newFormat the new output format
+     */
+    private void processFormat(MediaFormat newFormat) {
+        // Subsequent data will conform to new format
+        mSPS = newFormat.getByteBuffer("csd-0");
+        mPPS = newFormat.getByteBuffer("csd-1");
+        Log.i(TAG, "output format changed to " + newFormat.toString());
+        if (mCodecCallback != null) {
+            mCodecCallback.onOutputFormatChanged(this, newFormat);
+        }
+    }
+
     /**
      * Helper to start the encoding thread.
      */
@@ -241,18 +599,19 @@ public class VideoEncoder extends VideoCodec implements Closeable {
      */
     private void doEncode() {
 
-        ByteBuffer outBuffer, inBuffer;     // In/out buffers
+        ByteBuffer inBuffer;                // Input buffer
         VideoFrame videoFrame;              // Incoming uncompressed frame
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
 
         // Reset the input queue
-        mQueue.clear();
+        clearQueue();
 
         // Encoder loop
         Log.d(TAG, "encoder loop started");
         while (!Thread.currentThread().isInterrupted()) {
             try {
-                // Process input buffer
-                if (mInputSurface == null) {
+                // Process input buffer, unless filled by the client
+                if (mInputSurface == null && !mDirectInput) {
                     int inputBufferId = mEncoder.dequeueInputBuffer(BUFFER_TIMEOUT);
                     if (inputBufferId >= 0) {
                         // Fill input buffer with valid data from the queue
@@ -265,6 +624,7 @@ public class VideoEncoder extends VideoCodec implements Closeable {
                                 if (data.length > inBuffer.capacity()) {
                                     Log.e(TAG, "insufficient buffer size (" + inBuffer.capacity() + "), " +
                                             "data length is " + data.length);
+                                    videoFrame.release();
                                     break;
                                 }
                                 inBuffer.put(data);
@@ -274,6 +634,7 @@ public class VideoEncoder extends VideoCodec implements Closeable {
                                 Log.w(TAG, "null frame received");
                                 mEncoder.queueInputBuffer(inputBufferId, 0, 0, 0, 0);
                             }
+                            videoFrame.release();
                         } else {
                             Log.e(TAG, "timeout reading from the queue");
                             mEncoder.queueInputBuffer(inputBufferId, 0, 0, 0, 0);
@@ -281,31 +642,15 @@ public class VideoEncoder extends VideoCodec implements Closeable {
                     }
                 }
                 // Process output buffer
-                MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
                 int outputBufferId = mEncoder.dequeueOutputBuffer(info, BUFFER_TIMEOUT);
                 if (outputBufferId >= 0) {
                     // Output buffer is ready to be processed or rendered
-                    outBuffer = mOutputBuffers[outputBufferId];
-                    byte[] data = new byte[info.size];
-                    outBuffer.position(info.offset);
-                    outBuffer.limit(info.offset + info.size);
-                    outBuffer.get(data, info.offset, info.size);
-                    mEncoder.releaseOutputBuffer(outputBufferId, false);
-                    if (mCodecCallback != null) {
-                        mCodecCallback.onDataAvailable(this, data, info);
-                    }
+                    processOutput(mOutputBuffers[outputBufferId], outputBufferId, info);
                 } else if (outputBufferId == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
                     mOutputBuffers = mEncoder.getOutputBuffers();
                     Log.d(TAG, "output buffers changed");
                 } else if (outputBufferId == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                    // Subsequent data will conform to new format
-                    MediaFormat newFormat = mEncoder.getOutputFormat();
-                    mSPS = newFormat.getByteBuffer("csd-0");
-                    mPPS = newFormat.getByteBuffer("csd-1");
-                    Log.i(TAG, "output format changed to " + newFormat.toString());
-                    if (mCodecCallback != null) {
-                        mCodecCallback.onOutputFormatChanged(this, newFormat);
-                    }
+                    processFormat(mEncoder.getOutputFormat());
                 }
             } catch (InterruptedException e) {
                 Log.v(TAG, "encoder loop interrupted");
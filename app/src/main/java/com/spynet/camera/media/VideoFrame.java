@@ -23,8 +23,14 @@ package com.spynet.camera.media;
 
 import android.graphics.ImageFormat;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
- * Defines a video data frame.
+ * Defines a video data frame.<br>
+ * Frames are reference counted: the creator owns the first reference, anyone that keeps
+ * the frame beyond the call that received it must {@link #retain()} it and {@link #release()}
+ * it when done. The data of a pooled frame goes back to its {@link BufferPool} when the last
+ * reference is released, and must not be accessed afterwards.
  */
 public class VideoFrame {
 
@@ -34,11 +40,15 @@ public class VideoFrame {
     private static final int TYPE_VIDEO_CONFIG = 3;
 
     private final byte[] data;                      // The video data
+    private final int size;                         // The length of the data in the buffer
     private final int width, height;                // The frame dimensions
     private final int format;                       // The data format
     private final int type;                         // The data type
     private final String key;                       // The configuration key
     private final long timestamp;                   // The timestamp
+    private final BufferPool pool;                  // The pool that owns data, null if not pooled
+    private final NALIndex nals;                    // The NAL units of a compressed slice
+    private final AtomicInteger references;         // The reference count
 
     /**
      * Creates a new VideoFrame object that contains an uncompressed video frame.
@@ -50,13 +60,34 @@ public class VideoFrame {
      * @param timestamp the frame timestamp
      */
     public VideoFrame(byte[] data, int width, int height, int format, long timestamp) {
-        this.data = (data != null ? data.clone() : null);
+        this(null, data != null ? data.clone() : null, width, height, format, timestamp);
+    }
+
+    /**
+     * Creates a new VideoFrame object that contains an uncompressed video frame stored
+     * in a pooled buffer.<br>
+     * The frame takes ownership of the buffer, which is not copied and is given back to
+     * the pool when the last reference is released.
+     *
+     * @param pool      the pool the buffer was acquired from
+     * @param data      the raw frame data
+     * @param width     the frame width
+     * @param height    the frame height
+     * @param format    the frame pixel format ({@link    ImageFormat})
+     * @param timestamp the frame timestamp
+     */
+    public VideoFrame(BufferPool pool, byte[] data, int width, int height, int format, long timestamp) {
+        this.data = data;
+        this.size = (data != null ? data.length : 0);
         this.width = width;
         this.height = height;
         this.format = format;
         this.timestamp = timestamp;
         this.type = TYPE_UNCOMPRESSED_VIDEO;
         this.key = null;
+        this.pool = pool;
+        this.nals = null;
+        this.references = new AtomicInteger(1);
     }
 
     /**
@@ -67,12 +98,44 @@ public class VideoFrame {
      */
     public VideoFrame(byte[] data, long timestamp) {
         this.data = (data != null ? data.clone() : null);
+        this.size = (data != null ? data.length : 0);
+        this.width = -1;
+        this.height = -1;
+        this.format = FORMAT_COMPRESSED;
+        this.timestamp = timestamp;
+        this.type = TYPE_COMPRESSED_VIDEO;
+        this.key = null;
+        this.pool = null;
+        this.nals = new NALIndex(this.data);
+        this.references = new AtomicInteger(1);
+    }
+
+    /**
+     * Creates a new VideoFrame object that contains a compressed video slice, taking
+     * ownership of the data buffer.<br>
+     * The buffer is not copied, only scanned to index its NAL units: it is shared by all
+     * the frame consumers and must not be modified afterwards; a pooled buffer is given
+     * back to the pool when the last reference is released.<br>
+     * The buffer may be larger than the slice, that starts at its beginning: the consumers
+     * must rely on {@link #getSize()} and on the NAL unit index rather than on its length.
+     *
+     * @param pool      the pool the buffer was acquired from, null if not pooled
+     * @param data      the buffer that holds the raw frame data
+     * @param size      the raw frame data length
+     * @param timestamp the frame timestamp
+     */
+    public VideoFrame(BufferPool pool, byte[] data, int size, long timestamp) {
+        this.data = data;
+        this.size = size;
         this.width = -1;
         this.height = -1;
         this.format = FORMAT_COMPRESSED;
         this.timestamp = timestamp;
         this.type = TYPE_COMPRESSED_VIDEO;
         this.key = null;
+        this.pool = pool;
+        this.nals = new NALIndex(data, size);
+        this.references = new AtomicInteger(1);
     }
 
     /**
@@ -83,12 +146,42 @@ public class VideoFrame {
      */
     public VideoFrame(byte[] data, String key) {
         this.data = (data != null ? data.clone() : null);
+        this.size = (data != null ? data.length : 0);
         this.width = -1;
         this.height = -1;
         this.format = FORMAT_COMPRESSED;
         this.timestamp = -1;
         this.type = TYPE_VIDEO_CONFIG;
         this.key = key;
+        this.pool = null;
+        this.nals = null;
+        this.references = new AtomicInteger(1);
+    }
+
+    /**
+     * Adds a reference to the frame.
+     *
+     * @return this frame
+     * @throws IllegalStateException if the frame has already been released
+     */
+    public VideoFrame retain() {
+        if (references.getAndIncrement() <= 0)
+            throw new IllegalStateException("the frame has already been released");
+        return this;
+    }
+
+    /**
+     * Releases a reference to the frame.<br>
+     * When the last reference is released, the data goes back to the pool.
+     *
+     * @throws IllegalStateException if the frame has already been released
+     */
+    public void release() {
+        int count = references.decrementAndGet();
+        if (count < 0)
+            throw new IllegalStateException("the frame has already been released");
+        if (count == 0 && pool != null && data != null)
+            pool.release(data);
     }
 
     /**
@@ -98,6 +191,21 @@ public class VideoFrame {
         return data;
     }
 
+    /**
+     * @return the length of the raw frame data, that may be shorter than its buffer
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * @return the index of the NAL units of a compressed slice, built once when the frame
+     * is created; {@code null} if the frame is not compressed
+     */
+    public NALIndex getNALIndex() {
+        return nals;
+    }
+
     /**
      * @return the frame width
      */
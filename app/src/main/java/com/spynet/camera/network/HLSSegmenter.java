@@ -0,0 +1,432 @@
+/*
+ * This file is part of spyNet Camera, the Android IP camera
+ *
+ * Copyright (C) 2016-2017 Paolo Dematteis
+ *
+ * spyNet Camera is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * spyNet Camera is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Paolo Dematteis - spynet314@gmail.com
+ */
+
+package com.spynet.camera.network;
+
+import android.util.Log;
+
+import com.spynet.camera.media.MP4Muxer;
+import com.spynet.camera.media.NALIndex;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Creates the Low-Latency HLS (fMP4) partial segments and segments from the encoded
+ * video and audio streams and keeps them in an in-memory sliding window.<br>
+ * Each access unit is muxed only once: all the viewers are served with the same cached bytes.
+ */
+public class HLSSegmenter {
+
+    protected final String TAG = getClass().getSimpleName();
+
+    // Partial segment target duration in seconds
+    public static final double PART_TARGET = 0.5;
+    // Minimum segment duration in seconds (segments are split on IDR frames)
+    private static final double SEGMENT_MIN_DURATION = 2.0;
+    // Number of complete segments kept in the cache
+    private static final int WINDOW_SIZE = 6;
+    // Number of complete segments whose parts are listed in the playlist
+    private static final int PARTS_WINDOW_SIZE = 2;
+    // Time (ms) after which the segmenter is stopped if no request is received
+    private static final long IDLE_TIMEOUT = 30000;
+
+    private final LinkedList<Segment> mSegments;    // The complete segments (sliding window)
+    private MP4Muxer mMuxer;                        // The fMP4 muxer, null until the first IDR
+    private Segment mSegment;                       // The segment being built
+    private List<MP4Muxer.Sample> mVideoSamples;    // Video samples of the part being built
+    private List<MP4Muxer.Sample> mAudioSamples;    // Audio samples of the part being built
+    private MP4Muxer.Sample mPendingVideo;          // Last video sample, waiting for its duration
+    private long mPartVideoDecodeTime;              // Decode time of the part first video sample
+    private long mPartAudioDecodeTime;              // Decode time of the part first audio sample
+    private long mVideoDecodeTime;                  // Next video sample decode time
+    private long mAudioDecodeTime;                  // Next audio sample decode time
+    private long mStartTimestamp;                   // Timestamp of the first video sample
+    private double mPartDuration;                   // Duration of the part being built
+    private int mNextSequence;                      // Media sequence number of the next segment
+    private int mTargetDuration;                    // Playlist target duration in seconds
+    private long mLastRequest;                      // Time of the last client request
+    private boolean mActive;                        // Whether the segmenter is active
+
+    /**
+     * Defines an HLS segment, made of one or more partial segments.
+     */
+    private static class Segment {
+        final int sequence;                         // Media sequence number
+        final List<byte[]> parts;                   // Partial segments data
+        final List<Double> durations;               // Partial segments durations
+        final List<Boolean> independent;            // Whether the parts start with an IDR
+        double duration;                            // Segment duration in seconds
+        byte[] data;                                // Segment data, null until complete
+
+        Segment(int sequence) {
+            this.sequence = sequence;
+            this.parts = new ArrayList<>();
+            this.durations = new ArrayList<>();
+            this.independent = new ArrayList<>();
+        }
+    }
+
+    /**
+     * Creates a new HLSSegmenter object.
+     */
+    public HLSSegmenter() {
+        mSegments = new LinkedList<>();
+        mTargetDuration = (int) Math.ceil(SEGMENT_MIN_DURATION);
+    }
+
+    /**
+     * Notifies that a client sent a request, activating the segmenter if needed.
+     *
+     * @return {@code true} if the segmenter has just been activated, {@code false} otherwise
+     */
+    public synchronized boolean touch() {
+        mLastRequest = System.currentTimeMillis();
+        if (!mActive) {
+            mActive = true;
+            Log.v(TAG, "HLS segmenter activated");
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Deactivates the segmenter if no request has been received for a while.
+     *
+     * @return {@code true} if the segmenter has just been deactivated, {@code false} otherwise
+     */
+    public synchronized boolean checkIdle() {
+        if (mActive && System.currentTimeMillis() - mLastRequest > IDLE_TIMEOUT) {
+            stop();
+            Log.v(TAG, "HLS segmenter deactivated");
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Stops the segmenter and clears the cache.
+     */
+    public synchronized void stop() {
+        mActive = false;
+        reset();
+    }
+
+    /**
+     * @return {@code true} if the segmenter is active, {@code false} otherwise
+     */
+    public synchronized boolean isActive() {
+        return mActive;
+    }
+
+    /**
+     * Pushes an encoded video access unit.<br>
+     * The segmenter starts with the first IDR frame pushed after the activation.
+     *
+     * @param data      the access unit (Annex B format)
+     * @param nals      the index of the NAL units in the access unit
+     * @param timestamp the access unit timestamp in microseconds
+     * @param sps       the Sequence Parameter Set, without the start code
+     * @param pps       the Picture Parameter Set, without the start code
+     * @param audioCfg  the audio specific configuration, null if the audio is not available
+     * @param frequency the audio sampling rate
+     * @param channels  the audio channel configuration
+     */
+    public synchronized void pushVideo(byte[] data, NALIndex nals, long timestamp,
+                                       byte[] sps, byte[] pps,
+                                       @Nullable byte[] audioCfg, int frequency, int channels) {
+
+        if (!mActive || data == null)
+            return;
+
+        byte[] avcc = MP4Muxer.toAVCC(data, nals);
+        if (avcc == null)
+            return;
+        boolean sync = nals.isSync();
+
+        // Start on the first IDR frame
+        if (mMuxer == null) {
+            if (!sync || sps == null || pps == null)
+                return;
+            try {
+                mMuxer = new MP4Muxer(sps, pps, audioCfg, frequency, channels);
+            } catch (IllegalArgumentException e) {
+                Log.e(TAG, "cannot create the fMP4 muxer", e);
+                return;
+            }
+            mStartTimestamp = timestamp;
+            mSegment = new Segment(mNextSequence++);
+        }
+
+        if (mPendingVideo != null) {
+            // Now the duration of the pending sample is known
+            long duration = (timestamp - mPendingVideo.timestamp) * MP4Muxer.VIDEO_TIMESCALE / 1000000;
+            if (duration <= 0)
+                duration = 1;
+            mPendingVideo.duration = (int) duration;
+            mVideoSamples.add(mPendingVideo);
+            mVideoDecodeTime += duration;
+            mPartDuration += duration / (double) MP4Muxer.VIDEO_TIMESCALE;
+            // Split the segment on IDR frames, the parts when the target duration is reached
+            double next = (timestamp - mPendingVideo.timestamp) / 1000000.0;
+            if (sync && mSegment.duration + mPartDuration >= SEGMENT_MIN_DURATION) {
+                closePart();
+                closeSegment();
+            } else if (mPartDuration + next > PART_TARGET) {
+                closePart();
+            }
+        }
+
+        if (mVideoSamples == null || mVideoSamples.isEmpty()) {
+            mVideoSamples = new ArrayList<>();
+            mAudioSamples = new ArrayList<>();
+            mPartVideoDecodeTime = mVideoDecodeTime;
+            mPartAudioDecodeTime = mAudioDecodeTime;
+        }
+        mPendingVideo = new MP4Muxer.Sample(avcc, timestamp, sync);
+    }
+
+    /**
+     * Pushes an encoded audio frame.
+     *
+     * @param data      the AAC frame (raw, no ADTS header)
+     * @param timestamp the frame timestamp in microseconds
+     */
+    public synchronized void pushAudio(byte[] data, long timestamp) {
+        if (!mActive || data == null || mMuxer == null || !mMuxer.hasAudio())
+            return;
+        if (timestamp < mStartTimestamp)
+            return;
+        if (mAudioDecodeTime == 0) {
+            // Align the audio track with the video track
+            mAudioDecodeTime = (timestamp - mStartTimestamp) * mMuxer.getAudioTimescale() / 1000000;
+            mPartAudioDecodeTime = mAudioDecodeTime;
+        }
+        MP4Muxer.Sample sample = new MP4Muxer.Sample(data, timestamp, true);
+        sample.duration = MP4Muxer.AAC_FRAME_SAMPLES;
+        mAudioSamples.add(sample);
+        mAudioDecodeTime += MP4Muxer.AAC_FRAME_SAMPLES;
+    }
+
+    /**
+     * @return the initialization segment, null if not available yet
+     */
+    @Nullable
+    public synchronized byte[] getInitSegment() {
+        return mMuxer != null ? mMuxer.getInitSegment() : null;
+    }
+
+    /**
+     * Returns the media playlist, blocking until the requested segment or part is available
+     * when {@code msn} is not negative (LL-HLS blocking playlist reload).<br>
+     * Without a part index the request blocks until the whole segment is complete.
+     *
+     * @param msn     the requested media sequence number, -1 for an immediate reply
+     * @param part    the requested part index, -1 if not specified
+     * @param timeout the maximum time to wait in milliseconds
+     * @return the playlist, null if not available or if the timeout expires
+     * @throws InterruptedException if interrupted while waiting
+     */
+    @Nullable
+    public synchronized String getPlaylist(int msn, int part, long timeout)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (mSegment == null || (mSegments.isEmpty() && mSegment.parts.isEmpty()) ||
+                (msn >= 0 && !(part < 0 ? isComplete(msn) : isAvailable(msn, part)))) {
+            long wait = deadline - System.currentTimeMillis();
+            if (wait <= 0 || !mActive)
+                return null;
+            wait(wait);
+        }
+        return buildPlaylist();
+    }
+
+    /**
+     * Returns a partial segment, blocking until it is available if it is the next one
+     * (the preload hint).
+     *
+     * @param msn     the media sequence number
+     * @param part    the part index
+     * @param timeout the maximum time to wait in milliseconds
+     * @return the part data, null if not available
+     * @throws InterruptedException if interrupted while waiting
+     */
+    @Nullable
+    public synchronized byte[] getPart(int msn, int part, long timeout)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (!isAvailable(msn, part)) {
+            long wait = deadline - System.currentTimeMillis();
+            if (wait <= 0 || !mActive || mSegment == null || part < 0)
+                return null;
+            // Only the current segment and the next one can still grow
+            if (msn < mSegment.sequence || msn > mSegment.sequence + 1)
+                return null;
+            wait(wait);
+        }
+        Segment segment = findSegment(msn);
+        return segment != null ? segment.parts.get(part) : null;
+    }
+
+    /**
+     * Returns a complete segment.
+     *
+     * @param msn the media sequence number
+     * @return the segment data, null if not available
+     */
+    @Nullable
+    public synchronized byte[] getSegment(int msn) {
+        Segment segment = findSegment(msn);
+        return segment != null ? segment.data : null;
+    }
+
+    /**
+     * Helper to close the part being built.
+     */
+    private void closePart() {
+        if (mVideoSamples == null || mVideoSamples.isEmpty())
+            return;
+        byte[] fragment = mMuxer.createFragment(
+                mVideoSamples, mPartVideoDecodeTime,
+                mAudioSamples, mPartAudioDecodeTime);
+        mSegment.parts.add(fragment);
+        mSegment.durations.add(mPartDuration);
+        mSegment.independent.add(mVideoSamples.get(0).sync);
+        mSegment.duration += mPartDuration;
+        mVideoSamples = null;
+        mAudioSamples = null;
+        mPartDuration = 0;
+        notifyAll();
+    }
+
+    /**
+     * Helper to close the segment being built and to start a new one.
+     */
+    private void closeSegment() {
+        int size = 0;
+        for (byte[] p : mSegment.parts)
+            size += p.length;
+        byte[] data = new byte[size];
+        int pos = 0;
+        for (byte[] p : mSegment.parts) {
+            System.arraycopy(p, 0, data, pos, p.length);
+            pos += p.length;
+        }
+        mSegment.data = data;
+        mTargetDuration = Math.max(mTargetDuration, (int) Math.round(mSegment.duration));
+        mSegments.add(mSegment);
+        while (mSegments.size() > WINDOW_SIZE)
+            mSegments.removeFirst();
+        mSegment = new Segment(mNextSequence++);
+        notifyAll();
+    }
+
+    /**
+     * Helper to clear the cache.
+     */
+    private void reset() {
+        mMuxer = null;
+        mSegment = null;
+        mSegments.clear();
+        mVideoSamples = null;
+        mAudioSamples = null;
+        mPendingVideo = null;
+        mVideoDecodeTime = 0;
+        mAudioDecodeTime = 0;
+        mPartDuration = 0;
+        mTargetDuration = (int) Math.ceil(SEGMENT_MIN_DURATION);
+        notifyAll();
+    }
+
+    /**
+     * @return the segment with the specified media sequence number, null if not in the cache
+     */
+    @Nullable
+    private Segment findSegment(int msn) {
+        if (mSegment != null && mSegment.sequence == msn)
+            return mSegment;
+        for (Segment s : mSegments) {
+            if (s.sequence == msn)
+                return s;
+        }
+        return null;
+    }
+
+    /**
+     * @return true if the specified part is available
+     */
+    private boolean isAvailable(int msn, int part) {
+        Segment segment = findSegment(msn);
+        return segment != null && part >= 0 && part < segment.parts.size();
+    }
+
+    /**
+     * @return true if the specified segment has been completed
+     */
+    private boolean isComplete(int msn) {
+        return mSegment != null && mSegment.sequence > msn;
+    }
+
+    /**
+     * Helper to create the media playlist.
+     */
+    private String buildPlaylist() {
+        StringBuilder sb = new StringBuilder();
+        int first = mSegments.isEmpty() ? mSegment.sequence : mSegments.getFirst().sequence;
+        sb.append("#EXTM3U\n");
+        sb.append("#EXT-X-VERSION:9\n");
+        sb.append("#EXT-X-TARGETDURATION:").append(mTargetDuration).append("\n");
+        sb.append(String.format(Locale.US, "#EXT-X-PART-INF:PART-TARGET=%.3f\n", PART_TARGET));
+        sb.append(String.format(Locale.US,
+                "#EXT-X-SERVER-CONTROL:CAN-BLOCK-RELOAD=YES,PART-HOLD-BACK=%.3f\n", PART_TARGET * 3));
+        sb.append("#EXT-X-MEDIA-SEQUENCE:").append(first).append("\n");
+        sb.append("#EXT-X-MAP:URI=\"init.mp4\"\n");
+        int index = 0;
+        for (Segment s : mSegments) {
+            if (index++ >= mSegments.size() - PARTS_WINDOW_SIZE)
+                appendParts(sb, s);
+            sb.append(String.format(Locale.US, "#EXTINF:%.3f,\n", s.duration));
+            sb.append(s.sequence).append(".m4s\n");
+        }
+        appendParts(sb, mSegment);
+        sb.append("#EXT-X-PRELOAD-HINT:TYPE=PART,URI=\"")
+                .append(mSegment.sequence).append(".").append(mSegment.parts.size())
+                .append(".m4s\"\n");
+        return sb.toString();
+    }
+
+    /**
+     * Helper to append the parts of a segment to the playlist.
+     */
+    private void appendParts(StringBuilder sb, Segment s) {
+        for (int i = 0; i < s.parts.size(); i++) {
+            sb.append(String.format(Locale.US, "#EXT-X-PART:DURATION=%.3f,URI=\"%d.%d.m4s\"",
+                    s.durations.get(i), s.sequence, i));
+            if (s.independent.get(i))
+                sb.append(",INDEPENDENT=YES");
+            sb.append("\n");
+        }
+    }
+}
@@ -76,6 +76,8 @@ public class MangocamAdapter implements Closeable, StreamConnection.ConnectionCa
 
     // Timeout to read from the server in ms
     private final static int READ_TIMEOUT = 5000;
+    // Interval between the uploaded images when there is no motion, in us
+    private final static long MOTION_IDLE_INTERVAL = 5000000;
 
     // List used to keep track of all the active connections
     private final ConcurrentLinkedQueue<StreamConnection> mConnections;
@@ -100,6 +102,7 @@ public class MangocamAdapter implements Closeable, StreamConnection.ConnectionCa
     private volatile boolean mWiFiAvailable;            // Whether the WiFi is available
     private volatile boolean mMobileAvailable;          // Indicates that the mobile data is available
     private volatile boolean mIsConnected;              // Indicates whether the adapter is connected
+    private volatile boolean mMotion;                   // Whether there is motion in the scene
 
     /**
      * Defines the interface that the client has to implement to handle server events..
@@ -172,6 +175,7 @@ public class MangocamAdapter implements Closeable, StreamConnection.ConnectionCa
         // Initialize connections
         mReconnectTimer = 0;
         mReconnectReason = "";
+        mMotion = true;
         // Start connection loop
         mCommThread = new Thread(new Runnable() {
             @Override
@@ -205,6 +209,16 @@ public class MangocamAdapter implements Closeable, StreamConnection.ConnectionCa
         mMobileAvailable = available;
     }
 
+    /**
+     * Sets the motion state.
+     *
+     * @param motion {@code true} if there is motion in the scene (or the detection
+     *               is not active), {@code false} otherwise
+     */
+    public void setMotion(boolean motion) {
+        mMotion = motion;
+    }
+
     /**
      * @return {@code true} if the adapter is connected to the underlaying service,
      * {@code false} otherwise
@@ -586,6 +600,8 @@ public class MangocamAdapter implements Closeable, StreamConnection.ConnectionCa
                 mSendCmd.getRate());
         long uploadStart = System.currentTimeMillis();
         long delay = (long) (1000000.0 / mjpegFps);
+        long idleDelay = Math.max(delay, MOTION_IDLE_INTERVAL);
+        boolean gating = SettingsActivity.getMotionGating(mContext);
         long lastTime = 0;
 
         connection.clearFrames();
@@ -597,14 +613,20 @@ public class MangocamAdapter implements Closeable, StreamConnection.ConnectionCa
             // Get a frame from the queue
             if ((frame = connection.popFrame()) == null)
                 continue;
-            // Control the fps
-            if (frame.getTimestamp() < lastTime + delay)
+            // Control the fps, dropping to the keep-alive rate if nothing moves
+            if (frame.getTimestamp() < lastTime + (gating && !mMotion ? idleDelay : delay)) {
+                frame.release();
                 continue;
+            }
             lastTime = frame.getTimestamp();
             // Compress and send the JPEG image
             ByteArrayOutputStream jout = new ByteArrayOutputStream();
-            Image.compressToJpeg(frame.getData(), frame.getWidth(), frame.getHeight(),
-                    frame.getFormat(), jpegQuality, jout);
+            try {
+                Image.compressToJpeg(frame.getData(), frame.getWidth(), frame.getHeight(),
+                        frame.getFormat(), jpegQuality, jout);
+            } finally {
+                frame.release();
+            }
             String header = "" +
                     "Mango-Tag: " + System.currentTimeMillis() / 1000 + "\r\n" +
                     "Content-Type: image/jpeg\r\n" +
@@ -32,10 +32,15 @@ import org.jetbrains.annotations.NotNull;
 import java.io.Closeable;
 import java.io.IOException;
 import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
 
 /**
  * Defines the RTP packetizer to stream AAC audio.<br>
+ * Access units are sent according to RFC 3640, AAC-hbr mode: consecutive access units are
+ * aggregated in a single packet, as long as they fit and arrive within the aggregation
+ * latency, while the access units larger than a packet are fragmented.<br>
  * To be subclassed to implement the transmission protocol.
  */
 public abstract class RTPAudioPacketizer implements Closeable {
@@ -44,6 +49,11 @@ public abstract class RTPAudioPacketizer implements Closeable {
 
     protected final int CLOSE_TIMEOUT = 1000;       // Close timeout in ms
     protected final int RTCP_INTERVAL = 2500;       // RTCP interval in ms
+    protected final int AGGREGATION_LATENCY = 40;   // Maximum wait for more access units in ms
+
+    private static final int AAC_FRAME_SAMPLES = 1024;  // Samples per access unit
+    private static final int AU_HEADER_SIZE = 2;        // sizelength=13;indexlength=3;indexdeltalength=3
+    private static final int MAX_AU_SIZE = 0x1FFF;      // Maximum size that fits 13 bits
 
     protected final StreamConnection mConnection;   // The connection that owns the packetizer
 
@@ -131,14 +141,16 @@ public abstract class RTPAudioPacketizer implements Closeable {
     }
 
     /**
-     * Streams the slices using RTP protocol.
+     * Streams the access units using RTP protocol.
      */
     private void doSend() {
 
         final long id = Utils.getUniqueID();
-        long ntp, timestamp;
+        long ntp, timestamp, deadline;
         long lastRTCP = 0;
-        byte[] data, rtp, rtcp, au_header;
+        byte[] data, rtp, rtcp;
+        List<byte[]> units = new ArrayList<>();
+        AudioData pending = null;
         int packets = 0;
         int octets = 0;
 
@@ -162,11 +174,6 @@ public abstract class RTPAudioPacketizer implements Closeable {
         rtcp[6] = (byte) (mSSRC >> 8);
         rtcp[7] = (byte) (mSSRC);
 
-        // Prepare the AU Header Section
-        au_header = new byte[4];
-        au_header[0] = 0x00;    // AU-headers-length (length in bits of AU-headers)
-        au_header[1] = 0x10;    // 16 bits -> sizelength=13;indexlength=3;indexdeltalength=3
-
         // Streaming loop
         Log.d(TAG, "packetizer started");
         mConnection.clearAudio();
@@ -203,31 +210,58 @@ public abstract class RTPAudioPacketizer implements Closeable {
                     // Send RTCP SR message
                     rtcpSend(rtcp, rtcp.length);
                 }
-                // Get audio data from the queue
-                AudioData audio = mConnection.popAudio();
+                // Get audio data from the queue, starting from the one left by the last packet
+                AudioData audio = (pending != null ? pending : mConnection.popAudio());
+                pending = null;
                 if (audio == null)
                     return;
                 data = audio.getData();
-                if (data.length == 0)
+                if (data == null || data.length == 0)
+                    continue;
+                if (data.length > MAX_AU_SIZE) {
+                    Log.w(TAG, "access unit too large (" + data.length + " bytes), dropped");
                     continue;
-                // Set the timestamp
+                }
+                // Set the timestamp of the first access unit
                 timestamp = audio.getTimestamp() * mClockRate / 1000000L;
                 rtp[4] = (byte) (timestamp >> 24);
                 rtp[5] = (byte) (timestamp >> 16);
                 rtp[6] = (byte) (timestamp >> 8);
                 rtp[7] = (byte) (timestamp);
-                // Set the AU-header
-                au_header[2] = (byte) (data.length >> 5);   // sizelength=13;indexlength=3;indexdeltalength=3
-                au_header[3] = (byte) (data.length << 3);   // AU-Index = 0
-                // Send the NAL
-                if (data.length + 12 <= mPacketSize) {
-                    sendAudioMuxElement(rtp, au_header, data);
-                } else {
-                    // RFC 6416, session 16.3: It is RECOMMENDED to put one audioMuxElement in each RTP packet.
-                    throw new UnsupportedOperationException("fragmentation of MPEG-4 audio bitstream is not supported");
+                // Fragment the access units that do not fit a packet
+                int size = 12 + 2 + AU_HEADER_SIZE + data.length;
+                if (size > mPacketSize) {
+                    packets += sendFragmentedAU(rtp, data);
+                    octets += data.length;
+                    continue;
                 }
+                // Aggregate the following access units, as long as they are consecutive,
+                // fit in the packet and arrive within the aggregation latency
+                units.clear();
+                units.add(data);
+                deadline = TimeStamp.getTimeStamp() + AGGREGATION_LATENCY * 1000L;
+                while (true) {
+                    long wait = Math.max(deadline - TimeStamp.getTimeStamp(), 0) / 1000L;
+                    AudioData next = mConnection.popAudio(wait);
+                    if (next == null)
+                        break;
+                    byte[] nextData = next.getData();
+                    if (nextData == null || nextData.length == 0)
+                        continue;
+                    long nextTimestamp = next.getTimestamp() * mClockRate / 1000000L;
+                    if (Math.abs(nextTimestamp - timestamp - AAC_FRAME_SAMPLES) > AAC_FRAME_SAMPLES / 2 ||
+                            size + AU_HEADER_SIZE + nextData.length > mPacketSize) {
+                        pending = next;
+                        break;
+                    }
+                    units.add(nextData);
+                    size += AU_HEADER_SIZE + nextData.length;
+                    timestamp = nextTimestamp;
+                }
+                // Send the access units
+                sendAccessUnits(rtp, units);
                 packets++;
-                octets += data.length;
+                octets += size - 12;
             }
         } catch (InterruptedException e) {
             Log.v(TAG, "stream interrupted");
@@ -242,17 +276,64 @@ public abstract class RTPAudioPacketizer implements Closeable {
     }
 
     /**
-     * Sends an single audioMuxElement.
+     * Sends one or more complete access units in a single packet.<br>
+     * The access units must be consecutive, since their AU-Index-delta is 0.
+     *
+     * @param units the access units
      */
-    private void sendAudioMuxElement(
-            byte[] rtp, byte[] au_header, byte[] slice)
+    private void sendAccessUnits(
+            byte[] rtp, List<byte[]> units)
             throws IOException {
+        int headersLength = units.size() * AU_HEADER_SIZE * 8;
         rtp[1] |= 0x80; // M=1
         rtp[2] = (byte) (mSeq >> 8);
         rtp[3] = (byte) (mSeq);
-        System.arraycopy(au_header, 0, rtp, 12, au_header.length);
-        System.arraycopy(slice, 0, rtp, 12 + au_header.length, slice.length);
-        rtpSend(rtp, 12 + au_header.length + slice.length);
+        rtp[12] = (byte) (headersLength >> 8);  // AU-headers-length (length in bits of AU-headers)
+        rtp[13] = (byte) (headersLength);
+        int offset = 14;
+        for (byte[] unit : units) {
+            rtp[offset++] = (byte) (unit.length >> 5);  // AU-size
+            rtp[offset++] = (byte) (unit.length << 3);  // AU-Index(-delta) = 0
+        }
+        for (byte[] unit : units) {
+            System.arraycopy(unit, 0, rtp, offset, unit.length);
+            offset += unit.length;
+        }
+        rtpSend(rtp, offset);
         ++mSeq;
     }
+
+    /**
+     * Sends an access unit split across several packets.<br>
+     * Every fragment carries the AU-header with the size of the whole access unit,
+     * only the last one has the marker bit set.
+     *
+     * @param data the access unit
+     * @return the number of packets sent
+     */
+    private int sendFragmentedAU(
+            byte[] rtp, byte[] data)
+            throws IOException {
+        int packets = 0;
+        int offset = 0;
+        rtp[12] = (byte) 0;                     // AU-headers-length = 16 bits
+        rtp[13] = (byte) (AU_HEADER_SIZE * 8);  //
+        rtp[14] = (byte) (data.length >> 5);    // AU-size
+        rtp[15] = (byte) (data.length << 3);    // AU-Index = 0
+        while (offset < data.length) {
+            int size = Math.min(data.length - offset, rtp.length - 16);
+            if (offset + size < data.length)
+                rtp[1] &= 0x7F; // M=0
+            else
+                rtp[1] |= 0x80; // M=1
+            rtp[2] = (byte) (mSeq >> 8);
+            rtp[3] = (byte) (mSeq);
+            System.arraycopy(data, offset, rtp, 16, size);
+            offset += size;
+            rtpSend(rtp, size + 16);
+            ++mSeq;
+            packets++;
+        }
+        return packets;
+    }
 }
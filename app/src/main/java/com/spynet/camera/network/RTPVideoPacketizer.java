@@ -25,6 +25,7 @@ import android.util.Log;
 
 import com.spynet.camera.common.TimeStamp;
 import com.spynet.camera.common.Utils;
+import com.spynet.camera.media.NALIndex;
 import com.spynet.camera.media.VideoFrame;
 
 import org.jetbrains.annotations.NotNull;
@@ -139,6 +140,7 @@ public abstract class RTPVideoPacketizer implements Closeable {
         long ntp, timestamp;
         long lastRTCP = 0;
         byte[] data, rtp, rtcp;
+        NALIndex nals;
         int packets = 0;
         int octets = 0;
         boolean sync = false;
@@ -207,28 +209,39 @@ public abstract class RTPVideoPacketizer implements Closeable {
                 VideoFrame frame = mConnection.popSlice();
                 if (frame == null)
                     return;
-                data = frame.getData();
-                if (data.length < 5)
-                    continue;
-                // IDR synchronization
-                if (!sync) {
-                    if ((data[4] & 0x1F) != 5)
+                // The queue gave us its reference, release it once sent
+                try {
+                    data = frame.getData();
+                    nals = frame.getNALIndex();
+                    if (nals.getCount() == 0)
                         continue;
-                    sync = true;
+                    // IDR synchronization
+                    if (!sync) {
+                        if (!nals.isSync())
+                            continue;
+                        sync = true;
+                    }
+                    // Set the timestamp
+                    timestamp = frame.getTimestamp() * mClockRate / 1000000L;
+                    rtp[4] = (byte) (timestamp >> 24);
+                    rtp[5] = (byte) (timestamp >> 16);
+                    rtp[6] = (byte) (timestamp >> 8);
+                    rtp[7] = (byte) (timestamp);
+                    // Send the NAL units, M=1 on the last packet of the access unit
+                    for (int n = 0; n < nals.getCount(); n++) {
+                        int offset = nals.getOffset(n);
+                        int length = nals.getLength(n);
+                        boolean last = n == nals.getCount() - 1;
+                        if (length + 12 <= mPacketSize)
+                            sendNAL(rtp, data, offset, length, last);
+                        else
+                            sendFragmentedNAL(rtp, data, offset, length, last);
+                    }
+                    packets++;
+                    octets += nals.getPayloadSize();
+                } finally {
+                    frame.release();
                 }
-                // Set the timestamp
-                timestamp = frame.getTimestamp() * mClockRate / 1000000L;
-                rtp[4] = (byte) (timestamp >> 24);
-                rtp[5] = (byte) (timestamp >> 16);
-                rtp[6] = (byte) (timestamp >> 8);
-                rtp[7] = (byte) (timestamp);
-                // Send the NAL
-                if (data.length - 4 + 12 <= mPacketSize)
-                    sendNAL(rtp, data);
-                else
-                    sendFragmentedNAL(rtp, data);
-                packets++;
-                octets += data.length - 4;
             }
         } catch (InterruptedException e) {
             Log.v(TAG, "stream interrupted");
@@ -244,47 +257,60 @@ public abstract class RTPVideoPacketizer implements Closeable {
 
     /**
      * Sends an single NAL Unit Packet.
-     * The slice is supposed to start with 0x00 0x00 0x00 0x01.
+     *
+     * @param offset the offset of the NAL unit header in the access unit
+     * @param length the length of the NAL unit
+     * @param last   whether this is the last NAL unit of the access unit
      */
     private void sendNAL(
-            byte[] rtp, byte[] slice)
+            byte[] rtp, byte[] data, int offset, int length, boolean last)
             throws IOException {
-        rtp[1] |= 0x80; // M=1
+        if (last)
+            rtp[1] |= 0x80; // M=1
+        else
+            rtp[1] &= 0x7F; // M=0
         rtp[2] = (byte) (mSeq >> 8);
         rtp[3] = (byte) (mSeq);
-        System.arraycopy(slice, 4, rtp, 12, slice.length - 4);
-        rtpSend(rtp, slice.length - 4 + 12);
+        System.arraycopy(data, offset, rtp, 12, length);
+        rtpSend(rtp, length + 12);
         ++mSeq;
     }
 
     /**
      * Sends a FU-A fragmented NAL.
-     * The slice is supposed to start with 0x00 0x00 0x00 0x01.
+     *
+     * @param offset the offset of the NAL unit header in the access unit
+     * @param length the length of the NAL unit
+     * @param last   whether this is the last NAL unit of the access unit
      */
     private void sendFragmentedNAL(
-            byte[] rtp, byte[] slice)
+            byte[] rtp, byte[] data, int offset, int length, boolean last)
             throws IOException {
 
         boolean first = true;
-        int size, offset = 5;
+        int size, end = offset + length;
+        byte header = data[offset++];
         byte FUIndicator, FUHeader;
-        FUIndicator = (byte) ((slice[4] & 0xE0) + 28); // F|NRI|Type=28
+        FUIndicator = (byte) ((header & 0xE0) + 28); // F|NRI|Type=28
         rtp[12] = FUIndicator;
-        while (offset < slice.length) {
+        while (offset < end) {
             rtp[2] = (byte) (mSeq >> 8);
             rtp[3] = (byte) (mSeq);
-            size = Math.min(slice.length - offset, rtp.length - 14);
-            System.arraycopy(slice, offset, rtp, 14, size);
+            size = Math.min(end - offset, rtp.length - 14);
+            System.arraycopy(data, offset, rtp, 14, size);
             offset += size;
-            FUHeader = (byte) (slice[4] & 0x1F); // S=0|E=0|R=0|Type
-            if (offset < slice.length) {
+            FUHeader = (byte) (header & 0x1F); // S=0|E=0|R=0|Type
+            if (offset < end) {
                 rtp[1] &= 0x7F; // M=0
                 if (first) {
                     FUHeader |= 0x80; // first fragment, S=1
                     first = false;
                 }
             } else {
-                rtp[1] |= 0x80; // M=1
+                if (last)
+                    rtp[1] |= 0x80; // M=1
+                else
+                    rtp[1] &= 0x7F; // M=0
                 FUHeader |= 0x40; // Last fragment, E=1
             }
             rtp[13] = FUHeader;
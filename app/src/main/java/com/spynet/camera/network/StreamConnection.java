@@ -46,6 +46,9 @@ public class StreamConnection extends TCPConnection {
     public final static String TYPE_MJPEG = "mjpeg";    // MJPEG video
     public final static String TYPE_H264 = "h264";      // H264 video
     public final static String TYPE_AAC = "aac";        // AAC audio
+    public final static String TYPE_HLS = "hls";        // HLS (fMP4) video and audio
+    public final static String TYPE_TS = "ts";          // MPEG-TS video and audio
+    public final static String TYPE_WS = "ws";          // fMP4 video over WebSocket
 
     protected final String TAG = getClass().getSimpleName();
 
@@ -59,6 +62,8 @@ public class StreamConnection extends TCPConnection {
             = new ArrayBlockingQueue<>(QUEUE_CAPACITY); //
     private final BlockingQueue<AudioData> mAudioQueue  // The queue used to send compressed audio
             = new ArrayBlockingQueue<>(QUEUE_CAPACITY); //
+    private final BlockingQueue<byte[]> mChunkQueue     // The queue used to send muxed data
+            = new ArrayBlockingQueue<>(QUEUE_CAPACITY); //
     private int mRTPSeq;                                // First RTP packet sequential number
     private String mRTSPSession;                        // RTSP session ID
     private UDPVideoPacketizer mUDPVideoPacketizer;     // UDP video packetizer
@@ -68,6 +73,11 @@ public class StreamConnection extends TCPConnection {
     private volatile boolean mStreamingMJPEG;           // Indicates whether this connection is streaming MJPEG
     private volatile boolean mStreamingH264;            // Indicates whether this connection is streaming H264
     private volatile boolean mStreamingAAC;             // Indicates whether this connection is streaming AAC
+    private volatile boolean mStreamingTS;              // Indicates whether this connection is streaming MPEG-TS
+    private volatile boolean mStreamingWS;              // Indicates whether this connection is streaming over WebSocket
+    private volatile int mFrameLevel;                   // Resolution level of the uncompressed frames
+    private volatile boolean mSubStream;                // Whether the H264 slices come from the sub stream
+    private boolean mChunkSynced;                       // Whether the first sync chunk has been queued
 
     /**
      * Extends the ConnectionCallback to add StreamConnection specific notifications.
@@ -121,11 +131,14 @@ public class StreamConnection extends TCPConnection {
             stopRTP(1);
             stopRTP(2);
         }
+        clearFrames();
+        clearSlices();
         super.close();
     }
 
     /**
-     * Pushes a video data buffer to the queue.
+     * Pushes a video data buffer to the queue.<br>
+     * The queue holds its own reference to the frames.
      *
      * @param frame the video data
      * @return true if the data was added successfully, false otherwise
@@ -135,30 +148,71 @@ public class StreamConnection extends TCPConnection {
         if (frame.isCompressed()) {
             if (!isStreamingH264())
                 return false;
+            frame.retain();
             if (mSliceQueue.offer(frame, QUEUE_WRITE_TIMEOUT, TimeUnit.MILLISECONDS))
                 return true;
+            frame.release();
             Log.v(TAG, "cannot add the slice, the queue is full");
         } else {
             if (!isStreamingMJPEG())
                 return false;
+            frame.retain();
             if (mFrameQueue.offer(frame, QUEUE_WRITE_TIMEOUT, TimeUnit.MILLISECONDS))
                 return true;
+            frame.release();
             Log.v(TAG, "cannot add the frame, the queue is full");
         }
         return false;
     }
 
     /**
-     * Removes all frames from the queue.
+     * Sets the resolution level of the uncompressed frames this connection wants to receive:
+     * 0 for the full resolution, 1 for half, 2 for quarter resolution and so on.
+     *
+     * @param level the resolution level
+     */
+    public void setFrameLevel(int level) {
+        mFrameLevel = level;
+    }
+
+    /**
+     * @return the resolution level of the uncompressed frames
+     */
+    public int getFrameLevel() {
+        return mFrameLevel;
+    }
+
+    /**
+     * Sets whether this connection receives the H264 sub stream instead of the main stream.
+     *
+     * @param sub {@code true} for the sub stream, {@code false} for the main stream
+     */
+    public void setSubStream(boolean sub) {
+        mSubStream = sub;
+    }
+
+    /**
+     * @return {@code true} if this connection receives the H264 sub stream,
+     * {@code false} if it receives the main stream
+     */
+    public boolean isSubStream() {
+        return mSubStream;
+    }
+
+    /**
+     * Removes all frames from the queue, releasing them.
      */
     public void clearFrames() {
-        mFrameQueue.clear();
+        VideoFrame frame;
+        while ((frame = mFrameQueue.poll()) != null)
+            frame.release();
     }
 
     /**
      * Pops an uncompressed video frame from the queue.
      *
-     * @return the frame data buffer, null on error or if the timeout expires
+     * @return the frame data buffer, null on error or if the timeout expires; the caller
+     * must release it when done
      * @throws InterruptedException if interrupted while waiting
      */
     public VideoFrame popFrame() throws InterruptedException {
@@ -169,16 +223,19 @@ public class StreamConnection extends TCPConnection {
     }
 
     /**
-     * Removes all slices from the queue.
+     * Removes all slices from the queue, releasing them.
      */
     public void clearSlices() {
-        mSliceQueue.clear();
+        VideoFrame slice;
+        while ((slice = mSliceQueue.poll()) != null)
+            slice.release();
     }
 
     /**
      * Pops a compressed slice from the queue.
      *
-     * @return the slice data buffer, null on error or if the timeout expires
+     * @return the slice data buffer, null on error or if the timeout expires; the caller
+     * must release it when done
      * @throws InterruptedException if interrupted while waiting
      */
     public VideoFrame popSlice() throws InterruptedException {
@@ -220,12 +277,75 @@ public class StreamConnection extends TCPConnection {
      * @throws InterruptedException if interrupted while waiting
      */
     public AudioData popAudio() throws InterruptedException {
-        AudioData data = mAudioQueue.poll(QUEUE_READ_TIMEOUT, TimeUnit.MILLISECONDS);
+        AudioData data = popAudio(QUEUE_READ_TIMEOUT);
         if (data == null)
             Log.v(TAG, "cannot get the audio, the queue is empty");
         return data;
     }
 
+    /**
+     * Pops an audio buffer from the queue, waiting up to the specified time.
+     *
+     * @param timeout the time to wait in ms, 0 to return immediately
+     * @return the audio data buffer, null if the timeout expires
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public AudioData popAudio(long timeout) throws InterruptedException {
+        return mAudioQueue.poll(timeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Pushes a chunk of muxed data (shared by all the subscribers) to the queue.<br>
+     * Chunks are discarded until the first one that starts with a sync point, and again
+     * after a chunk has been dropped because the queue is full.
+     *
+     * @param type  the stream type the chunk belongs to ({@link #TYPE_TS} or {@link #TYPE_WS})
+     * @param chunk the muxed data
+     * @param sync  whether the chunk starts with a sync point
+     * @return true if the data was added successfully, false otherwise
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean push(String type, byte[] chunk, boolean sync) throws InterruptedException {
+        if (type.equals(TYPE_TS) ? !isStreamingTS() : !(type.equals(TYPE_WS) && isStreamingWS()))
+            return false;
+        synchronized (mChunkQueue) {
+            if (!mChunkSynced && !sync)
+                return false;
+            mChunkSynced = true;
+        }
+        if (mChunkQueue.offer(chunk, QUEUE_WRITE_TIMEOUT, TimeUnit.MILLISECONDS))
+            return true;
+        // The stream is broken after a missing chunk: resync on the next sync point
+        synchronized (mChunkQueue) {
+            mChunkSynced = false;
+        }
+        Log.v(TAG, "cannot add the chunk, the queue is full");
+        return false;
+    }
+
+    /**
+     * Removes all chunks from the queue and waits for the next sync point.
+     */
+    public void clearChunks() {
+        synchronized (mChunkQueue) {
+            mChunkQueue.clear();
+            mChunkSynced = false;
+        }
+    }
+
+    /**
+     * Pops a chunk of muxed data from the queue.
+     *
+     * @return the chunk, null on error or if the timeout expires
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public byte[] popChunk() throws InterruptedException {
+        byte[] chunk = mChunkQueue.poll(QUEUE_READ_TIMEOUT, TimeUnit.MILLISECONDS);
+        if (chunk == null)
+            Log.v(TAG, "cannot get the chunk, the queue is empty");
+        return chunk;
+    }
+
     /**
      * Notify the client that the stream has started.
      *
@@ -243,6 +363,12 @@ public class StreamConnection extends TCPConnection {
             case TYPE_AAC:
                 mStreamingAAC = true;
                 break;
+            case TYPE_TS:
+                mStreamingTS = true;
+                break;
+            case TYPE_WS:
+                mStreamingWS = true;
+                break;
         }
         ((ConnectionCallback) mCallback).onStreamStarted(this, type, id);
     }
@@ -264,6 +390,12 @@ public class StreamConnection extends TCPConnection {
             case TYPE_AAC:
                 mStreamingAAC = false;
                 break;
+            case TYPE_TS:
+                mStreamingTS = false;
+                break;
+            case TYPE_WS:
+                mStreamingWS = false;
+                break;
         }
         ((ConnectionCallback) mCallback).onStreamStopped(this, type, id);
     }
@@ -299,6 +431,20 @@ public class StreamConnection extends TCPConnection {
         return mStreamingAAC;
     }
 
+    /**
+     * @return true when the MPEG-TS stream is playing, false otherwise
+     */
+    public boolean isStreamingTS() {
+        return mStreamingTS;
+    }
+
+    /**
+     * @return true when the WebSocket stream is playing, false otherwise
+     */
+    public boolean isStreamingWS() {
+        return mStreamingWS;
+    }
+
     /**
      * Creates a new RTSP session.
      *
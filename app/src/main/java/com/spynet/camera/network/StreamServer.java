@@ -24,6 +24,7 @@ package com.spynet.camera.network;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.graphics.ImageFormat;
 import android.location.Location;
 import android.os.BatteryManager;
 import android.support.annotation.Nullable;
@@ -34,7 +35,11 @@ import com.spynet.camera.common.TimeoutCache;
 import com.spynet.camera.common.Image;
 import com.spynet.camera.common.Utils;
 import com.spynet.camera.media.AudioData;
+import com.spynet.camera.media.BufferPool;
 import com.spynet.camera.media.ByteArrayInputBitStream;
+import com.spynet.camera.media.DVRRecorder;
+import com.spynet.camera.media.MP4Muxer;
+import com.spynet.camera.media.TSMuxer;
 import com.spynet.camera.media.VideoFrame;
 import com.spynet.camera.network.DDNS.DDNSClient;
 import com.spynet.camera.network.DDNS.DNSdynamicClient;
@@ -61,8 +66,16 @@ import java.net.SocketTimeoutException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URLConnection;
+import java.nio.channels.FileChannel;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
@@ -93,6 +106,22 @@ public class StreamServer
     private static final long DDNS_UPDATE_DELAY = 30;
     // DDNS update period in seconds
     private static final long DDNS_UPDATE_PERIOD = 10 * 60;
+    // Maximum time (ms) to block an LL-HLS playlist or part request
+    private static final long HLS_BLOCKING_TIMEOUT = 6000;
+    // Max-age (seconds) of the HLS segments, that never change once created
+    private static final int HLS_SEGMENT_MAX_AGE = 60;
+    // Interval (us) between the MJPEG frames when there is no motion and gating is enabled
+    private static final long MOTION_IDLE_INTERVAL = 5000000;
+    // Interval (ms) between the keep-alive comments sent on the events stream
+    private static final long EVENTS_KEEPALIVE_INTERVAL = 15000;
+    // Minimum interval (ms) between two snapshots, requests in between are served from cache
+    private static final long SNAPSHOT_MIN_INTERVAL = 500;
+    // Minimum snapshot width
+    private static final int SNAPSHOT_MIN_WIDTH = 16;
+    // Number of levels of the uncompressed frames pyramid (full, half, quarter resolution)
+    private static final int FRAME_LEVELS = 3;
+    // Maximum number of free buffers kept by the frames pyramid pool, for each level
+    private static final int FRAME_POOL_MAX_FREE = 8;
 
     // List used to keep track of all the active connections
     private final ConcurrentLinkedQueue<StreamConnection> mConnections;
@@ -106,18 +135,38 @@ public class StreamServer
     private final String mCredentials;              // The authentication credentials
     private final DDNSClient mDDNSClient;           // The DDNS client
     private final PortMapper mPortMapper;           // The UPnP port mapper
+    private final HLSSegmenter mHLSSegmenter;       // The HLS segmenter and segment cache
+    private final Object mMotionLock;               // Lock to wait for motion events
+    private final Object mFrameLock;                // Lock to swap and retain mLastFrame
+    private final BufferPool mFramePool;            // Pool of the downscaled frame buffers
+    private final HashMap<String, byte[]>           // JPEG snapshots of mSnapshotFrame,
+            mSnapshots;                             // keyed by quality and width
+    private volatile long mHLSStreamId;             // The HLS stream id
+    private volatile DVRRecorder mDVR;              // The on-device recorder, null if disabled
     private StreamServerCallback mCallback;         // The callback to notify the client
     private volatile boolean mWiFiAvailable;        // Whether the WiFi is available
     private volatile boolean mMobileAvailable;      // Indicates that the mobile data is available
     private volatile boolean mH264Available;        // Whether the H264 stream is available
+    private volatile boolean mH264SubAvailable;     // Whether the H264 sub stream is available
     private volatile boolean mAudioAvailable;       // Whether the audio stream is available
     private volatile boolean mTorchOn;              // Whether the torch is on
+    private volatile boolean mMotion;               // Whether there is motion in the scene
+    private volatile long mMotionTime;              // Time of the last motion state change (ms)
+    private volatile VideoFrame mLastFrame;         // The latest uncompressed frame
+    private VideoFrame mSnapshotFrame;              // The frame the snapshots are encoded from
+    private long mSnapshotTime;                     // Time mSnapshotFrame was taken (ms)
     private Location mLastLocation;                 // Last known location (null = unknown)
     private byte[] mSPS;                            // Sequence Parameter Set
     private byte[] mPPS;                            // Picture Parameter Set
+    private byte[] mSubSPS;                         // Sequence Parameter Set of the sub stream
+    private byte[] mSubPPS;                         // Picture Parameter Set of the sub stream
     private byte[] mAudioCfg;                       // Audio configuration
     private int mAudioFrequency;                    // Audio sampling rate
     private int mAudioChannels;                     // Audio channel configuration
+    private TSMuxer mTSMuxer;                       // The MPEG-TS muxer, shared by all the subscribers
+    private MP4Muxer mWSMuxer;                      // The WebSocket fMP4 muxer, shared by all the subscribers
+    private long mWSBaseTimestamp;                  // Timestamp of the first WebSocket access unit
+    private long mWSLastTimestamp;                  // Timestamp of the last WebSocket access unit
 
     /**
      * Defines the interface that the client has to implement to handle server events.
@@ -173,6 +222,12 @@ public class StreamServer
         mConnections = new ConcurrentLinkedQueue<>();
         mTunnelCache = new TimeoutCache<>();
         mStreams = new ConcurrentHashMap<>();
+        mHLSSegmenter = new HLSSegmenter();
+        mMotionLock = new Object();
+        mFrameLock = new Object();
+        mFramePool = new BufferPool("pyramid", FRAME_POOL_MAX_FREE);
+        mSnapshots = new HashMap<>();
+        mMotion = true;
         mTcpListener = new TCPListener(port, this);
         // Setup the DDNS client
         if (SettingsActivity.getServerUpdateDDNS(mContext)) {
@@ -218,10 +273,19 @@ public class StreamServer
         mTunnelCache.close();
         for (StreamConnection c : mConnections)
             c.close();
+        mHLSSegmenter.stop();
         if (mDDNSClient != null)
             mDDNSClient.close();
         if (mPortMapper != null)
             mPortMapper.close();
+        setLastFrame(null);
+        synchronized (mSnapshots) {
+            if (mSnapshotFrame != null)
+                mSnapshotFrame.release();
+            mSnapshotFrame = null;
+            mSnapshots.clear();
+        }
+        Log.d(TAG, mFramePool.toString());
     }
 
     /**
@@ -265,6 +329,13 @@ public class StreamServer
         mH264Available = available;
     }
 
+    /**
+     * Sets the H264 sub stream availability flag.
+     */
+    public void setH264SubAvailable(boolean available) {
+        mH264SubAvailable = available;
+    }
+
     /**
      * Sets the audio availability flag.
      */
@@ -272,6 +343,15 @@ public class StreamServer
         mAudioAvailable = available;
     }
 
+    /**
+     * Sets the DVR whose recordings are served under /dvr.
+     *
+     * @param dvr the DVRRecorder, null if disabled
+     */
+    public void setDVR(@Nullable DVRRecorder dvr) {
+        mDVR = dvr;
+    }
+
     /**
      * Sets the torch on flag.
      */
@@ -279,6 +359,22 @@ public class StreamServer
         mTorchOn = state;
     }
 
+    /**
+     * Sets the motion state and notifies the events streams.
+     *
+     * @param motion {@code true} if there is motion in the scene (or the detection
+     *               is not active), {@code false} otherwise
+     */
+    public void setMotion(boolean motion) {
+        synchronized (mMotionLock) {
+            if (motion != mMotion || mMotionTime == 0) {
+                mMotion = motion;
+                mMotionTime = System.currentTimeMillis();
+                mMotionLock.notifyAll();
+            }
+        }
+    }
+
     /**
      * Sets the last known location.
      */
@@ -301,17 +397,107 @@ public class StreamServer
                 if (frame.getKey().equals("sps")) {
                     synchronized (this) {
                         mSPS = Arrays.copyOfRange(data, 4, data.length);
+                        mTSMuxer = null;
+                        mWSMuxer = null;
                     }
                 } else if (frame.getKey().equals("pps")) {
                     synchronized (this) {
                         mPPS = Arrays.copyOfRange(data, 4, data.length);
+                        mTSMuxer = null;
+                        mWSMuxer = null;
                     }
                 }
             }
         } else {
-            // Forward to all the opened connections
-            for (StreamConnection c : mConnections)
-                c.push(frame);
+            if (!frame.isCompressed()) {
+                // Keep the latest frame for the snapshots
+                setLastFrame(frame);
+                // Forward to all the opened connections, at the requested resolution
+                VideoFrame[] pyramid = getFramePyramid(frame);
+                for (StreamConnection c : mConnections)
+                    c.push(pyramid[Math.min(c.getFrameLevel(), pyramid.length - 1)]);
+                // The connections retain what they queued, drop the downscaled levels
+                for (int level = 1; level < pyramid.length; level++)
+                    pyramid[level].release();
+            } else {
+                // Forward to all the opened connections, but the sub stream ones
+                for (StreamConnection c : mConnections) {
+                    if (!c.isSubStream())
+                        c.push(frame);
+                }
+            }
+            // Mux once for all the MPEG-TS subscribers
+            if (frame.isCompressed()) {
+                TSMuxer muxer = getTSMuxer();
+                if (muxer != null) {
+                    byte[] chunk = muxer.muxVideo(frame.getData(), frame.getSize(),
+                            frame.getNALIndex(), frame.getTimestamp());
+                    if (chunk != null) {
+                        boolean sync = frame.getNALIndex().isSync();
+                        for (StreamConnection c : mConnections)
+                            c.push(StreamConnection.TYPE_TS, chunk, sync);
+                    }
+                }
+            }
+            // Fragment once for all the WebSocket subscribers
+            if (frame.isCompressed()) {
+                byte[] chunk = createWSFragment(frame);
+                if (chunk != null) {
+                    boolean sync = frame.getNALIndex().isSync();
+                    for (StreamConnection c : mConnections)
+                        c.push(StreamConnection.TYPE_WS, chunk, sync);
+                }
+            }
+            // Feed the HLS segmenter
+            if (frame.isCompressed() && mHLSSegmenter.isActive()) {
+                if (mHLSSegmenter.checkIdle()) {
+                    notifyHLSStopped();
+                } else {
+                    byte[] sps, pps, audioCfg;
+                    int frequency, channels;
+                    synchronized (this) {
+                        sps = mSPS;
+                        pps = mPPS;
+                        audioCfg = mAudioAvailable ? mAudioCfg : null;
+                        frequency = mAudioFrequency;
+                        channels = mAudioChannels;
+                    }
+                    mHLSSegmenter.pushVideo(frame.getData(), frame.getNALIndex(),
+                            frame.getTimestamp(), sps, pps, audioCfg, frequency, channels);
+                }
+            }
+        }
+    }
+
+    /**
+     * Pushes a sub stream video data buffer (compressed slice or configuration) to all the
+     * active connections that play the sub stream.<br>
+     * The sub stream is only served over RTSP, at /video/h264/sub.
+     *
+     * @param frame the video data
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void pushSub(VideoFrame frame) throws InterruptedException {
+        if (frame.isConfig()) {
+            // Save SPS and PPS
+            byte[] data = frame.getData();
+            if (data != null) {
+                if (frame.getKey().equals("sps")) {
+                    synchronized (this) {
+                        mSubSPS = Arrays.copyOfRange(data, 4, data.length);
+                    }
+                } else if (frame.getKey().equals("pps")) {
+                    synchronized (this) {
+                        mSubPPS = Arrays.copyOfRange(data, 4, data.length);
+                    }
+                }
+            }
+        } else {
+            // Forward to the sub stream connections only
+            for (StreamConnection c : mConnections) {
+                if (c.isSubStream())
+                    c.push(frame);
+            }
         }
     }
 
@@ -326,6 +512,7 @@ public class StreamServer
             // Save audio configuration
             synchronized (this) {
                 mAudioCfg = data.getData();
+                mTSMuxer = null;
                 // ISO/IEC 14496-3, Syntax of AudioSpecificConfig():
                 //  5 bits: object type
                 //  4 bits: frequency index
@@ -355,7 +542,107 @@ public class StreamServer
             for (StreamConnection c : mConnections) {
                 c.push(data);
             }
+            // Mux once for all the MPEG-TS subscribers
+            if (data.isCompressed()) {
+                TSMuxer muxer = getTSMuxer();
+                if (muxer != null) {
+                    byte[] chunk = muxer.muxAudio(data.getData(), data.getTimestamp());
+                    if (chunk != null) {
+                        for (StreamConnection c : mConnections)
+                            c.push(StreamConnection.TYPE_TS, chunk, false);
+                    }
+                }
+            }
+            // Feed the HLS segmenter
+            if (data.isCompressed())
+                mHLSSegmenter.pushAudio(data.getData(), data.getTimestamp());
+        }
+    }
+
+    /**
+     * Helper to get the MPEG-TS muxer.<br>
+     * The muxer is created when the first subscriber connects and released with the last one.
+     *
+     * @return the muxer, null if there are no subscribers or the configuration is not available
+     */
+    @Nullable
+    private synchronized TSMuxer getTSMuxer() {
+        boolean streaming = false;
+        for (StreamConnection c : mConnections) {
+            if (c.isStreamingTS()) {
+                streaming = true;
+                break;
+            }
+        }
+        if (!streaming) {
+            mTSMuxer = null;
+        } else if (mTSMuxer == null && mSPS != null && mPPS != null) {
+            mTSMuxer = new TSMuxer(mSPS, mPPS, mAudioAvailable ? mAudioCfg : null);
+        }
+        return mTSMuxer;
+    }
+
+    /**
+     * Helper to get the WebSocket fMP4 muxer (video only).<br>
+     * The muxer is created when the first subscriber connects and released with the last one.
+     *
+     * @return the muxer, null if there are no subscribers or the configuration is not available
+     */
+    @Nullable
+    private synchronized MP4Muxer getWSMuxer() {
+        boolean streaming = false;
+        for (StreamConnection c : mConnections) {
+            if (c.isStreamingWS()) {
+                streaming = true;
+                break;
+            }
+        }
+        if (!streaming) {
+            mWSMuxer = null;
+        } else if (mWSMuxer == null && mSPS != null && mPPS != null) {
+            try {
+                mWSMuxer = new MP4Muxer(mSPS, mPPS, null, 0, 0);
+                mWSBaseTimestamp = -1;
+            } catch (IllegalArgumentException e) {
+                Log.e(TAG, "cannot create the fMP4 muxer", e);
+            }
+        }
+        return mWSMuxer;
+    }
+
+    /**
+     * Helper to create the WebSocket binary frame that contains the movie fragment
+     * of a single access unit.<br>
+     * The fragment is sent as soon as the access unit is available, so the sample duration
+     * is estimated from the previous one; the decode time always follows the timestamps.
+     *
+     * @return the WebSocket frame, null if there are no subscribers
+     */
+    @Nullable
+    private synchronized byte[] createWSFragment(VideoFrame frame) {
+        MP4Muxer muxer = getWSMuxer();
+        if (muxer == null)
+            return null;
+        byte[] avcc = MP4Muxer.toAVCC(frame.getData(), frame.getNALIndex());
+        if (avcc == null)
+            return null;
+        boolean sync = frame.getNALIndex().isSync();
+        long timestamp = frame.getTimestamp();
+        if (mWSBaseTimestamp < 0) {
+            if (!sync)
+                return null;
+            mWSBaseTimestamp = timestamp;
+            mWSLastTimestamp = timestamp - 33333;
         }
+        MP4Muxer.Sample sample = new MP4Muxer.Sample(avcc, timestamp, sync);
+        sample.duration = (int) Math.max(1,
+                (timestamp - mWSLastTimestamp) * MP4Muxer.VIDEO_TIMESCALE / 1000000);
+        mWSLastTimestamp = timestamp;
+        List<MP4Muxer.Sample> samples = new ArrayList<>(1);
+        samples.add(sample);
+        byte[] fragment = muxer.createFragment(samples,
+                (timestamp - mWSBaseTimestamp) * MP4Muxer.VIDEO_TIMESCALE / 1000000, null, 0);
+        return WebSocket.createFrame(WebSocket.OPCODE_BINARY, fragment);
     }
 
     @Override
@@ -546,6 +833,20 @@ public class StreamServer
                                         mCallback.onControlRequest("gps-mode", gpsMode);
                                     sendStatusInfos(connection);
                                     return;
+                                // Server-sent events (motion)
+                                case "/events":
+                                    sendEvents(connection);
+                                    return;
+                                // JPEG snapshot (quality, width)
+                                case "/snapshot.jpg":
+                                    sendSnapshot(connection, query.get("quality"), query.get("width"),
+                                            headers.get("if-none-match"),
+                                            headers.get("if-modified-since"));
+                                    String snapshotConnection = headers.get("connection");
+                                    if (snapshotConnection != null && snapshotConnection.equals("keep-alive"))
+                                        break;
+                                    else
+                                        return;
                                 // Sensors information
                                 case "/sensors":
                                     sendSensorsInfos(connection);
@@ -558,6 +859,10 @@ public class StreamServer
                                 case "/audio":
                                     sendAudioList(connection);
                                     return;
+                                // DVR recordings list
+                                case "/dvr":
+                                    sendDVRList(connection);
+                                    return;
                                 // JPEG stream (quality, fps)
                                 case "/video/mjpeg":
                                     if (!canStream(url)) {
@@ -565,7 +870,30 @@ public class StreamServer
                                         return;
                                     }
                                     sendMJPEGStream((StreamConnection) connection,
-                                            query.get("quality"), query.get("fps"));
+                                            query.get("quality"), query.get("fps"),
+                                            getFrameLevel(query.get("width"), query.get("scale")));
+                                    return;
+                                // MPEG-TS stream (H264 and AAC)
+                                case "/video/ts":
+                                    if (!canStream(url)) {
+                                        sendErrorReply(connection, request[2], 503, "Service Unavailable");
+                                        return;
+                                    }
+                                    sendTSStream((StreamConnection) connection);
+                                    return;
+                                // fMP4 stream over WebSocket, for Media Source Extensions players
+                                case "/video/ws":
+                                    if (!canStream(url)) {
+                                        sendErrorReply(connection, request[2], 503, "Service Unavailable");
+                                        return;
+                                    }
+                                    String upgrade = headers.get("upgrade");
+                                    String key = headers.get("sec-websocket-key");
+                                    if (upgrade == null || !upgrade.equalsIgnoreCase("websocket") || key == null) {
+                                        sendErrorReply(connection, request[2], 400, "Bad Request");
+                                        return;
+                                    }
+                                    sendWSStream((StreamConnection) connection, key);
                                     return;
                                 // H264 stream (RTSP over HTTP, GET connection)
                                 case "/video/h264":
@@ -593,11 +921,21 @@ public class StreamServer
                                         }
                                     }
                                     return;
-                                // Other files from assets/www
+                                // Other files from assets/www or HLS resources
                                 default:
-                                    if (url.equals("/"))
-                                        url += "index.html";
-                                    sendFile(connection, url);
+                                    if (url.startsWith("/video/hls/")) {
+                                        if (!canStream("/video/hls")) {
+                                            sendErrorReply(connection, request[2], 503, "Service Unavailable");
+                                            return;
+                                        }
+                                        sendHLSResource(connection, url.substring(11), query);
+                                    } else if (url.startsWith("/dvr/")) {
+                                        sendDVRSegment(connection, url.substring(5), headers.get("range"));
+                                    } else {
+                                        if (url.equals("/"))
+                                            url += "index.html";
+                                        sendFile(connection, url);
+                                    }
                                     String connectionType = headers.get("connection");
                                     if (connectionType != null && connectionType.equals("keep-alive"))
                                         break;
@@ -618,6 +956,20 @@ public class StreamServer
                     }
                     int seq = Utils.tryParseInt(headers.get("cseq"), 1);
 
+                    // The sub stream shares the main stream handling, but the connection
+                    // receives the sub stream slices and configuration
+                    if (url.startsWith("/video/h264")) {
+                        boolean sub = url.equals("/video/h264/sub") || url.startsWith("/video/h264/sub/");
+                        if (sub) {
+                            if (!mH264SubAvailable) {
+                                sendErrorReply(c, request[2], 503, "Service Unavailable");
+                                return;
+                            }
+                            url = "/video/h264" + url.substring(15);
+                        }
+                        c.setSubStream(sub);
+                    }
+
                     switch (request[0]) {
                         case "OPTIONS":
                             rtspOptions(c, seq);
@@ -677,6 +1029,8 @@ public class StreamServer
 
     @Override
     public void onControlRequest(StreamConnection connection, String action, String params) {
+        if (action.equals("video-sync") && connection.isSubStream())
+            params = "send-sub";
         if (mCallback != null)
             mCallback.onControlRequest(action, params);
     }
@@ -700,6 +1054,9 @@ public class StreamServer
             case "/video/h264":
             case "/video/h264/trackID=1":
             case "/video/h264/trackID=2":
+            case "/video/hls":
+            case "/video/ts":
+            case "/video/ws":
                 if (!(mH264Available && (mWiFiAvailable || mMobileAvailable))) {
                     return false;
                 }
@@ -710,6 +1067,90 @@ public class StreamServer
         return true;
     }
 
+    /**
+     * Determines the resolution level of the uncompressed frames from the request parameters.<br>
+     * {@code width} selects the smallest level at least as wide as requested, {@code scale}
+     * selects the level closest to the requested scale factor (1, 0.5, 0.25).
+     *
+     * @param width the requested width, null if not specified
+     * @param scale the requested scale factor, null if not specified
+     * @return the resolution level
+     */
+    private int getFrameLevel(@Nullable String width, @Nullable String scale) {
+        int level = 0;
+        double factor = Utils.tryParseDouble(scale, 1.0);
+        if (factor > 0)
+            level = (int) Math.max(0, Math.min(FRAME_LEVELS, Math.round(Math.log(1.0 / factor) / Math.log(2))));
+        VideoFrame frame = mLastFrame;
+        int w = Utils.tryParseInt(width, 0);
+        if (w > 0 && frame != null) {
+            level = 0;
+            while (level < FRAME_LEVELS - 1 && (frame.getWidth() >> (level + 1)) >= w)
+                level++;
+        }
+        return Utils.coerce(level, 0, FRAME_LEVELS - 1);
+    }
+
+    /**
+     * Replaces the latest uncompressed frame, retaining the new one and releasing the old one.
+     *
+     * @param frame the new frame, null to release the current one
+     */
+    private void setLastFrame(@Nullable VideoFrame frame) {
+        VideoFrame old;
+        if (frame != null)
+            frame.retain();
+        synchronized (mFrameLock) {
+            old = mLastFrame;
+            mLastFrame = frame;
+        }
+        if (old != null)
+            old.release();
+    }
+
+    /**
+     * Gets the latest uncompressed frame, retaining it: the caller must release it.
+     *
+     * @return the latest frame, null if not available
+     */
+    @Nullable
+    private VideoFrame getLastFrame() {
+        synchronized (mFrameLock) {
+            return mLastFrame != null ? mLastFrame.retain() : null;
+        }
+    }
+
+    /**
+     * Builds the resolution pyramid of an uncompressed frame.<br>
+     * Each level halves the previous one; only the levels requested by the MJPEG
+     * subscribers are built, and a level is not available if the previous one
+     * cannot be halved exactly.<br>
+     * The downscaled levels use pooled buffers and must be released by the caller.
+     *
+     * @param frame the full resolution frame
+     * @return the frames, from full resolution to the deepest level available
+     */
+    private VideoFrame[] getFramePyramid(VideoFrame frame) {
+        int levels = 0;
+        for (StreamConnection c : mConnections) {
+            if (c.isStreamingMJPEG())
+                levels = Math.max(levels, Math.min(c.getFrameLevel(), FRAME_LEVELS - 1));
+        }
+        ArrayList<VideoFrame> pyramid = new ArrayList<>(levels + 1);
+        pyramid.add(frame);
+        for (int level = 1; level <= levels; level++) {
+            VideoFrame f = pyramid.get(level - 1);
+            if (f.getFormat() != ImageFormat.NV21 || f.getWidth() % 4 != 0 || f.getHeight() % 4 != 0)
+                break;
+            int w = f.getWidth() / 2, h = f.getHeight() / 2;
+            byte[] halved = mFramePool.acquire(w * h * 3 / 2);
+            pyramid.add(new VideoFrame(mFramePool,
+                    Image.halveNV21(f.getData(), f.getWidth(), f.getHeight(), halved),
+                    w, h, f.getFormat(), f.getTimestamp()));
+        }
+        return pyramid.toArray(new VideoFrame[pyramid.size()]);
+    }
+
     /**
      * Helper to read the client request.
      *
@@ -955,6 +1396,8 @@ public class StreamServer
                         .put("MJPEG_stream", c.isStreamingMJPEG())
                         .put("H264_stream", c.isStreamingH264())
                         .put("AAC_stream", c.isStreamingAAC())
+                        .put("TS_stream", c.isStreamingTS())
+                        .put("WS_stream", c.isStreamingWS())
                         .put("RTSP_session_ID", c.getRTSPSessionID())
                 );
             }
@@ -965,7 +1408,11 @@ public class StreamServer
                     .put("WiFi", mWiFiAvailable)
                     .put("mobile", mMobileAvailable)
                     .put("H264", mH264Available)
-                    .put("audio", mAudioAvailable);
+                    .put("audio", mAudioAvailable)
+                    .put("motion", new JSONObject()
+                            .put("detection", SettingsActivity.getMotionEnabled(mContext))
+                            .put("active", mMotion)
+                            .put("time", mMotionTime));
             sendJSONObject(connection, jObject);
         } catch (JSONException e) {
             sendErrorReply(connection, "HTTP/1.1", 500, "Internal Error");
@@ -1039,12 +1486,49 @@ public class StreamServer
                                     .put(new JSONObject()
                                             .put("name", "fps")
                                             .put("min", MJPEG_MIN_FPS)
-                                            .put("max", SettingsActivity.getMJPEGFrameSpeed(mContext)))))
+                                            .put("max", SettingsActivity.getMJPEGFrameSpeed(mContext)))
+                                    .put(new JSONObject()
+                                            .put("name", "scale")
+                                            .put("min", 1.0 / (1 << (FRAME_LEVELS - 1)))
+                                            .put("max", 1.0))))
+                    .put(new JSONObject()
+                            .put("url", "/snapshot.jpg")
+                            .put("mime", "image/jpeg")
+                            .put("available", canStream("/video/mjpeg"))
+                            .put("parameters", new JSONArray()
+                                    .put(new JSONObject()
+                                            .put("name", "quality")
+                                            .put("min", MJPEG_MIN_QUALITY)
+                                            .put("max", SettingsActivity.getMJPEGQuality(mContext)))
+                                    .put(new JSONObject()
+                                            .put("name", "width")
+                                            .put("min", SNAPSHOT_MIN_WIDTH)
+                                            .put("max", mLastFrame != null ? mLastFrame.getWidth() : 0))))
                     .put(new JSONObject()
                             .put("url", "/video/h264")
                             .put("mime", "video/avc")
                             .put("available", canStream("/video/h264"))
                             .put("parameters", new JSONArray()))
+                    .put(new JSONObject()
+                            .put("url", "/video/h264/sub")
+                            .put("mime", "video/avc")
+                            .put("available", mH264SubAvailable && canStream("/video/h264"))
+                            .put("parameters", new JSONArray()))
+                    .put(new JSONObject()
+                            .put("url", "/video/hls/playlist.m3u8")
+                            .put("mime", "application/vnd.apple.mpegurl")
+                            .put("available", canStream("/video/hls"))
+                            .put("parameters", new JSONArray()))
+                    .put(new JSONObject()
+                            .put("url", "/video/ts")
+                            .put("mime", "video/mp2t")
+                            .put("available", canStream("/video/ts"))
+                            .put("parameters", new JSONArray()))
+                    .put(new JSONObject()
+                            .put("url", "/video/ws")
+                            .put("mime", "video/mp4")
+                            .put("available", canStream("/video/ws"))
+                            .put("parameters", new JSONArray()))
             );
             sendJSONObject(connection, jObject);
         } catch (JSONException e) {
@@ -1074,10 +1558,265 @@ public class StreamServer
         }
     }
 
+    /**
+     * Helper to send the list of the DVR recordings.
+     */
+    private void sendDVRList(TCPConnection connection)
+            throws IOException {
+        DVRRecorder dvr = mDVR;
+        if (dvr == null) {
+            sendErrorReply(connection, "HTTP/1.1", 503, "Service Unavailable");
+            return;
+        }
+        try {
+            JSONArray jArraySegments = new JSONArray();
+            for (DVRRecorder.Segment segment : dvr.getSegments()) {
+                jArraySegments.put(new JSONObject()
+                        .put("url", "/dvr/" + segment.sequence + ".mp4")
+                        .put("start", segment.start)
+                        .put("duration", segment.duration)
+                        .put("size", segment.length));
+            }
+            sendJSONObject(connection, new JSONObject().put("segments", jArraySegments));
+        } catch (JSONException e) {
+            sendErrorReply(connection, "HTTP/1.1", 500, "Internal Error");
+            Log.e(TAG, "unexpected exception while sending the JSON DVR recordings list", e);
+        }
+    }
+
+    /**
+     * Helper to send a DVR segment, supporting single byte ranges (RFC 7233).<br>
+     * The data is transferred from the ring file through {@link FileChannel#transferTo}.
+     */
+    private void sendDVRSegment(TCPConnection connection, String name, @Nullable String range)
+            throws IOException {
+
+        DVRRecorder dvr = mDVR;
+        if (dvr == null) {
+            sendErrorReply(connection, "HTTP/1.1", 503, "Service Unavailable");
+            return;
+        }
+        int sequence = name.endsWith(".mp4") ?
+                Utils.tryParseInt(name.substring(0, name.length() - 4), -1) : -1;
+        // Lock the segment, so that its slot is not recycled while being sent
+        long position = dvr.lockSegment(sequence);
+        if (position < 0) {
+            sendErrorReply(connection, "HTTP/1.1", 404, "Not Found");
+            return;
+        }
+        try {
+            DVRRecorder.Segment segment = dvr.getSegment(sequence);
+            if (segment == null) {
+                sendErrorReply(connection, "HTTP/1.1", 404, "Not Found");
+                return;
+            }
+
+            // Parse the range (bytes=first-last, bytes=first- or bytes=-suffix)
+            long length = segment.length;
+            long first = 0, last = length - 1;
+            boolean partial = false;
+            if (range != null && range.startsWith("bytes=") && !range.contains(",")) {
+                String[] parts = range.substring(6).split("-", -1);
+                if (parts.length == 2) {
+                    try {
+                        if (parts[0].isEmpty()) {
+                            first = Math.max(0, length - Long.parseLong(parts[1].trim()));
+                        } else {
+                            first = Long.parseLong(parts[0].trim());
+                            if (!parts[1].isEmpty())
+                                last = Math.min(last, Long.parseLong(parts[1].trim()));
+                        }
+                        partial = true;
+                    } catch (NumberFormatException e) {
+                        partial = false;
+                    }
+                }
+                if (partial && (first > last || first >= length)) {
+                    String response = "" +
+                            "HTTP/1.1 416 Range Not Satisfiable\r\n" +
+                            "Content-Range: bytes */" + length + "\r\n" +
+                            "Content-Length: 0\r\n" +
+                            "\r\n";
+                    connection.write(response);
+                    return;
+                }
+                if (!partial) {
+                    first = 0;
+                    last = length - 1;
+                }
+            }
+
+            String response = "" +
+                    (partial ? "HTTP/1.1 206 Partial Content\r\n" : "HTTP/1.1 200 OK\r\n") +
+                    "Accept-Ranges: bytes\r\n" +
+                    (partial ? "Content-Range: bytes " + first + "-" + last + "/" + length + "\r\n" : "") +
+                    "Content-Type: video/mp4\r\n" +
+                    "Content-Length: " + (last - first + 1) + "\r\n" +
+                    "\r\n";
+            connection.write(response);
+            connection.write(dvr.getChannel(), position + first, last - first + 1);
+        } finally {
+            dvr.unlockSegment(sequence);
+        }
+    }
+
+    /**
+     * Helper to send a JPEG snapshot of the latest frame.<br>
+     * Snapshots are encoded lazily, once per frame and quality/width, and a new frame is
+     * taken at most every {@link #SNAPSHOT_MIN_INTERVAL}: concurrent pollers share the
+     * same encoded image.<br>
+     * Each encoded image gets a strong ETag made of its frame time (ms), quality and width;
+     * If-Modified-Since is honored only when it matches the frame time exactly, since
+     * its one second resolution is coarser than {@link #SNAPSHOT_MIN_INTERVAL}.
+     */
+    private void sendSnapshot(TCPConnection connection, String quality, String width,
+                              @Nullable String ifNoneMatch, @Nullable String ifModifiedSince)
+            throws IOException {
+
+        VideoFrame frame = getLastFrame();
+        if (frame == null || !canStream("/video/mjpeg")) {
+            if (frame != null)
+                frame.release();
+            sendErrorReply(connection, "HTTP/1.1", 503, "Service Unavailable");
+            return;
+        }
+
+        int jpegQuality = Utils.coerce(
+                Utils.tryParseInt(quality, SettingsActivity.getMJPEGQuality(mContext)),
+                MJPEG_MIN_QUALITY, SettingsActivity.getMJPEGQuality(mContext));
+        int jpegWidth = frame.getWidth();
+        if (frame.getFormat() == ImageFormat.NV21) {
+            jpegWidth = Utils.coerce(Utils.tryParseInt(width, jpegWidth),
+                    SNAPSHOT_MIN_WIDTH, frame.getWidth()) & ~1;
+        }
+        String key = jpegQuality + "/" + jpegWidth;
+
+        byte[] jpeg;
+        long time;
+        synchronized (mSnapshots) {
+            long now = System.currentTimeMillis();
+            if (mSnapshotFrame != frame && now - mSnapshotTime >= SNAPSHOT_MIN_INTERVAL) {
+                if (mSnapshotFrame != null)
+                    mSnapshotFrame.release();
+                mSnapshotFrame = frame.retain();
+                mSnapshotTime = now;
+                mSnapshots.clear();
+            }
+            jpeg = mSnapshots.get(key);
+            if (jpeg == null) {
+                VideoFrame f = mSnapshotFrame;
+                byte[] data = f.getData();
+                int w = f.getWidth(), h = f.getHeight();
+                byte[] scaled = null;
+                if (jpegWidth != w) {
+                    int jpegHeight = (h * jpegWidth / w) & ~1;
+                    scaled = mFramePool.acquire(jpegWidth * jpegHeight * 3 / 2);
+                    data = Image.scaleNV21(data, w, h, jpegWidth, jpegHeight, scaled);
+                    w = jpegWidth;
+                    h = jpegHeight;
+                }
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                try {
+                    Image.compressToJpeg(data, w, h, f.getFormat(), jpegQuality, out);
+                } finally {
+                    if (scaled != null)
+                        mFramePool.release(scaled);
+                }
+                jpeg = out.toByteArray();
+                mSnapshots.put(key, jpeg);
+            }
+            time = mSnapshotTime;
+        }
+        frame.release();
+
+        String etag = "\"" + time + "-" + jpegQuality + "-" + jpegWidth + "\"";
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        boolean notModified = false;
+        if (ifNoneMatch != null) {
+            for (String tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                if (tag.equals("*") || tag.equals(etag)) {
+                    notModified = true;
+                    break;
+                }
+            }
+        } else if (ifModifiedSince != null) {
+            // Last-Modified has a resolution of one second, only an exact match is safe
+            try {
+                notModified = format.parse(ifModifiedSince).getTime() == time;
+            } catch (ParseException e) {
+                Log.w(TAG, "invalid If-Modified-Since header: " + ifModifiedSince);
+            }
+        }
+        if (notModified) {
+            connection.write("" +
+                    "HTTP/1.1 304 Not Modified\r\n" +
+                    "ETag: " + etag + "\r\n" +
+                    "Last-Modified: " + format.format(new Date(time)) + "\r\n" +
+                    "\r\n");
+            return;
+        }
+
+        String response = "" +
+                "HTTP/1.1 200 OK\r\n" +
+                "Cache-Control: no-cache\r\n" +
+                "ETag: " + etag + "\r\n" +
+                "Last-Modified: " + format.format(new Date(time)) + "\r\n" +
+                "Content-Type: image/jpeg\r\n" +
+                "Content-Length: " + jpeg.length + "\r\n" +
+                "\r\n";
+        connection.write(response);
+        connection.write(jpeg);
+    }
+
+    /**
+     * Helper to send the server-sent events stream (text/event-stream).<br>
+     * The current motion state is sent first, then an event is sent at every change;
+     * a comment is sent periodically to detect closed connections.
+     */
+    private void sendEvents(TCPConnection connection)
+            throws IOException {
+
+        String response = "" +
+                "HTTP/1.1 200 OK\r\n" +
+                "Cache-Control: no-cache\r\n" +
+                "Pragma: no-cache\r\n" +
+                "Content-Type: text/event-stream\r\n" +
+                "\r\n";
+        connection.write(response);
+
+        long lastTime = -1;
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                boolean motion;
+                long time;
+                synchronized (mMotionLock) {
+                    if (mMotionTime == lastTime)
+                        mMotionLock.wait(EVENTS_KEEPALIVE_INTERVAL);
+                    motion = mMotion;
+                    time = mMotionTime;
+                }
+                if (time != lastTime) {
+                    lastTime = time;
+                    connection.write("" +
+                            "event: motion\n" +
+                            "data: {\"active\":" + motion + ",\"time\":" + time + "}\n" +
+                            "\n");
+                } else {
+                    connection.write(": keep-alive\n\n");
+                }
+            }
+        } catch (InterruptedException e) {
+            Log.v(TAG, "events stream interrupted");
+        }
+    }
+
     /**
      * Helper to send the MJPEG stream.
      */
-    private void sendMJPEGStream(final StreamConnection connection, String quality, String fps)
+    private void sendMJPEGStream(final StreamConnection connection, String quality, String fps,
+                                 int level)
             throws IOException {
 
         final long id = Utils.getUniqueID();
@@ -1090,6 +1829,8 @@ public class StreamServer
                 Utils.tryParseDouble(fps, SettingsActivity.getMJPEGFrameSpeed(mContext)),
                 MJPEG_MIN_FPS, SettingsActivity.getMJPEGFrameSpeed(mContext));
         long delay = (long) (1000000.0 / mjpegFps);
+        long idleDelay = Math.max(delay, MOTION_IDLE_INTERVAL);
+        boolean gating = SettingsActivity.getMotionGating(mContext);
         long lastTime = 0;
 
         String response = "" +
@@ -1100,6 +1841,7 @@ public class StreamServer
                 "\r\n";
         connection.write(response);
 
+        connection.setFrameLevel(level);
         connection.clearFrames();
         connection.notifyStreamStarted(StreamConnection.TYPE_MJPEG, id);
         try {
@@ -1111,25 +1853,222 @@ public class StreamServer
                 // Get a frame from the queue
                 if ((frame = connection.popFrame()) == null)
                     continue;
-                // Control the fps
-                if (frame.getTimestamp() < lastTime + delay)
-                    continue;
-                lastTime = frame.getTimestamp();
-                // Compress and send the JPEG image
-                connection.write("" +
-                        "--jpegboundary\r\n" +
-                        "Content-Type: image/jpeg\r\n" +
-                        "\r\n");
-                ByteArrayOutputStream out = new ByteArrayOutputStream();
-                Image.compressToJpeg(frame.getData(), frame.getWidth(), frame.getHeight(),
-                        frame.getFormat(), jpegQuality, out);
-                connection.write(out.toByteArray());
+                try {
+                    // Control the fps, dropping to the keep-alive rate if nothing moves
+                    // Note: frames are paced on a schedule, tolerating the timestamp jitter
+                    long interval = (gating && !mMotion ? idleDelay : delay);
+                    if (frame.getTimestamp() - lastTime < interval * 3 / 4)
+                        continue;
+                    if (frame.getTimestamp() - lastTime > interval * 2)
+                        lastTime = frame.getTimestamp();
+                    else
+                        lastTime += interval;
+                    // Compress and send the JPEG image
+                    connection.write("" +
+                            "--jpegboundary\r\n" +
+                            "Content-Type: image/jpeg\r\n" +
+                            "\r\n");
+                    ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    Image.compressToJpeg(frame.getData(), frame.getWidth(), frame.getHeight(),
+                            frame.getFormat(), jpegQuality, out);
+                    connection.write(out.toByteArray());
+                } finally {
+                    frame.release();
+                }
             }
         } catch (InterruptedException e) {
             Log.v(TAG, "stream interrupted");
         } finally {
             connection.notifyStreamStopped(StreamConnection.TYPE_MJPEG, id);
+            connection.setFrameLevel(0);
+        }
+    }
+
+    /**
+     * Helper to send the MPEG-TS stream.<br>
+     * The TS packets are muxed once per access unit and shared by all the subscribers.
+     */
+    private void sendTSStream(final StreamConnection connection)
+            throws IOException {
+
+        final long id = Utils.getUniqueID();
+        byte[] chunk;
+
+        String response = "" +
+                "HTTP/1.1 200 OK\r\n" +
+                "Cache-Control: no-cache\r\n" +
+                "Pragma: no-cache\r\n" +
+                "Content-Type: video/mp2t\r\n" +
+                "\r\n";
+        connection.write(response);
+
+        connection.clearChunks();
+        connection.notifyStreamStarted(StreamConnection.TYPE_TS, id);
+        // The stream starts with the next IDR frame
+        connection.requestControl("video-sync", "send");
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                // Check WiFi status
+                if (!canStream("/video/ts"))
+                    break;
+                // Get a chunk from the queue
+                if ((chunk = connection.popChunk()) == null)
+                    continue;
+                connection.write(chunk);
+            }
+        } catch (InterruptedException e) {
+            Log.v(TAG, "stream interrupted");
+        } finally {
+            connection.notifyStreamStopped(StreamConnection.TYPE_TS, id);
+        }
+    }
+
+    /**
+     * Helper to send the fMP4 stream over WebSocket.<br>
+     * After the handshake, the server sends a text message with the MIME type (including the
+     * codecs), the initialization segment and then one movie fragment per access unit.
+     * The fragments are created once and shared by all the subscribers.
+     */
+    private void sendWSStream(final StreamConnection connection, String key)
+            throws IOException {
+
+        final long id = Utils.getUniqueID();
+        boolean initialized = false;
+        byte[] chunk;
+
+        String accept = WebSocket.getAcceptKey(key);
+        if (accept == null) {
+            sendErrorReply(connection, "HTTP/1.1", 500, "Internal Error");
+            return;
         }
+        String response = "" +
+                "HTTP/1.1 101 Switching Protocols\r\n" +
+                "Upgrade: websocket\r\n" +
+                "Connection: Upgrade\r\n" +
+                "Sec-WebSocket-Accept: " + accept + "\r\n" +
+                "\r\n";
+        connection.write(response);
+
+        connection.clearChunks();
+        connection.notifyStreamStarted(StreamConnection.TYPE_WS, id);
+        // The stream starts with the next IDR frame
+        connection.requestControl("video-sync", "send");
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                // Check WiFi status
+                if (!canStream("/video/ws"))
+                    break;
+                // Get a chunk from the queue
+                if ((chunk = connection.popChunk()) == null)
+                    continue;
+                // The first chunk is a sync point, send the configuration first
+                if (!initialized) {
+                    MP4Muxer muxer = getWSMuxer();
+                    if (muxer == null) {
+                        connection.clearChunks();
+                        continue;
+                    }
+                    String mime = new JSONObject().put("mime", muxer.getMimeType()).toString();
+                    connection.write(WebSocket.createFrame(WebSocket.OPCODE_TEXT, mime.getBytes()));
+                    connection.write(WebSocket.createFrame(WebSocket.OPCODE_BINARY, muxer.getInitSegment()));
+                    initialized = true;
+                }
+                connection.write(chunk);
+            }
+            connection.write(WebSocket.createFrame(WebSocket.OPCODE_CLOSE, new byte[0]));
+        } catch (InterruptedException e) {
+            Log.v(TAG, "stream interrupted");
+        } catch (JSONException e) {
+            Log.e(TAG, "unexpected exception while creating the WebSocket configuration", e);
+        } finally {
+            connection.notifyStreamStopped(StreamConnection.TYPE_WS, id);
+        }
+    }
+
+    /**
+     * Helper to send an HLS resource (playlist, initialization segment, segment or part).<br>
+     * The first request activates the segmenter, that is stopped when no more requests arrive.
+     */
+    private void sendHLSResource(TCPConnection connection, String name, HashMap<String, String> query)
+            throws IOException {
+
+        if (mHLSSegmenter.touch())
+            notifyHLSStarted();
+
+        byte[] content = null;
+        String contentType = "video/mp4";
+        try {
+            if (name.equals("playlist.m3u8")) {
+                // Blocking playlist reload (_HLS_msn and _HLS_part, the query keys are lowercase)
+                int msn = Utils.tryParseInt(query.get("_hls_msn"), -1);
+                int part = Utils.tryParseInt(query.get("_hls_part"), -1);
+                String playlist = mHLSSegmenter.getPlaylist(msn, part, HLS_BLOCKING_TIMEOUT);
+                if (playlist == null) {
+                    sendErrorReply(connection, "HTTP/1.1", 503, "Service Unavailable");
+                    return;
+                }
+                String response = "" +
+                        "HTTP/1.1 200 OK\r\n" +
+                        "Cache-Control: no-cache\r\n" +
+                        "Pragma: no-cache\r\n" +
+                        "Content-Type: application/vnd.apple.mpegurl\r\n" +
+                        "Content-Length: " + playlist.length() + "\r\n" +
+                        "\r\n";
+                connection.write(response + playlist);
+                return;
+            } else if (name.equals("init.mp4")) {
+                content = mHLSSegmenter.getInitSegment();
+            } else if (name.endsWith(".m4s")) {
+                String[] parts = name.substring(0, name.length() - 4).split("\\.");
+                int msn = Utils.tryParseInt(parts[0], -1);
+                if (parts.length == 1) {
+                    content = mHLSSegmenter.getSegment(msn);
+                } else if (parts.length == 2) {
+                    content = mHLSSegmenter.getPart(msn, Utils.tryParseInt(parts[1], -1),
+                            HLS_BLOCKING_TIMEOUT);
+                }
+            }
+        } catch (InterruptedException e) {
+            Log.v(TAG, "HLS request interrupted");
+            return;
+        }
+
+        if (content == null) {
+            sendErrorReply(connection, "HTTP/1.1", 404, "Not Found");
+            return;
+        }
+        String response = "" +
+                "HTTP/1.1 200 OK\r\n" +
+                "Cache-Control: max-age=" + HLS_SEGMENT_MAX_AGE + "\r\n" +
+                "Content-Type: " + contentType + "\r\n" +
+                "Content-Length: " + content.length + "\r\n" +
+                "\r\n";
+        connection.write(response);
+        connection.write(content);
+    }
+
+    /**
+     * Helper to notify that the HLS stream has started.<br>
+     * A sync frame is requested so that the first segment can start as soon as possible.
+     */
+    private void notifyHLSStarted() {
+        mHLSStreamId = Utils.getUniqueID();
+        mStreams.putIfAbsent(mHLSStreamId, StreamConnection.TYPE_HLS);
+        if (mCallback != null) {
+            mCallback.onStreamStarted(StreamConnection.TYPE_HLS, mHLSStreamId);
+            mCallback.onControlRequest("video-sync", "send");
+        }
+        Log.v(TAG, "HLS stream started");
+    }
+
+    /**
+     * Helper to notify that the HLS stream has stopped.
+     */
+    private void notifyHLSStopped() {
+        mStreams.remove(mHLSStreamId);
+        if (mCallback != null)
+            mCallback.onStreamStopped(StreamConnection.TYPE_HLS, mHLSStreamId);
+        Log.v(TAG, "HLS stream stopped");
     }
 
     /**
@@ -1162,11 +2101,13 @@ public class StreamServer
 
         // Check SPS and PPS available
         synchronized (this) {
-            if (mSPS == null || mPPS == null) {
+            byte[] spsData = connection.isSubStream() ? mSubSPS : mSPS;
+            byte[] ppsData = connection.isSubStream() ? mSubPPS : mPPS;
+            if (spsData == null || ppsData == null) {
                 sps = pps = null;
             } else {
-                sps = Base64.encodeToString(mSPS, Base64.NO_WRAP);
-                pps = Base64.encodeToString(mPPS, Base64.NO_WRAP);
+                sps = Base64.encodeToString(spsData, Base64.NO_WRAP);
+                pps = Base64.encodeToString(ppsData, Base64.NO_WRAP);
             }
         }
         if (sps == null || pps == null) {
@@ -1325,10 +2266,11 @@ public class StreamServer
         }
 
         // Play
+        String trackUrl = connection.isSubStream() ? "/video/h264/sub" + url.substring(11) : url;
         String response = "" +
                 "RTSP/1.0 200 OK\r\n" +
                 "CSeq: " + seq + "\r\n" +
-                "RTP-Info: url=" + url + ";seq=" + connection.getRTPSeq() + "\r\n" +
+                "RTP-Info: url=" + trackUrl + ";seq=" + connection.getRTPSeq() + "\r\n" +
                 "Session: " + connection.getRTSPSessionID() + ";timeout=" + RTSP_SESSION_TIMEOUT + "\r\n" +
                 "\r\n";
         connection.write(response);
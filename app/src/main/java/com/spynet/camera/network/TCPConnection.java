@@ -32,6 +32,9 @@ import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
@@ -183,6 +186,31 @@ public class TCPConnection implements Closeable {
         }
     }
 
+    /**
+     * Writes a region of a file to the output stream.<br>
+     * Uses {@link FileChannel#transferTo} so that the kernel can copy the data directly when
+     * the socket has a channel; sockets accepted by a plain ServerSocket have none, in this case
+     * the data is transferred through a channel wrapped around the output stream.
+     *
+     * @param channel  the file channel to read from
+     * @param position the position in the file
+     * @param count    the number of bytes to write
+     * @throws IOException if an error occurs while reading the file or writing to the stream
+     */
+    public void write(FileChannel channel, long position, long count) throws IOException {
+        synchronized (mOutputStream) {
+            WritableByteChannel target = mSocket.getChannel() != null ?
+                    mSocket.getChannel() : Channels.newChannel(mOutputStream);
+            while (count > 0) {
+                long written = channel.transferTo(position, count, target);
+                if (written <= 0)
+                    throw new IOException("cannot transfer the file data");
+                position += written;
+                count -= written;
+            }
+        }
+    }
+
     /**
      * Reads the next line of text available from the input stream.
      * A line is represented by zero or more characters followed by "\r\n" or the end of the reader.
@@ -0,0 +1,91 @@
+/*
+ * This file is part of spyNet Camera, the Android IP camera
+ *
+ * Copyright (C) 2016-2017 Paolo Dematteis
+ *
+ * spyNet Camera is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * spyNet Camera is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Paolo Dematteis - spynet314@gmail.com
+ */
+
+package com.spynet.camera.network;
+
+import android.util.Base64;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * A collection of static utilities to implement the server side of the WebSocket protocol
+ * (RFC 6455).
+ */
+public final class WebSocket {
+
+    public static final int OPCODE_TEXT = 0x1;
+    public static final int OPCODE_BINARY = 0x2;
+    public static final int OPCODE_CLOSE = 0x8;
+
+    private static final String GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+
+    /**
+     * Hidden constructor, the class cannot be instantiated.
+     */
+    private WebSocket() {
+    }
+
+    /**
+     * Computes the Sec-WebSocket-Accept header value.
+     *
+     * @param key the Sec-WebSocket-Key sent by the client
+     * @return the accept value, null if SHA-1 is not available
+     */
+    public static String getAcceptKey(String key) {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            byte[] digest = sha1.digest((key.trim() + GUID).getBytes("US-ASCII"));
+            return Base64.encodeToString(digest, Base64.NO_WRAP);
+        } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Creates a complete (FIN) unmasked frame, as sent by a server.<br>
+     * The frame can be created once and written to many connections.
+     *
+     * @param opcode  the frame opcode
+     * @param payload the payload
+     * @return the frame
+     */
+    public static byte[] createFrame(int opcode, byte[] payload) {
+        int length = payload.length;
+        int header = length < 126 ? 2 : (length < 65536 ? 4 : 10);
+        byte[] frame = new byte[header + length];
+        frame[0] = (byte) (0x80 | opcode);
+        if (length < 126) {
+            frame[1] = (byte) length;
+        } else if (length < 65536) {
+            frame[1] = 126;
+            frame[2] = (byte) (length >> 8);
+            frame[3] = (byte) length;
+        } else {
+            frame[1] = 127;
+            for (int i = 0; i < 8; i++)
+                frame[2 + i] = (byte) ((long) length >> (56 - 8 * i));
+        }
+        System.arraycopy(payload, 0, frame, header, length);
+        return frame;
+    }
+}
@@ -30,7 +30,9 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.graphics.Point;
 import android.location.Location;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.os.RemoteException;
 import android.support.v4.app.NotificationCompat;
 import android.util.Log;
@@ -42,6 +44,7 @@ import com.spynet.camera.common.Utils;
 import com.spynet.camera.media.AudioData;
 
 import com.spynet.camera.media.CameraInfo;
+import com.spynet.camera.media.DVRRecorder;
 import com.spynet.camera.media.Recorder;
 import com.spynet.camera.media.VideoFrame;
 import com.spynet.camera.network.Angelcam.AngelcamAdapter;
@@ -53,6 +56,7 @@ import com.spynet.camera.ui.SettingsActivity;
 
 import org.jetbrains.annotations.NotNull;
 
+import java.io.File;
 import java.lang.ref.WeakReference;
 import java.net.BindException;
 import java.util.concurrent.ConcurrentHashMap;
@@ -68,7 +72,8 @@ public class StreamService extends Service
         MangocamAdapter.MangocamAdapterCallback,
         AngelcamAdapter.AngelcamAdapterCallback,
         ConnectivityMonitor.ConnectivityCallback,
-        LocationProvider.LocationCallback {
+        LocationProvider.LocationCallback,
+        DVRRecorder.DVRCallback {
 
     public static final String ACTION_STOP_SERVICE = "com.spynet.camera.services.STOP_SERVICE";
     public static final int SHOW_REQUEST_ID = 9536464;
@@ -83,6 +88,8 @@ public class StreamService extends Service
 
     private final Object mServerLock = new Object();    // Lock to synchronize access to the server
     private final Object mRecorderLock = new Object();  // Lock to synchronize access to the recorder
+    private final Handler mHandler                      // Handler to run the deferred requests
+            = new Handler(Looper.getMainLooper());      // on the main thread
 
     private WeakReference<IStreamServiceCallBack>       // Callback to communicate with the client
             mCallBack;                                  //
@@ -90,6 +97,7 @@ public class StreamService extends Service
     private StreamServer mStreamServer;                 // The stream server
     private MangocamAdapter mMangocamAdapter;           // The Mangocam Connect API adapter
     private AngelcamAdapter mAngelcamAdapter;           // The Angelcam Ready API adapter
+    private volatile DVRRecorder mDVRRecorder;          // The on-device recorder
     private BroadcastReceiver mControlReceiver;         // The BroadcastReceiver to control the service
     private ConnectivityMonitor mConnectivityMonitor;   // The connectivity monitor
     private LocationProvider mLocationProvider;         // The location provider
@@ -146,13 +154,16 @@ public class StreamService extends Service
                             }
                         }
                         // Update StreamServer status
+                        mStreamServer.setDVR(mDVRRecorder);
                         mStreamServer.setWiFiAvailable(mWiFiAvailable);
                         mStreamServer.setMobileAvailable(mMobileAvailable && !wifiOnly);
                         mStreamServer.setLocation(mLocation);
                         synchronized (mRecorderLock) {
                             mStreamServer.setH264Available(mRecorder != null && mRecorder.isH264Available());
+                            mStreamServer.setH264SubAvailable(mRecorder != null && mRecorder.isH264SubAvailable());
                             mStreamServer.setAudioAvailable(mRecorder != null && mRecorder.isAudioAvailable());
                             mStreamServer.setTorch(mRecorder != null && mRecorder.getTorch());
+                            mStreamServer.setMotion(mRecorder == null || mRecorder.isMotion());
                         }
                         // Request the audio/video streams configuration to be sent again
                         synchronized (mRecorderLock) {
@@ -182,13 +193,43 @@ public class StreamService extends Service
                         synchronized (mServerLock) {
                             if (mStreamServer != null) {
                                 mStreamServer.setH264Available(mRecorder.isH264Available());
+                                mStreamServer.setH264SubAvailable(mRecorder.isH264SubAvailable());
                                 mStreamServer.setAudioAvailable(mRecorder.isAudioAvailable());
+                                mStreamServer.setMotion(mRecorder.isMotion());
                             }
+                            if (mMangocamAdapter != null)
+                                mMangocamAdapter.setMotion(mRecorder.isMotion());
                         }
+                        updateDemand();
                     }
                     // Update the notification
                     startForeground(FOREGROUND_NOTIFICATION_ID, buildNotification());
                     break;
+                case "DVR":
+                    // Stop the DVR, closed out of the lock since it flushes the recording
+                    DVRRecorder dvr;
+                    synchronized (mServerLock) {
+                        dvr = mDVRRecorder;
+                        mDVRRecorder = null;
+                        if (mStreamServer != null)
+                            mStreamServer.setDVR(null);
+                    }
+                    if (dvr != null)
+                        dvr.close();
+                    // Start the DVR
+                    dvr = createDVR();
+                    synchronized (mServerLock) {
+                        mDVRRecorder = dvr;
+                        if (mStreamServer != null)
+                            mStreamServer.setDVR(dvr);
+                    }
+                    // Request the audio/video streams configuration to be sent again
+                    synchronized (mRecorderLock) {
+                        if (mRecorder != null)
+                            mRecorder.requestConfiguration();
+                        updateDemand();
+                    }
+                    break;
                 case "MangocamAdapter":
                     synchronized (mServerLock) {
                         // Stop the MangocamAdapter
@@ -201,6 +242,9 @@ public class StreamService extends Service
                             mMangocamAdapter = new MangocamAdapter(StreamService.this);
                             mMangocamAdapter.setWiFiAvailable(mWiFiAvailable);
                             mMangocamAdapter.setMobileAvailable(mMobileAvailable && !wifiOnly);
+                            synchronized (mRecorderLock) {
+                                mMangocamAdapter.setMotion(mRecorder == null || mRecorder.isMotion());
+                            }
                         }
                     }
                     // Update the notification
@@ -421,6 +465,11 @@ public class StreamService extends Service
             Log.e(TAG, "cannot create the StreamServer on port " + serverPort, e);
         }
 
+        // Start the DVR
+        mDVRRecorder = createDVR();
+        if (mStreamServer != null)
+            mStreamServer.setDVR(mDVRRecorder);
+
         // Start the MangocamAdapter
         if (SettingsActivity.getMangoEnabled(this)) {
             mMangocamAdapter = new MangocamAdapter(this);
@@ -440,7 +489,15 @@ public class StreamService extends Service
         }
         if (mRecorder != null && mStreamServer != null) {
             mStreamServer.setH264Available(mRecorder.isH264Available());
+            mStreamServer.setH264SubAvailable(mRecorder.isH264SubAvailable());
             mStreamServer.setAudioAvailable(mRecorder.isAudioAvailable());
+            mStreamServer.setMotion(mRecorder.isMotion());
+        }
+        if (mRecorder != null && mMangocamAdapter != null) {
+            mMangocamAdapter.setMotion(mRecorder.isMotion());
+        }
+        synchronized (mRecorderLock) {
+            updateDemand();
         }
 
         // Register the ConnectivityMonitor
@@ -495,6 +552,10 @@ public class StreamService extends Service
         if (mMangocamAdapter != null)
             mMangocamAdapter.close();
 
+        // Stop the DVR
+        if (mDVRRecorder != null)
+            mDVRRecorder.close();
+
         // Stop the StreamServer
         if (mStreamServer != null)
             mStreamServer.close();
@@ -505,6 +566,27 @@ public class StreamService extends Service
         return mBinder;
     }
 
+    /**
+     * Helper to create the DVR, if enabled.<br>
+     * The recordings are stored in the app specific external storage, if available.
+     *
+     * @return the DVRRecorder, null if disabled or on error
+     */
+    private DVRRecorder createDVR() {
+        if (!SettingsActivity.getDVREnabled(this))
+            return null;
+        File directory = getExternalFilesDir("dvr");
+        if (directory == null)
+            directory = new File(getFilesDir(), "dvr");
+        try {
+            return new DVRRecorder(directory, SettingsActivity.getDVRQuota(this), this);
+        } catch (Exception e) {
+            Toast.makeText(this, R.string.error_dvr_not_started, Toast.LENGTH_LONG).show();
+            Log.e(TAG, "cannot create the DVRRecorder", e);
+            return null;
+        }
+    }
+
     /**
      * Helper to build the Notification used by the foreground service.
      */
@@ -600,6 +682,10 @@ public class StreamService extends Service
                 Log.e(TAG, "failed to notify stream started", e);
             }
         }
+        // Resume the outputs the new stream needs
+        synchronized (mRecorderLock) {
+            updateDemand();
+        }
     }
 
     @Override
@@ -627,6 +713,41 @@ public class StreamService extends Service
                 Log.e(TAG, "failed to notify stream stopped", e);
             }
         }
+        // Suspend the outputs no longer needed
+        synchronized (mRecorderLock) {
+            updateDemand();
+        }
+    }
+
+    /**
+     * @param types the stream types
+     * @return {@code true} if there is at least a stream of one of the specified types,
+     * {@code false} otherwise
+     */
+    private boolean isStreaming(String... types) {
+        synchronized (mStreams) {
+            for (String type : types) {
+                if (mStreams.containsValue(type))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Tells the Recorder which outputs have consumers, so that the unused ones are suspended.<br>
+     * The DVR needs both the video and the audio streams.
+     * Must be called holding mRecorderLock.
+     */
+    private void updateDemand() {
+        if (mRecorder == null)
+            return;
+        boolean dvr = mDVRRecorder != null;
+        mRecorder.setFrameDemand(isStreaming(StreamConnection.TYPE_MJPEG));
+        mRecorder.setVideoDemand(dvr || isStreaming(StreamConnection.TYPE_H264,
+                StreamConnection.TYPE_TS, StreamConnection.TYPE_WS, StreamConnection.TYPE_HLS));
+        mRecorder.setAudioDemand(dvr || isStreaming(StreamConnection.TYPE_AAC,
+                StreamConnection.TYPE_TS, StreamConnection.TYPE_HLS));
     }
 
     @Override
@@ -727,6 +848,8 @@ public class StreamService extends Service
                     if (mRecorder != null) {
                         if (params.equals("send")) {
                             mRecorder.requestSyncFrame();
+                        } else if (params.equals("send-sub")) {
+                            mRecorder.requestSubSyncFrame();
                         }
                     }
                 }
@@ -780,6 +903,8 @@ public class StreamService extends Service
                     mStreamServer.push(frame);
                 if (mMangocamAdapter != null)
                     mMangocamAdapter.push(frame);
+                if (mDVRRecorder != null)
+                    mDVRRecorder.push(frame);
             } catch (InterruptedException e) {
                 Thread.currentThread().interrupt();
                 Log.e(TAG, "push frame interrupted");
@@ -794,6 +919,8 @@ public class StreamService extends Service
             try {
                 if (mStreamServer != null)
                     mStreamServer.push(data);
+                if (mDVRRecorder != null)
+                    mDVRRecorder.push(data);
             } catch (InterruptedException e) {
                 Thread.currentThread().interrupt();
                 Log.e(TAG, "push audio interrupted");
@@ -801,6 +928,20 @@ public class StreamService extends Service
         }
     }
 
+    @Override
+    public void onSubDataAvailable(VideoFrame frame) {
+        // Forward the sub stream
+        synchronized (mServerLock) {
+            try {
+                if (mStreamServer != null)
+                    mStreamServer.pushSub(frame);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                Log.e(TAG, "push sub frame interrupted");
+            }
+        }
+    }
+
     @Override
     public void onFrameSizeChanged(Point size) {
         // Send the frame size to the client
@@ -858,6 +999,17 @@ public class StreamService extends Service
         }
     }
 
+    @Override
+    public void onMotion(boolean motion) {
+        // Forward the motion state
+        synchronized (mServerLock) {
+            if (mStreamServer != null)
+                mStreamServer.setMotion(motion);
+            if (mMangocamAdapter != null)
+                mMangocamAdapter.setMotion(motion);
+        }
+    }
+
     @Override
     public void onMute(boolean mute) {
         // Send the mute state to the client
@@ -871,6 +1023,20 @@ public class StreamService extends Service
         }
     }
 
+    @Override
+    public void onSyncFrameNeeded() {
+        // Called while pushing the video: request the sync frame from the main thread
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (mRecorderLock) {
+                    if (mRecorder != null)
+                        mRecorder.requestSyncFrame();
+                }
+            }
+        });
+    }
+
     @Override
     public void onFrameRate(float fps) {
         // Send the frame rate to the client
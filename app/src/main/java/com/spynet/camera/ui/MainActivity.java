@@ -709,6 +709,14 @@ public class MainActivity
                     Log.e(TAG, "cannot restart the Recorder", e);
                 }
             }
+            // Restart the DVR
+            if (data.getBooleanExtra("RESTART_DVR", false) && service != null) {
+                try {
+                    service.restart("DVR");
+                } catch (RemoteException e) {
+                    Log.e(TAG, "cannot restart the DVR", e);
+                }
+            }
             // Restart the MangocamAdapter
             if (data.getBooleanExtra("RESTART_MANGO_ADAPTER", false) && service != null) {
                 try {
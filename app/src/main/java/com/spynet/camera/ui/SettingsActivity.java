@@ -64,6 +64,7 @@ import com.spynet.camera.R;
 import com.spynet.camera.common.Utils;
 import com.spynet.camera.network.Angelcam.AngelcamAdapter;
 import com.spynet.camera.media.CameraInfo;
+import com.spynet.camera.media.MotionDetector;
 import com.spynet.camera.services.IStreamService;
 import com.spynet.camera.services.StreamService;
 import com.takisoft.fix.support.v7.preference.PreferenceFragmentCompatDividers;
@@ -85,12 +86,22 @@ public class SettingsActivity
     private static final String KEY_PREF_VIDEO_QUALITY_K = "pref_video_quality_k";
     private static final String KEY_PREF_VIDEO_FPS = "pref_video_fps";
     private static final String KEY_PREF_VIDEO_I_DISTANCE = "pref_video_i_distance";
+    private static final String KEY_PREF_VIDEO_SUB_ENABLED = "pref_video_sub_enabled";
+    private static final String KEY_PREF_VIDEO_SUB_QUALITY_K = "pref_video_sub_quality_k";
+    private static final String KEY_PREF_VIDEO_LOW_LATENCY = "pref_video_low_latency";
     private static final String KEY_PREF_AUDIO_ENABLED = "pref_audio_enabled";
     private static final String KEY_PREF_AUDIO_QUALITY_K = "pref_audio_quality_k";
     private static final String KEY_PREF_AUDIO_GAIN = "pref_audio_gain";
+    private static final String KEY_PREF_AUDIO_LOW_LATENCY = "pref_audio_low_latency";
     private static final String KEY_PREF_MJPEG_QUALITY = "pref_mjpeg_quality";
     private static final String KEY_PREF_MJPEG_FPS = "pref_mjpeg_fps";
     private static final String KEY_PREF_CAMERA_ZOOM = "pref_camera_zoom_2";
+    private static final String KEY_PREF_DVR_ENABLED = "pref_dvr_enabled";
+    private static final String KEY_PREF_DVR_QUOTA = "pref_dvr_quota";
+    private static final String KEY_PREF_MOTION_ENABLED = "pref_motion_enabled";
+    private static final String KEY_PREF_MOTION_SENSITIVITY = "pref_motion_sensitivity";
+    private static final String KEY_PREF_MOTION_ZONES = "pref_motion_zones";
+    private static final String KEY_PREF_MOTION_GATING = "pref_motion_gating";
     // Stream server
     private static final String KEY_PREF_SERVER_PORT = "pref_server_port";
     private static final String KEY_PREF_SERVER_UPNP = "pref_server_upnp";
@@ -177,6 +188,31 @@ public class SettingsActivity
         return Utils.tryParseInt(bitrate, 512) * 1000;
     }
 
+    /**
+     * @return the H264 sub stream enabled flag preference
+     */
+    public static boolean getH264SubEnabled(Context context) {
+        SharedPreferences preferences = getSharedPreferences(context);
+        return preferences.getBoolean(KEY_PREF_VIDEO_SUB_ENABLED, false);
+    }
+
+    /**
+     * @return the H264 sub stream bitrate preference in bps
+     */
+    public static int getH264SubBitrate(Context context) {
+        SharedPreferences preferences = getSharedPreferences(context);
+        String bitrate = preferences.getString(KEY_PREF_VIDEO_SUB_QUALITY_K, "256");
+        return Utils.tryParseInt(bitrate, 256) * 1000;
+    }
+
+    /**
+     * @return the H264 low latency profile enabled flag preference
+     */
+    public static boolean getH264LowLatency(Context context) {
+        SharedPreferences preferences = getSharedPreferences(context);
+        return preferences.getBoolean(KEY_PREF_VIDEO_LOW_LATENCY, false);
+    }
+
     /**
      * Sets the H264 bitrate preference in bps.
      */
@@ -241,6 +277,14 @@ public class SettingsActivity
         return Utils.tryParseInt(gain, 0);
     }
 
+    /**
+     * @return the AAC low latency capture enabled flag preference
+     */
+    public static boolean getAACLowLatency(Context context) {
+        SharedPreferences preferences = getSharedPreferences(context);
+        return preferences.getBoolean(KEY_PREF_AUDIO_LOW_LATENCY, false);
+    }
+
     /**
      * @return the MJPEG quality preference in percentage
      */
@@ -277,6 +321,58 @@ public class SettingsActivity
         editor.apply();
     }
 
+    /**
+     * @return the DVR enabled flag preference
+     */
+    public static boolean getDVREnabled(Context context) {
+        SharedPreferences preferences = getSharedPreferences(context);
+        return preferences.getBoolean(KEY_PREF_DVR_ENABLED, false);
+    }
+
+    /**
+     * @return the DVR storage quota preference in bytes
+     */
+    public static long getDVRQuota(Context context) {
+        SharedPreferences preferences = getSharedPreferences(context);
+        String quota = preferences.getString(KEY_PREF_DVR_QUOTA, "1024");
+        return Utils.tryParseInt(quota, 1024) * 1024L * 1024L;
+    }
+
+    /**
+     * @return the motion detection enabled flag preference
+     */
+    public static boolean getMotionEnabled(Context context) {
+        SharedPreferences preferences = getSharedPreferences(context);
+        return preferences.getBoolean(KEY_PREF_MOTION_ENABLED, false);
+    }
+
+    /**
+     * @return the motion detection sensitivity preference, 1 (lowest) to 5 (highest)
+     */
+    public static int getMotionSensitivity(Context context) {
+        SharedPreferences preferences = getSharedPreferences(context);
+        String sensitivity = preferences.getString(KEY_PREF_MOTION_SENSITIVITY, "3");
+        return Utils.tryParseInt(sensitivity, 3);
+    }
+
+    /**
+     * @return the motion detection zones mask preference (see {@link MotionDetector})
+     */
+    public static int getMotionZones(Context context) {
+        SharedPreferences preferences = getSharedPreferences(context);
+        String zones = preferences.getString(KEY_PREF_MOTION_ZONES, "511");
+        return Utils.tryParseInt(zones, MotionDetector.ZONES_ALL);
+    }
+
+    /**
+     * @return whether the MJPEG streams should slow down when there is no motion
+     */
+    public static boolean getMotionGating(Context context) {
+        SharedPreferences preferences = getSharedPreferences(context);
+        return preferences.getBoolean(KEY_PREF_MOTION_ENABLED, false) &&
+                preferences.getBoolean(KEY_PREF_MOTION_GATING, true);
+    }
+
     /**
      * @return the server listening port preference
      */
@@ -979,8 +1075,15 @@ public class SettingsActivity
                     key.equals(KEY_PREF_VIDEO_QUALITY_K) ||
                     key.equals(KEY_PREF_VIDEO_FPS) ||
                     key.equals(KEY_PREF_VIDEO_I_DISTANCE) ||
+                    key.equals(KEY_PREF_VIDEO_SUB_ENABLED) ||
+                    key.equals(KEY_PREF_VIDEO_SUB_QUALITY_K) ||
+                    key.equals(KEY_PREF_VIDEO_LOW_LATENCY) ||
                     key.equals(KEY_PREF_AUDIO_ENABLED) ||
-                    key.equals(KEY_PREF_AUDIO_QUALITY_K)) {
+                    key.equals(KEY_PREF_AUDIO_QUALITY_K) ||
+                    key.equals(KEY_PREF_AUDIO_LOW_LATENCY) ||
+                    key.equals(KEY_PREF_MOTION_ENABLED) ||
+                    key.equals(KEY_PREF_MOTION_SENSITIVITY) ||
+                    key.equals(KEY_PREF_MOTION_ZONES)) {
                 SettingsActivity activity = (SettingsActivity) getActivity();
                 activity.setResult("RESTART_RECORDER", true);
             }
@@ -1000,6 +1103,12 @@ public class SettingsActivity
                 SettingsActivity activity = (SettingsActivity) getActivity();
                 activity.setResult("RESTART_STREAM_SERVER", true);
             }
+            // Restart the DVR
+            if (key.equals(KEY_PREF_DVR_ENABLED) ||
+                    key.equals(KEY_PREF_DVR_QUOTA)) {
+                SettingsActivity activity = (SettingsActivity) getActivity();
+                activity.setResult("RESTART_DVR", true);
+            }
             // Restart the MangocamAdapter
             if (key.equals(KEY_PREF_SERVER_WIFIONLY) ||
                     key.equals(KEY_PREF_MANGO_ENABLED) ||
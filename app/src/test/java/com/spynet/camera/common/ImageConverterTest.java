@@ -0,0 +1,126 @@
+/*
+ * This file is part of spyNet Camera, the Android IP camera
+ *
+ * Copyright (C) 2016-2017 Paolo Dematteis
+ *
+ * spyNet Camera is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * spyNet Camera is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Paolo Dematteis - spynet314@gmail.com
+ */
+
+package com.spynet.camera.common;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * Checks the {@link ImageConverter} conversions against the per-byte helpers it replaced.<br>
+ * The reference pipeline is the one used before: an in-place conversion of a copy of the
+ * frame, then a copy into the encoder input buffer.
+ */
+public class ImageConverterTest {
+
+    private ImageConverter mConverter;
+
+    @Before
+    public void setUp() {
+        mConverter = new ImageConverter();
+    }
+
+    @After
+    public void tearDown() {
+        mConverter.close();
+    }
+
+    @Test
+    public void convertNV21ToNV12_matchesReference() {
+        // 644 is not a multiple of 8, so the rows are not made of whole longs
+        int[][] sizes = {{1280, 720}, {640, 480}, {644, 480}, {16, 2}};
+        for (int[] size : sizes) {
+            byte[] src = randomFrame(size[0], size[1]);
+            ByteBuffer expected = ByteBuffer.allocateDirect(src.length);
+            ByteBuffer actual = ByteBuffer.allocateDirect(src.length);
+            referenceNV12(src, expected, size[0], size[1]);
+            mConverter.convertNV21ToNV12(src, actual, size[0], size[1]);
+            assertArrayEquals(toArray(expected), toArray(actual));
+        }
+    }
+
+    @Test
+    public void convertNV21ToI420_matchesReference() {
+        int[][] sizes = {{1280, 720}, {640, 480}, {644, 480}, {16, 2}};
+        for (int[] size : sizes) {
+            byte[] src = randomFrame(size[0], size[1]);
+            ByteBuffer expected = ByteBuffer.allocateDirect(src.length);
+            ByteBuffer actual = ByteBuffer.allocateDirect(src.length);
+            referenceI420(src, expected, size[0], size[1]);
+            mConverter.convertNV21ToI420(src, actual, size[0], size[1]);
+            assertArrayEquals(toArray(expected), toArray(actual));
+        }
+    }
+
+    /**
+     * The former NV21 -> NV12 pipeline, Image.convertNV12ToYUV420SemiPlanar on a copy.
+     */
+    private static void referenceNV12(byte[] src, ByteBuffer dst, int width, int height) {
+        byte[] data = src.clone();
+        for (int i = width * height; i < data.length; ) {
+            byte tmp = data[i];
+            data[i] = data[++i];
+            data[i++] = tmp;
+        }
+        dst.clear();
+        dst.put(data);
+    }
+
+    /**
+     * The former NV21 -> I420 pipeline, Image.convertNV12ToYUV420Planar on a copy.
+     */
+    private static void referenceI420(byte[] src, ByteBuffer dst, int width, int height) {
+        byte[] data = src.clone();
+        final int c_stride = width / 2;
+        final int c_size = c_stride * height / 2;
+        final int cr_offset = width * height;
+        byte[] tmp = new byte[c_size * 2];
+        for (int s = cr_offset, cr_dst = 0, cb_dst = c_size; s < data.length; s++) {
+            if (s % 2 == 0) {
+                tmp[cb_dst++] = data[s];
+            } else {
+                tmp[cr_dst++] = data[s];
+            }
+        }
+        System.arraycopy(tmp, 0, data, cr_offset, c_size * 2);
+        dst.clear();
+        dst.put(data);
+    }
+
+    private static byte[] randomFrame(int width, int height) {
+        byte[] data = new byte[width * height * 3 / 2];
+        new Random(width * 31 + height).nextBytes(data);
+        return data;
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        byte[] data = new byte[buffer.capacity()];
+        buffer.clear();
+        buffer.get(data);
+        return data;
+    }
+}